@@ -0,0 +1,36 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.benchmarks;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * The base of the benchmarks. The engine logs at level TRACE by default, so
+ * the benchmarks set the level of the root logger to the value of the system
+ * property {@value #LOG_LEVEL_PROPERTY}, by default WARN.
+ *
+ * @author Maxime Lefrançois
+ */
+public abstract class BenchmarkBase {
+
+	public static final String LOG_LEVEL_PROPERTY = "sparql-generate.log-level";
+
+	static {
+		Logger.getRootLogger().setLevel(Level.toLevel(System.getProperty(LOG_LEVEL_PROPERTY), Level.WARN));
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the JMH command line options, and writes the
+ * results as JSON to {@value #DEFAULT_RESULT} unless options -rf or -rff are
+ * given. The results of two versions can be compared with
+ * {@link CompareResults}.
+ *
+ * @author Maxime Lefrançois
+ */
+public class BenchmarkRunner {
+
+	public static final String DEFAULT_RESULT = "jmh-result.json";
+
+	public static void main(String[] args) throws RunnerException, IOException {
+		final CommandLineOptions options;
+		try {
+			options = new CommandLineOptions(args);
+		} catch (CommandLineOptionException ex) {
+			System.err.println("Error parsing command line: " + ex.getMessage());
+			System.exit(1);
+			return;
+		}
+		if (options.shouldHelp()) {
+			options.showHelp();
+			return;
+		}
+		final ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+		if (!options.getResultFormat().hasValue()) {
+			builder.resultFormat(ResultFormatType.JSON);
+		}
+		if (!options.getResult().hasValue()) {
+			builder.result(DEFAULT_RESULT);
+		}
+		final Runner runner = new Runner(builder.build());
+		if (options.shouldList()) {
+			runner.list();
+			return;
+		}
+		runner.run();
+	}
+
+}
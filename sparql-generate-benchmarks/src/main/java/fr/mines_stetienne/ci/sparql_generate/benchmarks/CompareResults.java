@@ -0,0 +1,111 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.benchmarks;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Compares two JSON result files of {@link BenchmarkRunner}, for example the
+ * results of two versions of the engine.
+ * <p>
+ * Usage: <code>CompareResults baseline.json candidate.json [threshold]</code>.
+ * For each benchmark and parameters present in both files, prints the score
+ * of both runs and the relative change. A change worse than the threshold, 10%
+ * by default, is reported as a regression, and the program then exits with
+ * status 1.
+ *
+ * @author Maxime Lefrançois
+ */
+public class CompareResults {
+
+	private static final double DEFAULT_THRESHOLD = 0.1;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: CompareResults baseline.json candidate.json [threshold]");
+			System.exit(2);
+			return;
+		}
+		final Map<String, JsonObject> baseline = read(args[0]);
+		final Map<String, JsonObject> candidate = read(args[1]);
+		final double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+		int regressions = 0;
+		for (Map.Entry<String, JsonObject> entry : baseline.entrySet()) {
+			final JsonObject after = candidate.get(entry.getKey());
+			if (after == null) {
+				System.out.println(entry.getKey() + ": missing from " + args[1]);
+				continue;
+			}
+			final JsonObject metric = entry.getValue().getAsJsonObject("primaryMetric");
+			final double before = metric.get("score").getAsDouble();
+			final double now = after.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+			final double change = (now - before) / before;
+			// the time per operation should decrease, the throughput increase
+			final boolean lowerIsBetter = !"thrpt".equals(entry.getValue().get("mode").getAsString());
+			final boolean regression = lowerIsBetter ? change > threshold : change < -threshold;
+			if (regression) {
+				regressions++;
+			}
+			System.out.println(String.format(Locale.ROOT, "%s: %.3f -> %.3f %s (%+.1f%%)%s", entry.getKey(), before,
+					now, metric.get("scoreUnit").getAsString(), change * 100, regression ? "  REGRESSION" : ""));
+		}
+		for (String key : candidate.keySet()) {
+			if (!baseline.containsKey(key)) {
+				System.out.println(key + ": missing from " + args[0]);
+			}
+		}
+		System.out.println(regressions + " regression(s) above " + threshold * 100 + "%");
+		if (regressions > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reads a result file, and indexes the results by benchmark and
+	 * parameters.
+	 */
+	private static Map<String, JsonObject> read(final String file) throws IOException {
+		final Map<String, JsonObject> results = new LinkedHashMap<>();
+		try (Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+			for (JsonElement element : JsonParser.parseReader(reader).getAsJsonArray()) {
+				final JsonObject result = element.getAsJsonObject();
+				final StringBuilder key = new StringBuilder(result.get("benchmark").getAsString());
+				if (result.has("params")) {
+					final Map<String, String> params = new TreeMap<>();
+					for (Map.Entry<String, JsonElement> param : result.getAsJsonObject("params").entrySet()) {
+						params.put(param.getKey(), param.getValue().getAsString());
+					}
+					key.append(params);
+				}
+				results.put(key.toString(), result);
+			}
+		}
+		return results;
+	}
+
+}
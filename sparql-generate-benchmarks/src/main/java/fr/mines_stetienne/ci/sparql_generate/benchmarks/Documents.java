@@ -0,0 +1,188 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.benchmarks;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Synthetic documents for the benchmarks.
+ *
+ * @author Maxime Lefrançois
+ */
+public class Documents {
+
+	private Documents() {
+	}
+
+	/**
+	 * Scales up a document in place, by repeating its records. The records
+	 * depend on the extension of the file:
+	 * <ul>
+	 * <li>.csv: the lines after the header;</li>
+	 * <li>.json: the elements of the array, if the document is an array, or
+	 * else the elements of the arrays that are members of the document;</li>
+	 * <li>.xml: the children of the root element.</li>
+	 * </ul>
+	 * Other documents are left unchanged.
+	 *
+	 * @param file
+	 *            the document.
+	 * @param scale
+	 *            the number of times the records are repeated.
+	 * @throws IOException
+	 *             if the document could not be read or written.
+	 */
+	public static void scale(final Path file, final int scale) throws IOException {
+		final String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+		if (name.endsWith(".csv")) {
+			scaleCSV(file, scale);
+		} else if (name.endsWith(".json")) {
+			scaleJSON(file, scale);
+		} else if (name.endsWith(".xml")) {
+			scaleXML(file, scale);
+		}
+	}
+
+	private static void scaleCSV(final Path file, final int scale) throws IOException {
+		final String csv = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+		final int headerEnd = csv.indexOf('\n') + 1;
+		if (headerEnd == 0) {
+			return;
+		}
+		String records = csv.substring(headerEnd);
+		if (!records.isEmpty() && !records.endsWith("\n")) {
+			records += headerEnd > 1 && csv.charAt(headerEnd - 2) == '\r' ? "\r\n" : "\n";
+		}
+		final StringBuilder sb = new StringBuilder(headerEnd + records.length() * scale);
+		sb.append(csv, 0, headerEnd);
+		for (int i = 0; i < scale; i++) {
+			sb.append(records);
+		}
+		Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void scaleJSON(final Path file, final int scale) throws IOException {
+		final JsonElement json;
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			json = JsonParser.parseReader(reader);
+		}
+		if (json.isJsonArray()) {
+			repeat(json.getAsJsonArray(), scale);
+		} else if (json.isJsonObject()) {
+			for (Map.Entry<String, JsonElement> member : ((JsonObject) json).entrySet()) {
+				if (member.getValue().isJsonArray()) {
+					repeat(member.getValue().getAsJsonArray(), scale);
+				}
+			}
+		}
+		try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			new Gson().toJson(json, writer);
+		}
+	}
+
+	private static void repeat(final JsonArray array, final int scale) {
+		final JsonArray records = array.deepCopy();
+		for (int i = 1; i < scale; i++) {
+			array.addAll(records.deepCopy());
+		}
+	}
+
+	private static void scaleXML(final Path file, final int scale) throws IOException {
+		try {
+			final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(file.toFile());
+			final Element root = document.getDocumentElement();
+			final List<Node> records = new ArrayList<>();
+			for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+				records.add(child);
+			}
+			for (int i = 1; i < scale; i++) {
+				for (Node record : records) {
+					root.appendChild(record.cloneNode(true));
+				}
+			}
+			final Transformer transformer = TransformerFactory.newInstance().newTransformer();
+			transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+			transformer.transform(new DOMSource(document), new StreamResult(file.toFile()));
+		} catch (IOException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw new IOException("Could not scale the XML document " + file, ex);
+		}
+	}
+
+	/**
+	 * @param rows
+	 *            the number of rows.
+	 * @return a CSV document with a header and columns id, name, latitude and
+	 *         longitude.
+	 */
+	public static String csv(final int rows) {
+		final StringBuilder sb = new StringBuilder("id,name,latitude,longitude\n");
+		for (int i = 0; i < rows; i++) {
+			sb.append(i).append(",\"Place ").append(i).append("\",")
+					.append(String.format(Locale.ROOT, "%.6f,%.6f", 45 + i % 90 / 100.0, 4 + i % 180 / 100.0))
+					.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param rows
+	 *            the number of elements.
+	 * @return a JSON document whose member "places" is an array of objects
+	 *         with members id, name and a nested location.
+	 */
+	public static String json(final int rows) {
+		final StringBuilder sb = new StringBuilder("{\"places\":[");
+		for (int i = 0; i < rows; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"id\":").append(i).append(",\"name\":\"Place ").append(i).append("\",\"location\":")
+					.append(String.format(Locale.ROOT, "{\"latitude\":%.6f,\"longitude\":%.6f}}", 45 + i % 90 / 100.0,
+							4 + i % 180 / 100.0));
+		}
+		return sb.append("]}").toString();
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.riot.lang.StreamRDFCounting;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.sparql.util.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.mines_stetienne.ci.sparql_generate.engine.RootPlan;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+
+/**
+ * The end-to-end execution of the mappings of the corpus whose documents are
+ * local, with documents scaled up by repeating their records.
+ * <p>
+ * The plan is created once per trial, and a new context is created for each
+ * execution. The result is the number of triples generated, the number of
+ * solutions selected, or the length of the text generated.
+ *
+ * @author Maxime Lefrançois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionBenchmark extends BenchmarkBase {
+
+	@Param({ "capital-local", "chargingplan", "csvmultiline", "csvstream", "customcsveg1", "generatelistjson",
+			"rmlproeg1", "rmlproeg3", "rmlproeg4", "rmlproeg7", "rmlproegcsvw", "rmlspeceg1", "rmlspeceg2",
+			"rmlspeceg3", "simplecsv", "xsparql1" })
+	public String mapping;
+
+	@Param({ "1", "100" })
+	public int scale;
+
+	private Mapping loaded;
+
+	private SPARQLExtQuery query;
+
+	private RootPlan plan;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		loaded = Mapping.load(mapping, scale);
+		query = loaded.parse();
+		plan = loaded.plan();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		loaded.close();
+	}
+
+	@Benchmark
+	public long execute() {
+		if (query.isGenerateType()) {
+			final StreamRDFCounting output = StreamRDFLib.count();
+			final Context context = loaded.newContext(query, output);
+			plan.execGenerateStream(context);
+			return output.count();
+		} else if (query.isSelectType()) {
+			final Context context = loaded.newContext(query, null);
+			return ResultSetFormatter.consume(plan.execSelect(context));
+		} else {
+			final Context context = loaded.newContext(query, null);
+			return plan.execTemplate(context).length();
+		}
+	}
+
+}
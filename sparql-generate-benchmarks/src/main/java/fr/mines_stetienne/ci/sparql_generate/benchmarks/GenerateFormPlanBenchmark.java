@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.lang.StreamRDFCounting;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.sparql.core.BasicPattern;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.util.Context;
+import org.apache.jena.vocabulary.RDF;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.mines_stetienne.ci.sparql_generate.engine.GenerateFormPlan;
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * The substitution of the bindings in the template of a GENERATE clause,
+ * with variables, IRIs, literals and a blank node.
+ *
+ * @author Maxime Lefrançois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GenerateFormPlanBenchmark extends BenchmarkBase {
+
+	private static final String EX = "http://example.org/";
+
+	private static final Var S = Var.alloc("s");
+
+	private static final Var NAME = Var.alloc("name");
+
+	private static final Var LAT = Var.alloc("lat");
+
+	private static final Var LON = Var.alloc("lon");
+
+	@Param({ "1", "100", "10000" })
+	public int bindings;
+
+	private GenerateFormPlan plan;
+
+	private List<Var> variables;
+
+	private List<Binding> values;
+
+	@Setup
+	public void setup() {
+		final Node location = NodeFactory.createBlankNode("location");
+		final List<Triple> triples = Arrays.asList(
+				Triple.create(S, RDF.type.asNode(), NodeFactory.createURI(EX + "Place")),
+				Triple.create(S, NodeFactory.createURI(EX + "name"), NAME),
+				Triple.create(S, NodeFactory.createURI(EX + "location"), location),
+				Triple.create(location, NodeFactory.createURI(EX + "latitude"), LAT),
+				Triple.create(location, NodeFactory.createURI(EX + "longitude"), LON));
+		plan = new GenerateFormPlan(BasicPattern.wrap(triples), Collections.emptyList());
+		variables = Arrays.asList(S, NAME, LAT, LON);
+		values = new ArrayList<>(bindings);
+		for (int i = 0; i < bindings; i++) {
+			values.add(BindingFactory.binding(S, NodeFactory.createURI(EX + "place/" + i), NAME,
+					NodeFactory.createLiteral("Place " + i), LAT,
+					NodeFactory.createLiteral(Double.toString(45 + i % 90 / 100.0), XSDDatatype.XSDdecimal), LON,
+					NodeFactory.createLiteral(Double.toString(4 + i % 180 / 100.0), XSDDatatype.XSDdecimal)));
+		}
+	}
+
+	@Benchmark
+	public long substitute() {
+		final StreamRDFCounting output = StreamRDFLib.count();
+		final Context context = ContextUtils.build().setGenerateOutput(output).build();
+		plan.exec(variables, values, context);
+		return output.count();
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.util.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunction;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionEnv;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionRegistry;
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * The parsing of documents by the iterator functions iter:CSV and
+ * iter:JSONPath, called with the document itself as a literal.
+ *
+ * @author Maxime Lefrançois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IteratorBenchmark extends BenchmarkBase {
+
+	private static final String MEDIA_TYPES = "https://www.iana.org/assignments/media-types/";
+
+	@Param({ "10", "1000", "100000" })
+	public int rows;
+
+	private IteratorFunction csv;
+
+	private ExprList csvArgs;
+
+	private IteratorFunction jsonPath;
+
+	private ExprList jsonPathArgs;
+
+	@Setup
+	public void setup() {
+		SPARQLExt.init();
+		csv = create(SPARQLExt.ITER + "CSV");
+		csvArgs = new ExprList();
+		csvArgs.add(document(Documents.csv(rows), "text/csv"));
+		csv.build(csvArgs);
+
+		jsonPath = create(SPARQLExt.ITER + "JSONPath");
+		jsonPathArgs = new ExprList();
+		jsonPathArgs.add(document(Documents.json(rows), "application/json"));
+		jsonPathArgs.add(NodeValue.makeString("$.places[*]"));
+		jsonPathArgs.add(NodeValue.makeString("$.name"));
+		jsonPathArgs.add(NodeValue.makeString("$.location.latitude"));
+		jsonPath.build(jsonPathArgs);
+	}
+
+	@Benchmark
+	public long csv() {
+		return exec(csv, csvArgs);
+	}
+
+	@Benchmark
+	public long jsonPath() {
+		return exec(jsonPath, jsonPathArgs);
+	}
+
+	private static IteratorFunction create(final String uri) {
+		return IteratorFunctionRegistry.get().get(uri).create(uri);
+	}
+
+	private static NodeValue document(final String document, final String mediaType) {
+		return NodeValue.makeNode(NodeFactory.createLiteral(document,
+				TypeMapper.getInstance().getSafeTypeByName(MEDIA_TYPES + mediaType)));
+	}
+
+	private static long exec(final IteratorFunction function, final ExprList args) {
+		final Context context = ContextUtils.build().build();
+		final long[] rows = new long[1];
+		function.exec(BindingFactory.empty(), args, new IteratorFunctionEnv(context, null),
+				(batch) -> rows[0] += batch.size());
+		return rows[0];
+	}
+
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.util.Context;
+
+import com.google.gson.Gson;
+
+import fr.mines_stetienne.ci.sparql_generate.FileConfigurations;
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.engine.PlanFactory;
+import fr.mines_stetienne.ci.sparql_generate.engine.RootPlan;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.stream.LocationMapperAccept;
+import fr.mines_stetienne.ci.sparql_generate.stream.LocatorFileAccept;
+import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
+import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * A mapping of the test corpus of the engine: a directory with a query, a
+ * configuration file, documents and graphs, loaded as the command line
+ * interface loads it.
+ * <p>
+ * The corpus is read from the directory given by the system property
+ * {@value #CORPUS_PROPERTY}, by default the test resources of the
+ * sparql-generate-jena module.
+ *
+ * @author Maxime Lefrançois
+ */
+public class Mapping implements AutoCloseable {
+
+	public static final String CORPUS_PROPERTY = "sparql-generate.corpus";
+
+	private static final String DEFAULT_CORPUS = "../sparql-generate-jena/src/test/resources/generate";
+
+	private static final String CONF_FILE = "sparql-generate-conf.json";
+
+	private final Path dir;
+
+	private final Path scaledDir;
+
+	private final FileConfigurations conf;
+
+	private final String query;
+
+	private final SPARQLExtStreamManager streamManager;
+
+	private final Dataset dataset;
+
+	private Mapping(final Path dir, final Path scaledDir) throws IOException {
+		this.dir = dir;
+		this.scaledDir = scaledDir;
+		final Path conf = dir.resolve(CONF_FILE);
+		if (Files.exists(conf)) {
+			this.conf = new Gson().fromJson(new String(Files.readAllBytes(conf), StandardCharsets.UTF_8),
+					FileConfigurations.class);
+		} else {
+			this.conf = new FileConfigurations();
+		}
+		query = new String(Files.readAllBytes(dir.resolve(this.conf.query)), StandardCharsets.UTF_8);
+		streamManager = makeStreamManager();
+		dataset = this.conf.loadDataset(dir.toFile());
+	}
+
+	/**
+	 * @return the directory of the corpus.
+	 */
+	public static Path getCorpus() {
+		return Paths.get(System.getProperty(CORPUS_PROPERTY, DEFAULT_CORPUS)).toAbsolutePath().normalize();
+	}
+
+	/**
+	 * @return the names of the mappings of the corpus that have a query.
+	 */
+	public static List<String> list() {
+		try (Stream<Path> dirs = Files.list(getCorpus())) {
+			return dirs.filter((d) -> Files.isRegularFile(d.resolve("query.rqg")))
+					.map((d) -> d.getFileName().toString()).sorted().collect(Collectors.toList());
+		} catch (IOException ex) {
+			throw new UncheckedIOException("Could not list the mappings of " + getCorpus(), ex);
+		}
+	}
+
+	/**
+	 * Loads a mapping of the corpus.
+	 *
+	 * @param name
+	 *            the name of the directory of the mapping.
+	 * @return the mapping.
+	 */
+	public static Mapping load(final String name) {
+		return load(name, 1);
+	}
+
+	/**
+	 * Loads a mapping of the corpus, whose documents are scaled up. The
+	 * directory of the mapping is copied to a temporary directory, where the
+	 * documents are scaled with {@link Documents#scale(Path, int)}.
+	 *
+	 * @param name
+	 *            the name of the directory of the mapping.
+	 * @param scale
+	 *            the number of times the records of the documents are
+	 *            repeated.
+	 * @return the mapping, that must be closed to delete the scaled
+	 *         documents.
+	 */
+	public static Mapping load(final String name, final int scale) {
+		final Path dir = getCorpus().resolve(name);
+		try {
+			if (scale <= 1) {
+				return new Mapping(dir, null);
+			}
+			final Path scaledDir = Files.createTempDirectory("sparql-generate-benchmark-");
+			try {
+				copy(dir, scaledDir);
+				final Mapping mapping = new Mapping(scaledDir, scaledDir);
+				for (FileConfigurations.NamedDocument doc : mapping.conf.documentset) {
+					Documents.scale(scaledDir.resolve(doc.path), scale);
+				}
+				return mapping;
+			} catch (IOException | RuntimeException ex) {
+				delete(scaledDir);
+				throw ex;
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException("Could not load the mapping " + dir, ex);
+		}
+	}
+
+	public String getQueryString() {
+		return query;
+	}
+
+	public String getBase() {
+		return conf.base;
+	}
+
+	public SPARQLExtStreamManager getStreamManager() {
+		return streamManager;
+	}
+
+	public Dataset getDataset() {
+		return dataset;
+	}
+
+	/**
+	 * @return the query, parsed.
+	 */
+	public SPARQLExtQuery parse() {
+		final SPARQLExtQuery q = (SPARQLExtQuery) QueryFactory.create(query, conf.base, SPARQLExt.SYNTAX);
+		if (!q.explicitlySetBaseURI()) {
+			q.setBaseURI(conf.base);
+		}
+		return q;
+	}
+
+	/**
+	 * @return the plan of the query.
+	 */
+	public RootPlan plan() {
+		return PlanFactory.create(parse());
+	}
+
+	/**
+	 * Creates the context of an execution of the mapping.
+	 *
+	 * @param query
+	 *            the query.
+	 * @param output
+	 *            the output of GENERATE queries, or null.
+	 * @return the context.
+	 */
+	public Context newContext(final SPARQLExtQuery query, final StreamRDF output) {
+		final ContextUtils.Builder builder = ContextUtils.build().setBase(conf.base).setPrefixMapping(query)
+				.setInputDataset(dataset).setStreamManager(streamManager);
+		if (output != null) {
+			builder.setGenerateOutput(output);
+		}
+		return builder.build();
+	}
+
+	private SPARQLExtStreamManager makeStreamManager() throws IOException {
+		final LocatorFileAccept locator = new LocatorFileAccept(dir.toUri().getPath());
+		final LocationMapperAccept mapper = new LocationMapperAccept();
+		final SPARQLExtStreamManager sm = SPARQLExtStreamManager.makeStreamManager(locator);
+		sm.setLocationMapper(mapper);
+		for (FileConfigurations.NamedQuery doc : conf.namedqueries) {
+			mapper.addAltEntry(new LookUpRequest(doc.uri, doc.mediatype), new LookUpRequest(doc.path));
+		}
+		for (FileConfigurations.NamedDocument doc : conf.documentset) {
+			mapper.addAltEntry(new LookUpRequest(doc.uri, doc.mediatype), new LookUpRequest(doc.path));
+		}
+		for (FileConfigurations.NamedGraph doc : conf.namedgraphs) {
+			mapper.addAltEntry(new LookUpRequest(doc.uri, Lang.TTL.getContentType().getContentTypeStr()),
+					new LookUpRequest(doc.path));
+		}
+		if (conf.base != null) {
+			try (Stream<Path> files = Files.walk(dir)) {
+				files.filter(Files::isRegularFile).forEach((p) -> {
+					final String relativePath = dir.relativize(p).toString();
+					mapper.addAltEntry(conf.base + relativePath.replace(File.separator, "/"), p.toString());
+				});
+			}
+		}
+		return sm;
+	}
+
+	private static void copy(final Path from, final Path to) throws IOException {
+		final List<Path> paths;
+		try (Stream<Path> files = Files.walk(from)) {
+			paths = files.collect(Collectors.toList());
+		}
+		for (Path path : paths) {
+			final Path target = to.resolve(from.relativize(path).toString());
+			if (Files.isDirectory(path)) {
+				Files.createDirectories(target);
+			} else {
+				Files.copy(path, target);
+			}
+		}
+	}
+
+	private static void delete(final Path dir) throws IOException {
+		final List<Path> paths;
+		try (Stream<Path> files = Files.walk(dir)) {
+			paths = files.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+		}
+		for (Path path : paths) {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * Deletes the scaled documents, if any.
+	 */
+	@Override
+	public void close() {
+		if (scaledDir != null) {
+			try {
+				delete(scaledDir);
+			} catch (IOException ex) {
+				throw new UncheckedIOException("Could not delete " + scaledDir, ex);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.mines_stetienne.ci.sparql_generate.engine.PlanFactory;
+import fr.mines_stetienne.ci.sparql_generate.engine.RootPlan;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+
+/**
+ * The construction of the plans of the queries of the corpus: parsing the
+ * query, and creating the plan from the parsed query.
+ *
+ * @author Maxime Lefrançois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlanBenchmark extends BenchmarkBase {
+
+	@Param({ "bnode", "bnode2", "capital-local", "capital", "capital2", "cborvenueeg1", "cborvenueeg2", "chargingplan",
+			"chargingplan2", "cordis", "csvmultiline", "csvstream", "customcsveg1", "generatelistjson",
+			"generatelistjson2", "geojsontest1", "geojsontest2", "htmltag", "htmltest1", "jose", "list", "poptest",
+			"regexeg1", "regexeg2", "rmlLanguageMap", "rmlproeg1", "rmlproeg1small", "rmlproeg2", "rmlproeg3",
+			"rmlproeg4", "rmlproeg5", "rmlproeg6", "rmlproeg7", "rmlproeg8", "rmlproeg9", "rmlproegcsvw", "rmlspeceg1",
+			"rmlspeceg2", "rmlspeceg3", "rmlspeceg4", "simplecsv", "simplecsvwnoheader", "simplecsvwwithheader",
+			"xsparql1" })
+	public String mapping;
+
+	private Mapping loaded;
+
+	private SPARQLExtQuery query;
+
+	@Setup
+	public void setup() {
+		loaded = Mapping.load(mapping);
+		query = loaded.parse();
+	}
+
+	@Benchmark
+	public SPARQLExtQuery parse() {
+		return loaded.parse();
+	}
+
+	@Benchmark
+	public RootPlan plan() {
+		return PlanFactory.create(query);
+	}
+
+	@Benchmark
+	public RootPlan parseAndPlan() {
+		return loaded.plan();
+	}
+
+}
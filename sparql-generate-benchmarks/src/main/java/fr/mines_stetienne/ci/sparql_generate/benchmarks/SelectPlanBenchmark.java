@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.util.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.engine.SelectPlan;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * The execution of the SELECT part of a query for a batch of bindings, that
+ * are injected in the query as a VALUES block, or as the parameters of the
+ * prepared query.
+ *
+ * @author Maxime Lefrançois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectPlanBenchmark extends BenchmarkBase {
+
+	private static final String EX = "http://example.org/";
+
+	private static final Var S = Var.alloc("s");
+
+	@Param({ "1", "100", "10000" })
+	public int bindings;
+
+	@Param({ "false", "true" })
+	public boolean prepared;
+
+	private SelectPlan plan;
+
+	private List<Var> variables;
+
+	private List<Binding> values;
+
+	private Dataset dataset;
+
+	@Setup
+	public void setup() {
+		final SPARQLExtQuery query = (SPARQLExtQuery) QueryFactory
+				.create("SELECT ?s ?o WHERE { ?s <" + EX + "p> ?o }", SPARQLExt.SYNTAX);
+		plan = new SelectPlan(query, false, null);
+		variables = Collections.singletonList(S);
+		values = new ArrayList<>(bindings);
+		final Model model = ModelFactory.createDefaultModel();
+		for (int i = 0; i < bindings; i++) {
+			final Node s = NodeFactory.createURI(EX + "s/" + i);
+			values.add(BindingFactory.binding(S, s));
+			model.add(model.createResource(s.getURI()), model.createProperty(EX + "p"), "o" + i);
+			model.add(model.createResource(EX + "other/" + i), model.createProperty(EX + "p"), "other" + i);
+		}
+		dataset = DatasetFactory.create(model);
+	}
+
+	@Benchmark
+	public long select() {
+		final Context context = ContextUtils.build().setInputDataset(dataset).setPreparedSelect(prepared).build();
+		final long[] rows = new long[1];
+		plan.exec(variables, values, context, (resultSet) -> rows[0] += ResultSetFormatter.consume(resultSet));
+		return rows[0];
+	}
+
+}
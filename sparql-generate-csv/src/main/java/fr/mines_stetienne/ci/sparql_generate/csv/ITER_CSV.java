@@ -16,9 +16,11 @@
 package fr.mines_stetienne.ci.sparql_generate.csv;
 
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.iterator.BatchSizer;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorStreamFunctionBase;
 import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
 import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
+import fr.mines_stetienne.ci.sparql_generate.stream.SpooledDocument;
 import com.univocity.parsers.common.ParsingContext;
 import com.univocity.parsers.common.processor.AbstractRowProcessor;
 import com.univocity.parsers.common.processor.core.Processor;
@@ -70,7 +72,8 @@ import org.apache.jena.riot.SysRIOT;
  * );</li>
  * </ul>
  * <li>(integer: batch) Optional number of rows per batch (by default, all the
- * CSV document is processed as one batch);</li>
+ * CSV document is processed as one batch, unless the engine is set to choose
+ * the size of the batches);</li>
  * <li>(string parameters: names) Names of the columns to select (by default,
  * all the columns are selected).</li>
  * </ul>
@@ -126,7 +129,9 @@ public class ITER_CSV extends IteratorStreamFunctionBase {
             LOG.debug("Must have at leat one argument");
             throw new ExprEvalException("Must have at leat one argument");
         }
-        LOG.trace("Executing CSV with variables " + args);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Executing CSV with variables " + args);
+        }
         final NodeValue csv = args.remove(0);
         if(csv == null) {
         	String msg = "No CSV provided";
@@ -173,6 +178,7 @@ public class ITER_CSV extends IteratorStreamFunctionBase {
             rowsInABatch = 0;
             LOG.trace("  As one batch");
         }
+        final BatchSizer batchSizer = rowsInABatch > 0 ? null : getBatchSizer();
 
         final Processor processor = new AbstractRowProcessor() {
             private int rowsInThisBatch = 0;
@@ -198,7 +204,8 @@ public class ITER_CSV extends IteratorStreamFunctionBase {
                 nodeValues.add(list);
                 rowsInThisBatch++;
                 total++;
-                if (rowsInABatch > 0 && rowsInThisBatch >= rowsInABatch) {
+                if (rowsInABatch > 0 && rowsInThisBatch >= rowsInABatch
+                        || batchSizer != null && rowsInThisBatch >= batchSizer.getBatchSize()) {
                     LOG.trace("New batch of " + rowsInThisBatch + " rows, " + total + " total");
                     send();
                     rowsInThisBatch = 0;
@@ -224,7 +231,7 @@ public class ITER_CSV extends IteratorStreamFunctionBase {
         if (csv.isString()) {
             return IOUtils.toInputStream(csv.asString(), StandardCharsets.UTF_8);
         } else if (csv.isLiteral() && csv.asNode().getLiteralDatatypeURI().startsWith("https://www.iana.org/assignments/media-types/")) {
-            return IOUtils.toInputStream(csv.asNode().getLiteralLexicalForm(), StandardCharsets.UTF_8);
+            return SpooledDocument.open(csv.asNode());
         } else if (csv.isIRI()) {
             String csvPath = csv.asNode().getURI();
             LookUpRequest req = new LookUpRequest(csvPath, "text/csv");
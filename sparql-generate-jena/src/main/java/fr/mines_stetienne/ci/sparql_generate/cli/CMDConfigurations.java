@@ -154,6 +154,20 @@ public class CMDConfigurations {
 	/** Just validate the query, do nothing else */
 	public static final String ARG_SYNTAX_MAN = "Just validate the query, do nothing else.";
 
+	/** pc */
+	public static final String ARG_PLAN_CACHE = "pc";
+	/** plan-cache */
+	public static final String ARG_PLAN_CACHE_LONG = "plan-cache";
+	/** Directory where the normalized queries are cached across executions */
+	public static final String ARG_PLAN_CACHE_MAN = "Directory where the normalized form of the named queries is cached across executions.";
+
+	/** pf */
+	public static final String ARG_PROFILE = "pf";
+	/** profile */
+	public static final String ARG_PROFILE_LONG = "profile";
+	/** Print the plan tree annotated with the execution profile */
+	public static final String ARG_PROFILE_MAN = "Profile the execution: print to the standard error the plan tree of the queries and sub-queries, annotated with the invocations, time, bindings in and out, bytes fetched and cache hits of each node.";
+
 	public static CommandLine parseArguments(String[] args) throws ParseException {
 		DefaultParser commandLineParser = new DefaultParser();
 		CommandLine cl = commandLineParser.parse(getCMDOptions(), args);
@@ -180,6 +194,8 @@ public class CMDConfigurations {
 				.addOption(ARG_BASE, ARG_BASE_LONG, true, ARG_BASE_MAN)
 				.addOption(ARG_DEBUG_TEMPLATE, ARG_DEBUG_TEMPLATE_LONG, false, ARG_DEBUG_TEMPLATE_MAN)
 				.addOption(ARG_SYNTAX, ARG_SYNTAX_LONG, false, ARG_SYNTAX_MAN)
+				.addOption(ARG_PLAN_CACHE, ARG_PLAN_CACHE_LONG, true, ARG_PLAN_CACHE_MAN)
+				.addOption(ARG_PROFILE, ARG_PROFILE_LONG, false, ARG_PROFILE_MAN)
 				.addOption(sourcesOpt)
 				.addOption(bindingsOpt);
 	}
@@ -31,4 +31,14 @@ public class CliRequest extends FileConfigurations {
 	 * The log level as an object
 	 */
     public Level logLevelObject;
+
+	/**
+	 * The directory of the persistent cache of normalized queries, or null
+	 */
+    public String planCache;
+
+	/**
+	 * Whether the execution is profiled
+	 */
+    public boolean profile;
 }
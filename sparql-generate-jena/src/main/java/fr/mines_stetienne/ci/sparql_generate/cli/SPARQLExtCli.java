@@ -26,6 +26,8 @@ import static fr.mines_stetienne.ci.sparql_generate.cli.CMDConfigurations.ARG_LO
 import static fr.mines_stetienne.ci.sparql_generate.cli.CMDConfigurations.ARG_OUTPUT;
 import static fr.mines_stetienne.ci.sparql_generate.cli.CMDConfigurations.ARG_OUTPUT_APPEND;
 import static fr.mines_stetienne.ci.sparql_generate.cli.CMDConfigurations.ARG_OUTPUT_FORMAT;
+import static fr.mines_stetienne.ci.sparql_generate.cli.CMDConfigurations.ARG_PLAN_CACHE;
+import static fr.mines_stetienne.ci.sparql_generate.cli.CMDConfigurations.ARG_PROFILE;
 import static fr.mines_stetienne.ci.sparql_generate.cli.CMDConfigurations.ARG_QUERY;
 import static fr.mines_stetienne.ci.sparql_generate.cli.CMDConfigurations.ARG_SOURCE_LONG;
 import static fr.mines_stetienne.ci.sparql_generate.cli.CMDConfigurations.ARG_STREAM;
@@ -88,6 +90,7 @@ import com.google.gson.JsonSyntaxException;
 import fr.mines_stetienne.ci.sparql_generate.FileConfigurations;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+import fr.mines_stetienne.ci.sparql_generate.engine.ExecutionProfile;
 import fr.mines_stetienne.ci.sparql_generate.engine.PlanFactory;
 import fr.mines_stetienne.ci.sparql_generate.engine.RootPlan;
 import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
@@ -223,6 +226,13 @@ public class SPARQLExtCli {
 		// prepare context
 		final ContextUtils.Builder contextBuilder = ContextUtils.build().setBase(rq.base).setPrefixMapping(q)
 				.setInputDataset(ds).setStreamManager(sm).setDebugTemplate(rq.debugTemplate);
+		if (rq.planCache != null) {
+			contextBuilder.setPlanCache(Paths.get(rq.planCache));
+		}
+		final ExecutionProfile profile = rq.profile ? new ExecutionProfile() : null;
+		if (profile != null) {
+			contextBuilder.setProfile(profile);
+		}
 		
 		// prepare initial binding
 		List<Binding> bindings = getBinding(cl);
@@ -260,6 +270,10 @@ public class SPARQLExtCli {
 		} else {
 			LOG.error("Error: unsupported query type");
 		}
+		if (profile != null) {
+			// whatever the level of the logs
+			System.err.println(profile);
+		}
 	}
 
 	private static List<Binding> getBinding(CommandLine cl) {
@@ -536,6 +550,8 @@ public class SPARQLExtCli {
 		request.stream = cl.hasOption(ARG_STREAM) || request.stream;
 		request.hdt = cl.hasOption(ARG_HDT) || request.hdt;
 		request.debugTemplate = cl.hasOption(ARG_DEBUG_TEMPLATE) || request.debugTemplate;
+		request.planCache = cl.getOptionValue(ARG_PLAN_CACHE, request.planCache);
+		request.profile = cl.hasOption(ARG_PROFILE) || request.profile;
 		if (request.logFile != null) {
 			request.logFile = new File(dirFile, cl.getOptionValue(ARG_LOG_FILE, request.logFile)).getAbsolutePath();
 		}
@@ -46,6 +46,31 @@ public abstract class BindOrSourcePlan implements BindingsClausePlan {
     final public List<Binding> exec(
             final List<Binding> values,
             final Context context) {
+        final ExecutionProfile.PlanNode profileNode = ExecutionProfile.getNode(context, this);
+        final ExecutionProfile.Timer timer = ExecutionProfile.start(profileNode, values.size());
+        try {
+            final List<Binding> result = execBatch(values, context);
+            if (profileNode != null) {
+                profileNode.addRowsOut(result.size());
+            }
+            return result;
+        } finally {
+            if (timer != null) {
+                timer.close();
+            }
+        }
+    }
+
+    /**
+     * Updates the values block, one binding at a time by default.
+     * @param values the values.
+     * @param context the execution context.
+     * 
+     * @return the new binding
+     */
+    protected List<Binding> execBatch(
+            final List<Binding> values,
+            final Context context) {
         return values
                 .stream()
                 .map((binding) -> exec(binding, context))
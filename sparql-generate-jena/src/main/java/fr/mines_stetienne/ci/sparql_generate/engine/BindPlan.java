@@ -15,8 +15,11 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.engine;
 
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
+import fr.mines_stetienne.ci.sparql_generate.utils.NodeDictionary;
 import java.util.Objects;
+import org.apache.jena.graph.Node;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.NodeValue;
@@ -24,7 +27,6 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 import org.apache.jena.sparql.ARQConstants;
 import org.apache.jena.sparql.engine.binding.Binding;
-import org.apache.jena.sparql.engine.binding.BindingFactory;
 import org.apache.jena.sparql.expr.ExprEvalException;
 import org.apache.jena.sparql.function.FunctionEnv;
 import org.apache.jena.sparql.function.FunctionEnvBase;
@@ -75,7 +77,9 @@ public class BindPlan extends BindOrSourcePlan {
             if (LOG.isTraceEnabled()) {
                 LOG.trace("New binding " + var + " = " + LogUtils.compress(n.asNode()));
             }
-            return BindingFactory.binding(binding, var, n.asNode());
+            final NodeDictionary dictionary = ContextUtils.getNodeDictionary(context);
+            final Node node = dictionary != null ? dictionary.intern(n.asNode()) : n.asNode();
+            return SlotBinding.extend(binding, var, node);
         } catch(ExprEvalException ex) {
             LOG.trace("No evaluation for " + this + " " + ex.getMessage());
             return binding;
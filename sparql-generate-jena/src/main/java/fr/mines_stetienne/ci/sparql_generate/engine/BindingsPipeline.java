@@ -0,0 +1,308 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.util.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * Pull-based execution of the ITERATOR, SOURCE, and BIND clauses.
+ * <p>
+ * Each clause is a cursor that lazily pulls batches of bindings from its
+ * predecessor. ITERATOR clauses are executed ahead on the pipeline pool of the
+ * execution, and hand their batches over through a bounded buffer, so that a
+ * fast iterator cannot run arbitrarily far ahead of the clauses that consume
+ * its output. If all the threads of the pool are busy, the ITERATOR clause is
+ * executed in the thread of its consumer, one upstream batch at a time.
+ * Batches are the same as those of the recursive execution in
+ * {@link RootPlan}.
+ */
+class BindingsPipeline implements Iterator<List<Binding>>, AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BindingsPipeline.class);
+
+	private final Cursor last;
+
+	/**
+	 * Creates the pipeline for the given clauses.
+	 *
+	 * @param plans
+	 *            the ITERATOR, SOURCE, and BIND plans, in order.
+	 * @param variables
+	 *            the variables of the initial bindings. The variables bound by
+	 *            the plans are added to this list.
+	 * @param values
+	 *            the initial bindings.
+	 * @param context
+	 *            the execution context.
+	 * @param bufferSize
+	 *            the maximal number of batches buffered after each ITERATOR
+	 *            clause.
+	 */
+	BindingsPipeline(final List<BindingsClausePlan> plans, final List<Var> variables, final List<Binding> values,
+			final Context context, final int bufferSize) {
+		Cursor cursor = new ValuesCursor(values);
+		for (BindingsClausePlan plan : plans) {
+			if (plan instanceof BindOrSourcePlan) {
+				final BindOrSourcePlan bindOrSourcePlan = (BindOrSourcePlan) plan;
+				variables.add(bindOrSourcePlan.getVar());
+				cursor = new BindOrSourceCursor(cursor, bindOrSourcePlan, context);
+			} else {
+				final IteratorPlan iteratorPlan = (IteratorPlan) plan;
+				cursor = new IteratorCursor(cursor, iteratorPlan, variables, context, bufferSize);
+				variables.addAll(iteratorPlan.getVars());
+			}
+		}
+		last = cursor;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return last.hasNext();
+	}
+
+	@Override
+	public List<Binding> next() {
+		return last.next();
+	}
+
+	@Override
+	public void close() {
+		last.close();
+	}
+
+	private static abstract class Cursor implements Iterator<List<Binding>>, AutoCloseable {
+
+		@Override
+		public abstract void close();
+
+	}
+
+	private static class ValuesCursor extends Cursor {
+
+		private List<Binding> values;
+
+		ValuesCursor(final List<Binding> values) {
+			this.values = values;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return values != null;
+		}
+
+		@Override
+		public List<Binding> next() {
+			if (values == null) {
+				throw new NoSuchElementException();
+			}
+			final List<Binding> next = values;
+			values = null;
+			return next;
+		}
+
+		@Override
+		public void close() {
+			values = null;
+		}
+
+	}
+
+	private static class BindOrSourceCursor extends Cursor {
+
+		private final Cursor upstream;
+		private final BindOrSourcePlan plan;
+		private final Context context;
+
+		BindOrSourceCursor(final Cursor upstream, final BindOrSourcePlan plan, final Context context) {
+			this.upstream = upstream;
+			this.plan = plan;
+			this.context = context;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return upstream.hasNext();
+		}
+
+		@Override
+		public List<Binding> next() {
+			return plan.exec(upstream.next(), context);
+		}
+
+		@Override
+		public void close() {
+			upstream.close();
+		}
+
+	}
+
+	private static class IteratorCursor extends Cursor {
+
+		private static final Object END = new Object();
+
+		private final Cursor upstream;
+		private final IteratorPlan plan;
+		private final List<Var> variables;
+		private final Context context;
+		private final BlockingQueue<Object> buffer;
+		private Future<?> producer;
+		private Deque<List<Binding>> pending;
+		private List<Binding> next;
+		private boolean done = false;
+
+		IteratorCursor(final Cursor upstream, final IteratorPlan plan, final List<Var> variables,
+				final Context context, final int bufferSize) {
+			this.upstream = upstream;
+			this.plan = plan;
+			this.variables = variables;
+			this.context = context;
+			this.buffer = new ArrayBlockingQueue<>(Math.max(1, bufferSize));
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next != null) {
+				return true;
+			}
+			if (done) {
+				return false;
+			}
+			if (producer == null && pending == null) {
+				start();
+			}
+			if (pending != null) {
+				return pull();
+			}
+			final Object o;
+			try {
+				o = buffer.take();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new SPARQLExtException(ex);
+			}
+			if (o == END) {
+				done = true;
+				return false;
+			}
+			if (o instanceof Throwable) {
+				done = true;
+				if (o instanceof RuntimeException) {
+					throw (RuntimeException) o;
+				}
+				if (o instanceof Error) {
+					throw (Error) o;
+				}
+				throw new SPARQLExtException((Throwable) o);
+			}
+			@SuppressWarnings("unchecked")
+			final List<Binding> batch = (List<Binding>) o;
+			next = batch;
+			return true;
+		}
+
+		@Override
+		public List<Binding> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final List<Binding> batch = next;
+			next = null;
+			return batch;
+		}
+
+		/**
+		 * Runs the ITERATOR clause ahead on the pipeline pool, or in the
+		 * thread of the consumer if the pool has no thread available.
+		 */
+		private void start() {
+			final ExecutorService pool = ContextUtils.getPipelinePool(context);
+			if (pool != null) {
+				try {
+					producer = pool.submit(this::produce);
+					return;
+				} catch (RejectedExecutionException ex) {
+					LOG.debug("No thread available for " + plan + ", executing it in the consumer thread");
+				}
+			}
+			pending = new ArrayDeque<>();
+		}
+
+		private boolean pull() {
+			while (pending.isEmpty() && upstream.hasNext()) {
+				plan.exec(variables, upstream.next(), context, pending::add);
+			}
+			next = pending.poll();
+			done = next == null;
+			return !done;
+		}
+
+		private void produce() {
+			Object last = END;
+			try {
+				while (!Thread.currentThread().isInterrupted() && upstream.hasNext()) {
+					plan.exec(variables, upstream.next(), context, this::put);
+				}
+			} catch (Throwable ex) {
+				last = ex;
+			}
+			try {
+				buffer.put(last);
+			} catch (InterruptedException ex) {
+				LOG.trace("Pipeline interrupted for " + plan);
+			}
+		}
+
+		private void put(List<Binding> batch) {
+			try {
+				buffer.put(batch);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new SPARQLExtException(ex);
+			}
+		}
+
+		@Override
+		public void close() {
+			done = true;
+			if (producer != null) {
+				producer.cancel(true);
+			}
+			pending = null;
+			upstream.close();
+		}
+
+	}
+
+}
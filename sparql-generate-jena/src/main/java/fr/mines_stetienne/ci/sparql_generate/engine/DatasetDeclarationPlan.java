@@ -1,17 +1,18 @@
 package fr.mines_stetienne.ci.sparql_generate.engine;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import org.apache.jena.graph.Graph;
-import org.apache.jena.graph.GraphUtil;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.compose.MultiUnion;
 import org.apache.jena.irix.IRIs;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.DatasetFactory;
-import org.apache.jena.riot.system.StreamRDF;
-import org.apache.jena.riot.system.StreamRDFLib;
 import org.apache.jena.sparql.core.DatasetGraph;
 import org.apache.jena.sparql.core.DatasetGraphFactory;
 /*
@@ -35,7 +36,7 @@ import org.apache.jena.sparql.expr.ExprEvalException;
 import org.apache.jena.sparql.expr.NodeValue;
 import org.apache.jena.sparql.function.FunctionEnv;
 import org.apache.jena.sparql.function.FunctionEnvBase;
-import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.sparql.graph.GraphReadOnly;
 import org.apache.jena.sparql.util.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -75,27 +76,47 @@ public class DatasetDeclarationPlan {
 		this.fromClauses = query.getFromClauses();
 	}
 
+	/**
+	 * @return true if the dataset does not depend on the binding it is
+	 *         prepared for.
+	 */
+	final boolean isBindingIndependent() {
+		if (fromClauses == null) {
+			return true;
+		}
+		return fromClauses.stream()
+				.allMatch((fromClause) -> fromClause.getGenerate() == null && fromClause.getName().isConstant());
+	}
+
+	/**
+	 * Prepares the dataset of the FROM clauses. The graphs are not copied: the
+	 * dataset is made of read-only views of the graphs of the input dataset,
+	 * of the graphs parsed from documents, and of the graphs generated by the
+	 * FROM GENERATE clauses. Graphs declared several times for the default
+	 * graph or a named graph are seen through a union view.
+	 */
 	protected final Context prepareDataset(Binding binding, Context context) {
 		if (fromClauses == null || fromClauses.isEmpty()) {
 			return context;
 		}
-		final DatasetGraph dsg = DatasetGraphFactory.createGeneral();
+		final List<Graph> defaultGraphs = new ArrayList<>();
+		final Map<Node, List<Graph>> namedGraphs = new LinkedHashMap<>();
 		fromClauses.forEach((fromClause) -> {
+			final Graph graph;
 			if (fromClause.getGenerate() == null) {
-				if (!fromClause.isNamed()) {
-					addDefaultGraph(binding, context, dsg, fromClause.getName());
-				} else {
-					addNamedGraph(binding, context, dsg, fromClause.getName());
-				}
+				graph = getGraph(binding, context, fromClause.getName());
 			} else {
-				SPARQLExtQuery generate = fromClause.getGenerate();
-				if (!fromClause.isNamed()) {
-					addDefaultGraph(binding, context, dsg, generate);
-				} else {
-					addNamedGraph(binding, context, dsg, generate, fromClause.getName());
-				}
+				graph = generateGraph(binding, context, fromClause.getGenerate());
+			}
+			if (!fromClause.isNamed()) {
+				defaultGraphs.add(graph);
+			} else {
+				final String absURI = baseURI(evalSourceURI(binding, context, fromClause.getName()), baseURI);
+				namedGraphs.computeIfAbsent(NodeFactory.createURI(absURI), (n) -> new ArrayList<>()).add(graph);
 			}
 		});
+		final DatasetGraph dsg = DatasetGraphFactory.create(union(defaultGraphs));
+		namedGraphs.forEach((n, graphs) -> dsg.addGraph(n, union(graphs)));
 		Dataset newDataset = DatasetFactory.wrap(dsg);
 		return ContextUtils.fork(context).setDataset(newDataset).fork();
 	}
@@ -104,61 +125,33 @@ public class DatasetDeclarationPlan {
 		if (absBaseURI == null) {
 			return IRIs.resolve(sourceURI);
 		} else {
-			return IRIs.resolve(sourceURI, absBaseURI);
+			return IRIs.resolve(absBaseURI, sourceURI);
 		}
 	}
 
-	private void addDefaultGraph(Binding binding, Context context, DatasetGraph dsg, Expr sourceExpr) {
+	private Graph getGraph(Binding binding, Context context, Expr sourceExpr) {
 		String sourceURI = evalSourceURI(binding, context, sourceExpr);
 		final String absURI = baseURI(sourceURI, baseURI);
 		// default: check the dataset
 		Dataset dataset = ContextUtils.getDataset(context);
 		if (dataset.containsNamedModel(absURI)) {
-//			Node n = NodeFactory.createURI(absURI);
-			Graph g = dataset.getNamedModel(absURI).getGraph();
-			GraphUtil.addInto(dsg.getDefaultGraph(), g);
-			return;
+			return dataset.getNamedModel(absURI).getGraph();
 		}
 		// fallback: load as RDF graph
-		StreamRDF dest = StreamRDFLib.graph(dsg.getDefaultGraph());
-		ContextUtils.loadGraph(context, sourceURI, absURI, dest);
+		return ContextUtils.getGraph(context, sourceURI, absURI);
 	}
 
-	private void addNamedGraph(Binding binding, Context context, DatasetGraph dsg, Expr sourceExpr) {
-		String sourceURI = evalSourceURI(binding, context, sourceExpr);
-		final String absURI = baseURI(sourceURI, baseURI);
-		Dataset dataset = ContextUtils.getDataset(context);
-		Node n = NodeFactory.createURI(absURI);
-		Graph g = dsg.getGraph(n);
-		if (g == null) {
-			g = GraphFactory.createJenaDefaultGraph();
-			dsg.addGraph(n, g);
-		}
-		// default: check the dataset
-		if (dataset.containsNamedModel(absURI)) {
-			Graph dg = dataset.getNamedModel(absURI).getGraph();
-			GraphUtil.addInto(g, dg);
-			return;
-		}
-		// fallback: load as RDF graph
-		StreamRDF dest = StreamRDFLib.graph(g);
-		ContextUtils.loadGraph(context, sourceURI, absURI, dest);
-	}
-
-	private void addDefaultGraph(Binding binding, Context context, DatasetGraph dsg, SPARQLExtQuery generate) {
-		loadGraph(binding, context, generate, dsg.getDefaultGraph());
-	}
-
-	private void addNamedGraph(Binding binding, Context context, DatasetGraph dsg, SPARQLExtQuery generate, Expr name) {
-		String sourceURI = evalSourceURI(binding, context, name);
-		final String absURI = baseURI(sourceURI, baseURI);
-		Node n = NodeFactory.createURI(absURI);
-		Graph g = dsg.getGraph(n);
-		if (g == null) {
-			g = GraphFactory.createJenaDefaultGraph();
-			dsg.addGraph(n, g);
+	/**
+	 * @return a read-only view of the union of the graphs.
+	 */
+	private static Graph union(List<Graph> graphs) {
+		if (graphs.isEmpty()) {
+			return Graph.emptyGraph;
+		} else if (graphs.size() == 1) {
+			return new GraphReadOnly(graphs.get(0));
+		} else {
+			return new GraphReadOnly(new MultiUnion(graphs.toArray(new Graph[graphs.size()])));
 		}
-		loadGraph(binding, context, generate, g);
 	}
 
 	private String evalSourceURI(Binding binding, Context context, Expr sourceExpr) {
@@ -177,10 +170,11 @@ public class DatasetDeclarationPlan {
 		}
 	}
 
-	private void loadGraph(Binding binding, Context context, SPARQLExtQuery generate, Graph graph) {
+	/**
+	 * Generates the graph of a FROM GENERATE clause.
+	 */
+	private Graph generateGraph(Binding binding, Context context, SPARQLExtQuery generate) {
 		QueryExecutor queryExecutor = ContextUtils.getQueryExecutor(context);
-		StreamRDF dest = StreamRDFLib.graph(graph);
-		Context newContext = ContextUtils.fork(context).setGenerateOutput(dest).fork();
-		queryExecutor.execGenerateFromQuery(generate, binding, newContext);
+		return queryExecutor.execGenerateGraphFromQuery(generate, binding, context);
 	}
 }
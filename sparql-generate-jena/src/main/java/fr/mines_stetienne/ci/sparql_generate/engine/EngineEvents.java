@@ -0,0 +1,158 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Java Flight Recorder events emitted by the engine, in category
+ * SPARQL-Generate:
+ * <ul>
+ * <li>{@link IteratorBatchEvent}, for each batch of bindings an ITERATOR
+ * clause emits;</li>
+ * <li>{@link SourceFetchEvent}, for each document a SOURCE clause fetches;</li>
+ * <li>{@link SelectEvent}, for each execution of the SELECT part of a
+ * query;</li>
+ * <li>{@link SubQueryEvent}, for each call of a sub-query.</li>
+ * </ul>
+ * The events are disabled by default. The state of each event type is then
+ * checked once per batch, document, or call, and no event is allocated.
+ * Enable them in the settings of a recording, for example in JDK Mission
+ * Control, in a .jfc file, or with {@code jdk.jfr.Recording#enable(Class)}.
+ * On a Java runtime without the
+ * {@code jdk.jfr} module, no event is emitted. Compiling this class needs
+ * the {@code jdk.jfr} API, of JDK 11 or later.
+ *
+ * @author Maxime Lefrançois
+ */
+public final class EngineEvents {
+
+	private static final Logger LOG = LoggerFactory.getLogger(EngineEvents.class);
+
+	public static final String CATEGORY = "SPARQL-Generate";
+
+	/**
+	 * If the flight recorder is available on this runtime. The event classes
+	 * must not be loaded otherwise, not even through a class literal.
+	 */
+	private static final boolean AVAILABLE = register();
+
+	private static final EventType ITERATOR_BATCH = AVAILABLE ? getEventType(IteratorBatchEvent.class) : null;
+
+	private static final EventType SOURCE_FETCH = AVAILABLE ? getEventType(SourceFetchEvent.class) : null;
+
+	private static final EventType SELECT = AVAILABLE ? getEventType(SelectEvent.class) : null;
+
+	private static final EventType SUB_QUERY = AVAILABLE ? getEventType(SubQueryEvent.class) : null;
+
+	private EngineEvents() {
+	}
+
+	/**
+	 * @return the type of the events of a class, or null if they cannot be
+	 *         emitted. The state of a type follows the running recordings.
+	 */
+	private static EventType getEventType(final Class<? extends Event> eventClass) {
+		try {
+			return EventType.getEventType(eventClass);
+		} catch (RuntimeException ex) {
+			LOG.warn("Could not get the type of " + eventClass.getSimpleName() + ", it will not be emitted.", ex);
+			return null;
+		}
+	}
+
+	private static boolean isEnabled(final EventType type) {
+		return type != null && type.isEnabled();
+	}
+
+	private static boolean register() {
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+		} catch (ClassNotFoundException | LinkageError ex) {
+			LOG.debug("The flight recorder is not available, no event will be emitted.");
+			return false;
+		}
+		try {
+			// so that the events can be enabled before the engine emits them
+			FlightRecorder.register(IteratorBatchEvent.class);
+			FlightRecorder.register(SourceFetchEvent.class);
+			FlightRecorder.register(SelectEvent.class);
+			FlightRecorder.register(SubQueryEvent.class);
+			return true;
+		} catch (RuntimeException | LinkageError ex) {
+			LOG.warn("Could not register the flight recorder events, no event will be emitted.", ex);
+			return false;
+		}
+	}
+
+	/**
+	 * @return the event of a batch of an ITERATOR clause, begun, or null if it
+	 *         is not enabled.
+	 */
+	static IteratorBatchEvent beginIteratorBatch() {
+		if (!isEnabled(ITERATOR_BATCH)) {
+			return null;
+		}
+		final IteratorBatchEvent event = new IteratorBatchEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @return the event of a document fetched by a SOURCE clause, begun, or
+	 *         null if it is not enabled.
+	 */
+	static SourceFetchEvent beginSourceFetch() {
+		if (!isEnabled(SOURCE_FETCH)) {
+			return null;
+		}
+		final SourceFetchEvent event = new SourceFetchEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @return the event of the execution of a SELECT part, begun, or null if
+	 *         it is not enabled.
+	 */
+	static SelectEvent beginSelect() {
+		if (!isEnabled(SELECT)) {
+			return null;
+		}
+		final SelectEvent event = new SelectEvent();
+		event.start();
+		return event;
+	}
+
+	/**
+	 * @return the event of the call of a sub-query, begun, or null if it is
+	 *         not enabled.
+	 */
+	static SubQueryEvent beginSubQuery() {
+		if (!isEnabled(SUB_QUERY)) {
+			return null;
+		}
+		final SubQueryEvent event = new SubQueryEvent();
+		event.begin();
+		return event;
+	}
+
+}
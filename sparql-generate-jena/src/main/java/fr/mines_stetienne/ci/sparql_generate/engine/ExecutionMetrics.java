@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+
+/**
+ * Receives the metrics of the executions run by a {@link QueryExecutor}.
+ * Implementations must be thread-safe.
+ *
+ * @author Maxime Lefrançois
+ * @see MetricsRegistry
+ */
+public interface ExecutionMetrics {
+
+	/**
+	 * The name under which the metrics of the queries that are not loaded by
+	 * name are recorded.
+	 */
+	public static final String ANONYMOUS = "anonymous";
+
+	/**
+	 * A sub-query has been called.
+	 *
+	 * @param type
+	 *            the type of the call: generate, select, or template.
+	 * @param queryName
+	 *            the name of the query.
+	 */
+	void queryCalled(String type, String queryName);
+
+	/**
+	 * A plan has been built.
+	 *
+	 * @param queryName
+	 *            the name of the query.
+	 * @param nanos
+	 *            the time taken to parse and plan the query.
+	 */
+	void planBuilt(String queryName, long nanos);
+
+	/**
+	 * An execution of a plan received input bindings.
+	 *
+	 * @param queryName
+	 *            the name of the query.
+	 * @param rows
+	 *            the number of bindings.
+	 */
+	void rowsIn(String queryName, long rows);
+
+	/**
+	 * The ITERATOR, SOURCE and BIND clauses of a plan produced bindings.
+	 *
+	 * @param queryName
+	 *            the name of the query.
+	 * @param rows
+	 *            the number of bindings.
+	 */
+	void rowsOut(String queryName, long rows);
+
+	/**
+	 * Registers a cache whose statistics are reported with the metrics. The
+	 * cache must record its statistics. A cache may be registered by each
+	 * execution that uses it, and the caches of several executions may be
+	 * registered under the same name.
+	 *
+	 * @param cacheName
+	 *            the name of the cache.
+	 * @param cache
+	 *            the cache.
+	 */
+	void registerCache(String cacheName, Cache<?, ?> cache);
+
+	/**
+	 * Undoes a call to {@link #registerCache(String, Cache)}, once the
+	 * execution that registered the cache is closed. Does nothing by default.
+	 *
+	 * @param cacheName
+	 *            the name of the cache.
+	 * @param cache
+	 *            the cache.
+	 */
+	default void unregisterCache(String cacheName, Cache<?, ?> cache) {
+	}
+
+	/**
+	 * @return the current value of every metric, by metric name.
+	 */
+	Map<String, Long> snapshot();
+
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.resultset.ResultSetWrapper;
+import org.apache.jena.sparql.util.Context;
+
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * The profile of executions, in the manner of EXPLAIN ANALYZE: the plan tree
+ * of the queries, annotated with what each node of the plan did.
+ * <p>
+ * Each query executed is a node of the tree, whose children are its clauses
+ * and the sub-queries it called. For each node, the profile records the
+ * number of invocations, the bindings it received and produced, the bytes
+ * fetched and the cache hits. The time of a clause is the time spent in the
+ * clause itself, excluding the clauses it handed its bindings to. The time of
+ * a query is the time of its children plus the time spent in the query
+ * itself, for example to load the FROM graphs. Times spent on different
+ * threads are summed.
+ * <p>
+ * Profiles are thread-safe, and may be shared by several executions.
+ *
+ * @author Maxime Lefrançois
+ * @see ContextUtils.Builder#setProfile(ExecutionProfile)
+ */
+public class ExecutionProfile {
+
+	/**
+	 * The timer of the node that runs on the current thread.
+	 */
+	private static final ThreadLocal<Timer> CURRENT = new ThreadLocal<>();
+
+	private final PlanNode root = new PlanNode("EXECUTION");
+
+	/**
+	 * @return the node whose children are the queries executed.
+	 */
+	public PlanNode getRoot() {
+		return root;
+	}
+
+	/**
+	 * Get the node of a plan called in a context, labelled with the string
+	 * representation of the plan.
+	 *
+	 * @param context
+	 *            the execution context.
+	 * @param plan
+	 *            the plan.
+	 * @return the node, or null if the execution is not profiled.
+	 */
+	public static PlanNode getNode(final Context context, final Object plan) {
+		final PlanNode parent = ContextUtils.getProfileNode(context);
+		return parent != null ? parent.getChild(plan, null) : null;
+	}
+
+	/**
+	 * Get the node of a plan called in a context.
+	 *
+	 * @param context
+	 *            the execution context.
+	 * @param plan
+	 *            the plan.
+	 * @param label
+	 *            the label of the node, if it is created.
+	 * @return the node, or null if the execution is not profiled.
+	 */
+	public static PlanNode getNode(final Context context, final Object plan, final String label) {
+		final PlanNode parent = ContextUtils.getProfileNode(context);
+		return parent != null ? parent.getChild(plan, label) : null;
+	}
+
+	/**
+	 * Records an invocation of a node, and starts timing it.
+	 *
+	 * @param node
+	 *            the node, or null.
+	 * @param rowsIn
+	 *            the number of bindings received.
+	 * @return the timer, that must be closed on the same thread, or null if
+	 *         the node is null.
+	 */
+	public static Timer start(final PlanNode node, final long rowsIn) {
+		if (node == null) {
+			return null;
+		}
+		node.calls.increment();
+		node.rowsIn.add(rowsIn);
+		return new Timer(node);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("Execution profile:");
+		for (PlanNode query : root.getChildren()) {
+			query.print(sb, "\n  ");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A node of the plan tree.
+	 */
+	public static final class PlanNode {
+
+		private final String label;
+		private final Map<Object, PlanNode> children = Collections.synchronizedMap(new LinkedHashMap<>());
+		private final LongAdder calls = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		private final LongAdder rowsIn = new LongAdder();
+		private final LongAdder rowsOut = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder cacheHits = new LongAdder();
+
+		private PlanNode(final String label) {
+			this.label = label;
+		}
+
+		/**
+		 * Get the node of a plan called by this node.
+		 *
+		 * @param plan
+		 *            the plan.
+		 * @param label
+		 *            the label of the node, if it is created, or null to use
+		 *            the string representation of the plan.
+		 * @return the node.
+		 */
+		public PlanNode getChild(final Object plan, final String label) {
+			return children.computeIfAbsent(plan, (p) -> new PlanNode(label != null ? label : p.toString()));
+		}
+
+		public List<PlanNode> getChildren() {
+			synchronized (children) {
+				return new ArrayList<>(children.values());
+			}
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public long getCalls() {
+			return calls.sum();
+		}
+
+		/**
+		 * @return the time, in nanoseconds, spent in the node and its
+		 *         children.
+		 */
+		public long getNanos() {
+			long total = nanos.sum();
+			for (PlanNode child : getChildren()) {
+				total += child.getNanos();
+			}
+			return total;
+		}
+
+		public long getRowsIn() {
+			return rowsIn.sum();
+		}
+
+		public long getRowsOut() {
+			return rowsOut.sum();
+		}
+
+		public long getBytes() {
+			return bytes.sum();
+		}
+
+		public long getCacheHits() {
+			return cacheHits.sum();
+		}
+
+		public void addRowsIn(final long rows) {
+			rowsIn.add(rows);
+		}
+
+		public void addRowsOut(final long rows) {
+			rowsOut.add(rows);
+		}
+
+		public void addBytes(final long count) {
+			bytes.add(count);
+		}
+
+		public void addCacheHits(final long hits) {
+			cacheHits.add(hits);
+		}
+
+		/**
+		 * Wraps the results of the node, so that the results read are counted
+		 * as bindings produced, and the time taken to compute them is
+		 * attributed to the node.
+		 *
+		 * @param resultSet
+		 *            the results.
+		 * @return the wrapped results.
+		 */
+		public ResultSet profile(final ResultSet resultSet) {
+			return new ResultSetWrapper(resultSet) {
+				@Override
+				public boolean hasNext() {
+					final Timer timer = new Timer(PlanNode.this);
+					try {
+						return super.hasNext();
+					} finally {
+						timer.close();
+					}
+				}
+
+				@Override
+				public QuerySolution next() {
+					final Timer timer = new Timer(PlanNode.this);
+					try {
+						final QuerySolution solution = super.next();
+						rowsOut.increment();
+						return solution;
+					} finally {
+						timer.close();
+					}
+				}
+
+				@Override
+				public void forEachRemaining(final Consumer<? super QuerySolution> action) {
+					while (hasNext()) {
+						action.accept(next());
+					}
+				}
+
+				@Override
+				public QuerySolution nextSolution() {
+					final Timer timer = new Timer(PlanNode.this);
+					try {
+						final QuerySolution solution = super.nextSolution();
+						rowsOut.increment();
+						return solution;
+					} finally {
+						timer.close();
+					}
+				}
+
+				@Override
+				public Binding nextBinding() {
+					final Timer timer = new Timer(PlanNode.this);
+					try {
+						final Binding binding = super.nextBinding();
+						rowsOut.increment();
+						return binding;
+					} finally {
+						timer.close();
+					}
+				}
+			};
+		}
+
+		private void print(final StringBuilder sb, final String indent) {
+			sb.append(indent).append(label).append("  (calls=").append(getCalls())
+					.append(String.format(Locale.ROOT, ", time=%.3f ms", getNanos() / 1e6))
+					.append(", rows in=").append(getRowsIn()).append(", rows out=").append(getRowsOut());
+			if (getBytes() > 0) {
+				sb.append(", bytes=").append(getBytes());
+			}
+			if (getCacheHits() > 0) {
+				sb.append(", cache hits=").append(getCacheHits());
+			}
+			sb.append(")");
+			for (PlanNode child : getChildren()) {
+				child.print(sb, indent + "  ");
+			}
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder();
+			print(sb, "");
+			return sb.toString();
+		}
+
+	}
+
+	/**
+	 * Times a node on the current thread. While a timer is open, the timer it
+	 * interrupted is paused, so that the time of a node excludes the time of
+	 * the nodes it called.
+	 */
+	public static final class Timer implements AutoCloseable {
+
+		private final PlanNode node;
+		private final Timer outer;
+		private long start;
+
+		private Timer(final PlanNode node) {
+			this.node = node;
+			this.outer = CURRENT.get();
+			start = System.nanoTime();
+			if (outer != null) {
+				outer.node.nanos.add(start - outer.start);
+			}
+			CURRENT.set(this);
+		}
+
+		@Override
+		public void close() {
+			final long end = System.nanoTime();
+			node.nanos.add(end - start);
+			if (outer != null) {
+				outer.start = end;
+				CURRENT.set(outer);
+			} else {
+				CURRENT.remove();
+			}
+		}
+
+	}
+
+}
@@ -18,20 +18,16 @@ package fr.mines_stetienne.ci.sparql_generate.engine;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
 import fr.mines_stetienne.ci.sparql_generate.graph.Node_List;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import org.apache.jena.graph.Node;
-import org.apache.jena.graph.NodeFactory;
+import java.util.function.Consumer;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.riot.system.StreamRDF;
 import org.apache.jena.sparql.core.BasicPattern;
-import org.apache.jena.sparql.core.Substitute;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
-import org.apache.jena.sparql.modify.TemplateLib;
 import org.apache.jena.sparql.util.Context;
-import org.apache.jena.vocabulary.RDF;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,8 +52,16 @@ public class GenerateFormPlan implements GeneratePlan {
      */
     private final List<RootPlan> subQueries;
 
-    private static final Node FIRST = RDF.first.asNode();
-    private static final Node REST = RDF.rest.asNode();
+    /**
+     * The basic pattern, compiled.
+     */
+    private final GenerateTemplate template;
+
+    /**
+     * If the bindings can be consumed as they are produced, i.e., no RDF list
+     * needs the number of bindings and there is no sub query.
+     */
+    private final boolean isStreamable;
 
     /**
      * Constructor.
@@ -68,6 +72,9 @@ public class GenerateFormPlan implements GeneratePlan {
     public GenerateFormPlan(final BasicPattern basicGraphPattern, List<RootPlan> subQueries) {
         this.bgp = basicGraphPattern;
         this.subQueries = subQueries;
+        this.template = new GenerateTemplate(basicGraphPattern);
+        this.isStreamable = subQueries.isEmpty()
+                && bgp.getList().stream().noneMatch((t) -> t.getObject() instanceof Node_List);
     }
 
     @Override
@@ -82,81 +89,57 @@ public class GenerateFormPlan implements GeneratePlan {
                 .setSize(size)
                 .fork();
 
+        final Consumer<Triple> output = (t) -> output(sb, outputStream, t);
         for (int i = 0; i < size; i++) {
-            final Map<Node, Node> bNodeMap = new HashMap<>();
-            final Binding binding = values.get(i);
-            for (Triple t : bgp.getList()) {
-                if (t.getObject() instanceof Node_List) {
-                    substAndOutputForList(t.getSubject(), t.getPredicate(), (Node_List) t.getObject(), sb, binding, outputStream, newContext, i, bNodeMap);
-                } else {
-                    Triple t2 = TemplateLib.subst(t, binding, bNodeMap);
-                    outputIfConcrete(sb, outputStream, t2);
-                }
-            }
-
+            template.instantiate(values.get(i), i, newContext, output);
         }
         if (LOG.isTraceEnabled()) {
             LOG.trace(sb.toString());
         }
 
+        if (SubQueryFanOut.isConcurrent(newContext, subQueries.size())) {
+            final List<Consumer<Context>> executions = new ArrayList<>();
+            for (RootPlan subPlan : subQueries) {
+                executions.add((subContext) -> subPlan.execGenerateStream(values, subContext));
+            }
+            SubQueryFanOut.exec(executions, newContext);
+            return;
+        }
         for (int i = 0; i < subQueries.size(); i++) {
             RootPlan subPlan = subQueries.get(i);
             subPlan.execGenerateStream(values, newContext);
         }
     }
 
-    private synchronized void outputIfConcrete(
-            final StringBuilder sb,
-            final StreamRDF outputStream,
-            final Triple t) {
-        if (t.isConcrete()) {
-            if (LOG.isTraceEnabled()) {
-                Triple t2 = LogUtils.compress(t);
-                sb.append("\n  ").append(t2);
-            }
-            outputStream.triple(t);
+    @Override
+    public void exec(
+            final List<Var> variables,
+            final Iterator<Binding> values,
+            final Context context) {
+        if (!isStreamable) {
+            GeneratePlan.super.exec(variables, values, context);
+            return;
+        }
+        final StreamRDF outputStream = ContextUtils.getGenerateOutput(context);
+        final StringBuilder sb = new StringBuilder("Output triples");
+        final Consumer<Triple> output = (t) -> output(sb, outputStream, t);
+        for (int i = 0; values.hasNext(); i++) {
+            template.instantiate(values.next(), i, context, output);
+        }
+        if (LOG.isTraceEnabled()) {
+            LOG.trace(sb.toString());
         }
     }
 
-    private void substAndOutputForList(
-            final Node subject,
-            final Node predicate,
-            final Node_List list,
+    private synchronized void output(
             final StringBuilder sb,
-            final Binding binding,
             final StreamRDF outputStream,
-            final Context context,
-            final int position,
-            final Map<Node, Node> bNodeMap) {
-
-        final Node first = ContextUtils.getNode(context, list, 0);
-        final Node current = ContextUtils.getNode(context, list, position);
-        final Node next = ContextUtils.getNode(context, list, position + 1);
-        final Node var = list.getExpr().asVar();
-        // potentially substitute subject and predicate
-        Node s2 = subst(subject, bNodeMap);
-        Node p2 = subst(predicate, bNodeMap);
-        Triple t = new Triple(s2, p2, first);
-        Triple t2 = Substitute.substitute(t, binding);
-        outputIfConcrete(sb, outputStream, t2);
-        // potentially substitute var
-        Node var2 = subst(var, bNodeMap);
-        Node var2sub = Substitute.substitute(var2, binding);
-        Triple tfirst = new Triple(current, FIRST, var2sub);
-        outputIfConcrete(sb, outputStream, tfirst);
-        // nothing to substitute here
-        Triple tRest = new Triple(current, REST, next);
-        outputIfConcrete(sb, outputStream, tRest);
-    }
-
-    private Node subst(Node n, Map<Node, Node> bNodeMap) {
-        if (n.isBlank() || Var.isBlankNodeVar(n)) {
-            if (!bNodeMap.containsKey(n)) {
-                bNodeMap.put(n, NodeFactory.createBlankNode());
-            }
-            return bNodeMap.get(n);
+            final Triple t) {
+        if (LOG.isTraceEnabled()) {
+            Triple t2 = LogUtils.compress(t);
+            sb.append("\n  ").append(t2);
         }
-        return n;
+        outputStream.triple(t);
     }
 
 }
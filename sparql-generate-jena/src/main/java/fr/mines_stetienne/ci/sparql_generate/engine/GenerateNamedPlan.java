@@ -17,9 +17,11 @@ package fr.mines_stetienne.ci.sparql_generate.engine;
 
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.EvalUtils;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.Consumer;
 import org.apache.jena.graph.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,6 +67,15 @@ public class GenerateNamedPlan implements GeneratePlan {
         final QueryExecutor queryExecutor = ContextUtils.getQueryExecutor(context);
         final FunctionEnv env = new FunctionEnvBase(context);
         final Map<String, List<Binding>> splitValues = EvalUtils.splitBindingsForQuery(name, values, env);
+        if (SubQueryFanOut.isConcurrent(context, splitValues.size())) {
+            final List<Consumer<Context>> executions = new ArrayList<>();
+            for (String queryName : splitValues.keySet()) {
+                final List<List<Node>> queryCall = EvalUtils.eval(callParameters, splitValues.get(queryName), env);
+                executions.add((subContext) -> queryExecutor.execGenerateFromName(queryName, queryCall, subContext));
+            }
+            SubQueryFanOut.exec(executions, context);
+            return;
+        }
         for (String queryName : splitValues.keySet()) {
             final List<Binding> queryValues = splitValues.get(queryName);
             final List<List<Node>> queryCall = EvalUtils.eval(callParameters, queryValues, env);
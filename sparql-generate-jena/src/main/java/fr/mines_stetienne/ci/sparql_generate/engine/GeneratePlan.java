@@ -15,6 +15,8 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.engine;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.jena.sparql.core.Var;
@@ -41,4 +43,23 @@ public interface GeneratePlan {
             final List<Binding> values,
             final Context context);
 
+    /**
+     * Executes a GENERATE plan on bindings that are consumed as they are
+     * produced. Method is blocking.
+     * <p>
+     * By default, the bindings are first collected in a list.
+     *
+     * @param variables the list of variables.
+     * @param values the bindings.
+     * @param context the execution context
+     */
+    default void exec(
+            final List<Var> variables,
+            final Iterator<Binding> values,
+            final Context context) {
+        final List<Binding> list = new ArrayList<>();
+        values.forEachRemaining(list::add);
+        exec(variables, list, context);
+    }
+
 }
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.core.BasicPattern;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.util.Context;
+import org.apache.jena.vocabulary.RDF;
+
+import fr.mines_stetienne.ci.sparql_generate.graph.Node_List;
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+
+/**
+ * The basic pattern of a GENERATE clause, compiled once so that it can be
+ * instantiated for every binding.
+ * <p>
+ * Each variable of the pattern is assigned a slot, and is looked up only once
+ * per binding. Each blank node of the pattern is assigned a number, and is
+ * replaced by a fresh blank node per binding. Triples that contain no variable
+ * and no blank node are created once, and emitted as is.
+ */
+class GenerateTemplate {
+
+	private static final Node FIRST = RDF.first.asNode();
+	private static final Node REST = RDF.rest.asNode();
+
+	private final Var[] variables;
+
+	private final int blankNodes;
+
+	private final TripleTemplate[] triples;
+
+	GenerateTemplate(final BasicPattern bgp) {
+		final Map<Var, Integer> variableSlots = new LinkedHashMap<>();
+		final Map<Node, Integer> blankNodeSlots = new HashMap<>();
+		final List<Triple> list = bgp.getList();
+		triples = new TripleTemplate[list.size()];
+		for (int i = 0; i < triples.length; i++) {
+			final Triple t = list.get(i);
+			final Slot subject = slot(t.getSubject(), variableSlots, blankNodeSlots);
+			final Slot predicate = slot(t.getPredicate(), variableSlots, blankNodeSlots);
+			if (t.getObject() instanceof Node_List) {
+				final Node_List nodeList = (Node_List) t.getObject();
+				final Slot member = slot(nodeList.getExpr().asVar(), variableSlots, blankNodeSlots);
+				triples[i] = new ListTripleTemplate(subject, predicate, nodeList, member);
+			} else {
+				final Slot object = slot(t.getObject(), variableSlots, blankNodeSlots);
+				triples[i] = new TripleTemplate(subject, predicate, object);
+			}
+		}
+		variables = variableSlots.keySet().toArray(new Var[variableSlots.size()]);
+		blankNodes = blankNodeSlots.size();
+	}
+
+	/**
+	 * Instantiates the pattern for one binding, and emits the concrete triples
+	 * in the order of the pattern.
+	 *
+	 * @param binding
+	 *            the binding.
+	 * @param position
+	 *            the position of the binding, for the RDF lists.
+	 * @param context
+	 *            the execution context, for the RDF lists.
+	 * @param output
+	 *            where the triples are emitted.
+	 */
+	void instantiate(final Binding binding, final int position, final Context context,
+			final Consumer<Triple> output) {
+		final Node[] values = new Node[variables.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = binding.get(variables[i]);
+		}
+		final Node[] blanks = new Node[blankNodes];
+		for (int i = 0; i < blanks.length; i++) {
+			blanks[i] = NodeFactory.createBlankNode();
+		}
+		for (TripleTemplate triple : triples) {
+			triple.instantiate(values, blanks, binding, position, context, output);
+		}
+	}
+
+	private static Slot slot(final Node node, final Map<Var, Integer> variableSlots,
+			final Map<Node, Integer> blankNodeSlots) {
+		if (node.isBlank() || Var.isBlankNodeVar(node)) {
+			return new Slot(Slot.BLANK_NODE, node, blankNodeSlots.computeIfAbsent(node, (n) -> blankNodeSlots.size()));
+		}
+		if (Var.isVar(node)) {
+			final Var var = Var.alloc(node);
+			return new Slot(Slot.VARIABLE, node, variableSlots.computeIfAbsent(var, (v) -> variableSlots.size()));
+		}
+		if (!node.isConcrete()) {
+			return new Slot(Slot.SUBSTITUTE, node, -1);
+		}
+		return new Slot(Slot.CONSTANT, node, -1);
+	}
+
+	/**
+	 * A position in a triple of the pattern.
+	 */
+	private static class Slot {
+
+		static final int CONSTANT = 0;
+		static final int VARIABLE = 1;
+		static final int BLANK_NODE = 2;
+		static final int SUBSTITUTE = 3;
+
+		final int kind;
+		final Node node;
+		final int index;
+
+		Slot(final int kind, final Node node, final int index) {
+			this.kind = kind;
+			this.node = node;
+			this.index = index;
+		}
+
+		/**
+		 * @return the node at this position, or null if it is not concrete.
+		 */
+		Node get(final Node[] values, final Node[] blanks, final Binding binding) {
+			switch (kind) {
+			case CONSTANT:
+				return node;
+			case VARIABLE:
+				return values[index];
+			case BLANK_NODE:
+				return blanks[index];
+			default:
+				final Node n = Substitute.substitute(node, binding);
+				return n.isConcrete() ? n : null;
+			}
+		}
+
+	}
+
+	private static class TripleTemplate {
+
+		final Slot subject;
+		final Slot predicate;
+		final Slot object;
+
+		/**
+		 * The triple, if it is the same for all the bindings.
+		 */
+		final Triple constant;
+
+		TripleTemplate(final Slot subject, final Slot predicate, final Slot object) {
+			this.subject = subject;
+			this.predicate = predicate;
+			this.object = object;
+			if (object != null && subject.kind == Slot.CONSTANT && predicate.kind == Slot.CONSTANT
+					&& object.kind == Slot.CONSTANT) {
+				constant = Triple.create(subject.node, predicate.node, object.node);
+			} else {
+				constant = null;
+			}
+		}
+
+		void instantiate(final Node[] values, final Node[] blanks, final Binding binding, final int position,
+				final Context context, final Consumer<Triple> output) {
+			if (constant != null) {
+				output.accept(constant);
+				return;
+			}
+			final Node s = subject.get(values, blanks, binding);
+			final Node p = predicate.get(values, blanks, binding);
+			final Node o = object.get(values, blanks, binding);
+			if (s != null && p != null && o != null) {
+				output.accept(Triple.create(s, p, o));
+			}
+		}
+
+	}
+
+	/**
+	 * A triple whose object is a LIST( ?var ): emits the link from the subject
+	 * to the first node of the list, and the current node of the list.
+	 */
+	private static class ListTripleTemplate extends TripleTemplate {
+
+		final Node_List list;
+		final Slot member;
+
+		ListTripleTemplate(final Slot subject, final Slot predicate, final Node_List list, final Slot member) {
+			super(subject, predicate, null);
+			this.list = list;
+			this.member = member;
+		}
+
+		@Override
+		void instantiate(final Node[] values, final Node[] blanks, final Binding binding, final int position,
+				final Context context, final Consumer<Triple> output) {
+			final Node[] nodes = ContextUtils.getInfo(context, list);
+			final Node first = nodes[0];
+			final Node current = nodes[position];
+			final Node next = nodes[position + 1];
+			final Node s = subject.get(values, blanks, binding);
+			final Node p = predicate.get(values, blanks, binding);
+			if (s != null && p != null) {
+				output.accept(Triple.create(s, p, first));
+			}
+			final Node m = member.get(values, blanks, binding);
+			if (m != null) {
+				output.accept(Triple.create(current, FIRST, m));
+			}
+			output.accept(Triple.create(current, REST, next));
+		}
+
+	}
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.function.Consumer;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.stream.Locator;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.sparql.graph.GraphReadOnly;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import fr.mines_stetienne.ci.sparql_generate.stream.LocatorClassLoaderAccept;
+import fr.mines_stetienne.ci.sparql_generate.stream.LocatorFileAccept;
+import fr.mines_stetienne.ci.sparql_generate.stream.LocatorURLAccept;
+import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
+import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
+
+/**
+ * A cache of the graphs parsed for the FROM clauses, shared by successive
+ * executions.
+ * <p>
+ * Graphs are keyed by their absolute URI, and held read-only. Each graph is
+ * stored with the version of the document it was parsed from: the
+ * modification time and length of a file, or the ETag or Last-Modified header
+ * of a HTTP resource. A graph is parsed again when the version of the document
+ * changes. Documents that have no version, for example documents served by
+ * other locators, are parsed at each execution.
+ * <p>
+ * The cache holds at most a given total number of triples.
+ *
+ * @author Maxime Lefrançois
+ */
+public class GraphCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(GraphCache.class);
+
+	/**
+	 * The timeout in milliseconds to connect to a remote document to get its
+	 * version.
+	 */
+	private static final int CONNECT_TIMEOUT = 10_000;
+
+	/**
+	 * The timeout in milliseconds to wait for the headers of a remote document
+	 * to get its version.
+	 */
+	private static final int READ_TIMEOUT = 30_000;
+
+	private final Cache<String, Entry> graphs;
+
+	private final long revalidateAfter;
+
+	/**
+	 * @param maximumTriples
+	 *            the maximal total number of triples of the cached graphs.
+	 * @param revalidateAfter
+	 *            the time, in milliseconds, during which a cached graph is used
+	 *            without checking the version of its document, or 0 to check it
+	 *            at each use.
+	 */
+	public GraphCache(final long maximumTriples, final long revalidateAfter) {
+		this.graphs = CacheBuilder.newBuilder().maximumWeight(maximumTriples)
+				.weigher((String uri, Entry entry) -> Math.max(1, entry.graph.size())).recordStats().build();
+		this.revalidateAfter = revalidateAfter;
+	}
+
+	/**
+	 * Records the statistics of this cache in the metrics.
+	 *
+	 * @param metrics
+	 *            the metrics.
+	 */
+	public void registerIn(final ExecutionMetrics metrics) {
+		metrics.registerCache("graphs", graphs);
+	}
+
+	/**
+	 * Stops recording the statistics of this cache in the metrics, for an
+	 * execution that called {@link #registerIn(ExecutionMetrics)}.
+	 *
+	 * @param metrics
+	 *            the metrics.
+	 */
+	public void unregisterFrom(final ExecutionMetrics metrics) {
+		metrics.unregisterCache("graphs", graphs);
+	}
+
+	/**
+	 * Get the graph parsed from a document.
+	 *
+	 * @param sm
+	 *            the stream manager that locates the document.
+	 * @param request
+	 *            the request for the document.
+	 * @param absURI
+	 *            the absolute URI of the graph.
+	 * @param parser
+	 *            parses the document to a stream.
+	 * @return the graph, that must not be modified.
+	 */
+	public Graph get(final SPARQLExtStreamManager sm, final LookUpRequest request, final String absURI,
+			final Consumer<StreamRDF> parser) {
+		final Entry entry = graphs.getIfPresent(absURI);
+		final long now = System.currentTimeMillis();
+		if (entry != null && now - entry.checked < revalidateAfter) {
+			return entry.graph;
+		}
+		final String version = getVersion(sm, request);
+		if (entry != null && entry.version.equals(version)) {
+			entry.checked = now;
+			return entry.graph;
+		}
+		final Graph graph = GraphFactory.createDefaultGraph();
+		parser.accept(StreamRDFLib.graph(graph));
+		final Graph readOnly = new GraphReadOnly(graph);
+		if (version != null) {
+			LOG.debug("Caching graph " + absURI + " version " + version);
+			graphs.put(absURI, new Entry(readOnly, version, now));
+		} else if (entry != null) {
+			graphs.invalidate(absURI);
+		}
+		return readOnly;
+	}
+
+	/**
+	 * Get the version of the document the stream manager would open, or null
+	 * if it cannot be known.
+	 */
+	private static String getVersion(final SPARQLExtStreamManager sm, final LookUpRequest request) {
+		final LookUpRequest mapped = sm.mapRequest(request);
+		final String location = mapped.getFilenameOrURI();
+		final boolean http = location.startsWith("http://") || location.startsWith("https://");
+		for (Locator locator : sm.locators()) {
+			if (locator instanceof LocatorFileAccept) {
+				final String fileName = http ? null : ((LocatorFileAccept) locator).toFileName(location);
+				final File file = fileName != null ? new File(fileName) : null;
+				if (file != null && file.isFile()) {
+					return "file " + file.lastModified() + " " + file.length();
+				}
+			} else if (locator instanceof LocatorURLAccept) {
+				return http ? getHttpVersion(location, mapped.getAccept()) : null;
+			} else if (!http || !(locator instanceof LocatorClassLoaderAccept)) {
+				// this locator may open the document
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static String getHttpVersion(final String location, final String accept) {
+		HttpURLConnection conn = null;
+		try {
+			conn = (HttpURLConnection) new URL(location).openConnection();
+			conn.setConnectTimeout(CONNECT_TIMEOUT);
+			conn.setReadTimeout(READ_TIMEOUT);
+			conn.setRequestMethod("HEAD");
+			conn.setRequestProperty("Accept", accept);
+			if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				return null;
+			}
+			final String etag = conn.getHeaderField("ETag");
+			if (etag != null) {
+				return "etag " + etag;
+			}
+			final String lastModified = conn.getHeaderField("Last-Modified");
+			if (lastModified != null) {
+				return "modified " + lastModified;
+			}
+			return null;
+		} catch (IOException | ClassCastException ex) {
+			LOG.debug("Could not get the version of " + location + ": " + ex.getMessage());
+			return null;
+		} finally {
+			if (conn != null) {
+				conn.disconnect();
+			}
+		}
+	}
+
+	private static class Entry {
+
+		private final Graph graph;
+		private final String version;
+		private volatile long checked;
+
+		private Entry(Graph graph, String version, long checked) {
+			this.graph = graph;
+			this.version = version;
+			this.checked = checked;
+		}
+
+	}
+
+}
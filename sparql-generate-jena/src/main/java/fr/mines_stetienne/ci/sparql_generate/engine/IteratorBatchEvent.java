@@ -0,0 +1,62 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A batch of bindings emitted by an ITERATOR clause. The duration is the time
+ * the clause took to produce the batch, from the start of the clause or the
+ * time the rest of the query finished processing the previous batch.
+ *
+ * @author Maxime Lefrançois
+ * @see EngineEvents
+ */
+@Name("fr.mines_stetienne.ci.sparql_generate.IteratorBatch")
+@Label("Iterator Batch")
+@Category(EngineEvents.CATEGORY)
+@Description("A batch of bindings emitted by an ITERATOR clause")
+@Enabled(false)
+@StackTrace(false)
+public class IteratorBatchEvent extends Event {
+
+	@Label("Iterator")
+	@Description("The IRI of the iterator function")
+	String iterator;
+
+	@Label("Rows")
+	@Description("The number of bindings of the batch")
+	int rows;
+
+	IteratorBatchEvent() {
+	}
+
+	void record(final String iterator, final int rows) {
+		end();
+		if (shouldCommit()) {
+			this.iterator = iterator;
+			this.rows = rows;
+			commit();
+		}
+	}
+
+}
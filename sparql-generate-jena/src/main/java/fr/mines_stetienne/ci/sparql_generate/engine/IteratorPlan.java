@@ -17,26 +17,35 @@ package fr.mines_stetienne.ci.sparql_generate.engine;
 
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
+import fr.mines_stetienne.ci.sparql_generate.utils.NodeDictionary;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+import fr.mines_stetienne.ci.sparql_generate.iterator.BatchSizer;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunction;
+import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionEnv;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionFactory;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionRegistry;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import org.apache.jena.graph.Node;
 import org.apache.jena.sparql.ARQConstants;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
-import org.apache.jena.sparql.engine.binding.BindingBuilder;
 import org.apache.jena.sparql.expr.ExprEvalException;
 import org.apache.jena.sparql.expr.ExprList;
 import org.apache.jena.sparql.expr.NodeValue;
 import org.apache.jena.sparql.function.FunctionEnv;
-import org.apache.jena.sparql.function.FunctionEnvBase;
 import org.apache.jena.sparql.util.Context;
 import org.apache.jena.sparql.util.NodeFactoryExtra;
 import org.slf4j.Logger;
@@ -51,14 +60,26 @@ public class IteratorPlan implements BindingsClausePlan {
     private static final Logger LOG = LoggerFactory.getLogger(IteratorPlan.class);
 
     /**
-     * The SPARQL-Generate iterator IRI.
+     * Marks the end of a parallel execution.
      */
-    private final String iri;
+    private static final List<Binding> END = new ArrayList<>();
+
+    /**
+     * The number of batches per thread of the pool that wait to be emitted in
+     * a parallel execution.
+     */
+    static final int BUFFERED_BATCHES = 2;
+
+    /**
+     * The time in milliseconds a parallel execution waits for room in the
+     * queue before it checks whether the execution was stopped.
+     */
+    private static final long OFFER_TIMEOUT = 100;
 
     /**
-     * The SPARQL-Generate iterator.
+     * The SPARQL-Generate iterator IRI.
      */
-    private IteratorFunction iterator;
+    private final String iri;
 
     /**
      * The list of expressions on which to evaluate the iterator.
@@ -89,16 +110,19 @@ public class IteratorPlan implements BindingsClausePlan {
         this.vars = vars;
     }
 
+    /**
+     * Builds the SPARQL-Generate iterator for one execution of this plan.
+     *
+     * @param context the execution context.
+     * @return a new instance of the iterator.
+     */
     public IteratorFunction getIterator(Context context) {
-        if (iterator != null) {
-            return iterator;
-        }
         final IteratorFunctionRegistry sr = IteratorFunctionRegistry.get(context);
         IteratorFunctionFactory factory = sr.get(iri);
         if (factory == null) {
             throw new SPARQLExtException("Unknown Iterator Function: " + iri);
         }
-        iterator = factory.create(iri);
+        final IteratorFunction iterator = factory.create(iri);
         iterator.build(exprList);
         return iterator;
     }
@@ -122,113 +146,339 @@ public class IteratorPlan implements BindingsClausePlan {
             Consumer<List<Binding>> listBindingStream) {
         context.set(ARQConstants.sysCurrentTime, NodeFactoryExtra.nowAsDateTime());
         final IteratorFunction iterator = getIterator(context);
-        final FunctionEnv env = new FunctionEnvBase(context);
-        final IteratorPlan.Batches batches = new IteratorPlan.Batches(values, listBindingStream);
-        for (Binding binding : values) {
+        final BatchSizer batchSizer = ContextUtils.getBatchSizer(context, this);
+        final FunctionEnv env = new IteratorFunctionEnv(context, batchSizer);
+        final ExecutionProfile.PlanNode profileNode = ExecutionProfile.getNode(context, this);
+        final IteratorBatchEvent first = EngineEvents.beginIteratorBatch();
+        final boolean recorded = first != null;
+        final IteratorBatchEvent[] event = recorded ? new IteratorBatchEvent[] { first } : null;
+        final Consumer<List<Binding>> downstream = batchSizer == null && profileNode == null && !recorded ? listBindingStream : (bindings) -> {
+            if (recorded && event[0] != null) {
+                event[0].record(iri, bindings.size());
+            }
+            if (profileNode != null) {
+                profileNode.addRowsOut(bindings.size());
+            }
+            final long start = System.nanoTime();
+            listBindingStream.accept(bindings);
+            if (batchSizer != null) {
+                batchSizer.record(bindings.size(), System.nanoTime() - start);
+            }
+            if (recorded) {
+                event[0] = EngineEvents.beginIteratorBatch();
+            }
+        };
+        final ExecutionProfile.Timer timer = ExecutionProfile.start(profileNode, values.size());
+        try {
+            exec(values, context, iterator, env, downstream);
+        } finally {
+            if (timer != null) {
+                timer.close();
+            }
+        }
+    }
+
+    private void exec(
+            final List<Binding> values,
+            final Context context,
+            final IteratorFunction iterator,
+            final FunctionEnv env,
+            final Consumer<List<Binding>> downstream) {
+        final ForkJoinPool pool = ContextUtils.getIteratorPool(context);
+        if (pool != null && values.size() > 1) {
+            execParallel(values, context, iterator, env, pool, downstream);
+            return;
+        }
+        final NodeDictionary dictionary = ContextUtils.getNodeDictionary(context);
+        final IteratorPlan.Batches batches = new IteratorPlan.Batches(values.size(), downstream);
+        for (int i = 0; i < values.size(); i++) {
+            final int execution = i;
+            final Binding binding = values.get(i);
             try {
-            	iterator.exec(binding, exprList, env, (nodeValues) -> batches.add(binding, nodeValues));
-            } catch (ExprEvalException ex) {
-                LOG.debug("No evaluation for " + this + ", caused by " + ex.getMessage());
-                if (ContextUtils.isFailOnException(context)) {
-                    throw ex;
-                }
-            } catch (Exception ex) {
-                LOG.warn("Unanticipated exception for " + toString(), ex);
-                if (ContextUtils.isFailOnException(context)) {
-                    throw ex;
-                }
+                exec(iterator, binding, env, context, (nodeValues) -> batches.add(execution, getListBinding(binding, nodeValues, dictionary)));
+            } finally {
+                batches.executionComplete(execution);
             }
         }
         LOG.trace("some batches are incomplete ?");
         batches.allExecutionComplete();
     }
-    protected class Batches {
 
-        final Consumer<List<Binding>> listBindingStream;
-        final List<Binding> uncompleteExecutions = Collections.synchronizedList(new ArrayList<>());
-        final List<Batch> uncompleteBatches = Collections.synchronizedList(new ArrayList<>());
-        final Map<Binding, Batch> lastBatch = Collections.synchronizedMap(new HashMap<>());
-
-        Batches(final List<Binding> executions,
-                final Consumer<List<Binding>> listBindingStream) {
-            uncompleteExecutions.addAll(executions);
-            this.listBindingStream = listBindingStream;
+    /**
+     * Spreads the executions of the iterator over the outer bindings on a
+     * work-stealing pool. New bindings are always emitted from the calling
+     * thread, so that the rest of the plan remains single-threaded. At most
+     * {@link #BUFFERED_BATCHES} batches per thread of the pool wait to be
+     * emitted, and the executions stop at their next batch once the calling
+     * thread returns.
+     */
+    private void execParallel(
+            final List<Binding> values,
+            final Context context,
+            final IteratorFunction iterator,
+            final FunctionEnv env,
+            final ForkJoinPool pool,
+            final Consumer<List<Binding>> listBindingStream) {
+        final boolean ordered = ContextUtils.isIteratorOrdered(context);
+        final NodeDictionary dictionary = ContextUtils.getNodeDictionary(context);
+        final BlockingQueue<List<Binding>> queue = new ArrayBlockingQueue<>(
+                BUFFERED_BATCHES * pool.getParallelism());
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final IteratorPlan.Batches batches = ordered ? new IteratorPlan.Batches(values.size(), (bindings) -> put(queue, stopped, bindings)) : null;
+        final AtomicInteger running = new AtomicInteger(values.size());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < values.size(); i++) {
+            final int execution = i;
+            final Binding binding = values.get(i);
+            futures.add(pool.submit(() -> {
+                try {
+                    exec(iterator, binding, env, context, (nodeValues) -> {
+                        if (stopped.get()) {
+                            throw new CancellationException("The execution of " + this + " was stopped");
+                        }
+                        final List<Binding> bindings = getListBinding(binding, nodeValues, dictionary);
+                        if (ordered) {
+                            batches.add(execution, bindings);
+                        } else {
+                            put(queue, stopped, bindings);
+                        }
+                    });
+                } catch (Throwable ex) {
+                    failure.compareAndSet(null, ex);
+                } finally {
+                    if (ordered) {
+                        batches.executionComplete(execution);
+                    }
+                    if (running.decrementAndGet() == 0) {
+                        try {
+                            if (ordered) {
+                                batches.allExecutionComplete();
+                            }
+                        } finally {
+                            put(queue, stopped, END);
+                        }
+                    }
+                }
+            }));
         }
-
-        void add(
-                final Binding binding,
-                final List<List<NodeValue>> nodeValues) {
-            final List<Binding> bindings = getListBinding(binding, nodeValues);
-            final Batch batch = getNextBatch(binding);
-            lastBatch.put(binding, batch);
-            if (batch.addAndCheckIfEmpty(binding, bindings)) {
-                batchComplete(batch);
+        boolean complete = false;
+        try {
+            boolean end = false;
+            while (!end) {
+                List<Binding> bindings = queue.take();
+                if (bindings == END) {
+                    break;
+                }
+                if (!ordered) {
+                    // at most one batch per execution, as in the ordered mode
+                    final List<List<Binding>> available = new ArrayList<>();
+                    queue.drainTo(available, values.size() - 1);
+                    if (!available.isEmpty()) {
+                        bindings = new ArrayList<>(bindings);
+                        for (List<Binding> other : available) {
+                            if (other == END) {
+                                end = true;
+                            } else {
+                                bindings.addAll(other);
+                            }
+                        }
+                    }
+                }
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("A batch is complete " + LogUtils.log(bindings));
+                }
+                listBindingStream.accept(bindings);
             }
+            complete = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SPARQLExtException(ex);
+        } finally {
+            // cancelling a running task of a fork-join pool does not interrupt it
+            stopped.set(true);
+            if (!complete) {
+                futures.forEach((future) -> future.cancel(false));
+                queue.clear();
+                if (!Thread.currentThread().isInterrupted()) {
+                    awaitTermination(futures);
+                }
+            }
+        }
+        final Throwable ex = failure.get();
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        } else if (ex instanceof Error) {
+            throw (Error) ex;
+        } else if (ex != null) {
+            throw new SPARQLExtException(ex);
         }
+    }
 
-        List<Binding> getListBinding(
-                final Binding binding,
-                final List<List<NodeValue>> nodeValues) {
-            final List<Binding> listBindings = new ArrayList<>();
-            nodeValues.forEach((listNodeValues) -> {
-                if (vars.size() > listNodeValues.size()) {
-                    LOG.warn("Too many variables, some will not be bound: " + listNodeValues);
+    /**
+     * Hands a batch to the calling thread, unless the execution was stopped.
+     */
+    private void put(
+            final BlockingQueue<List<Binding>> queue,
+            final AtomicBoolean stopped,
+            final List<Binding> bindings) {
+        try {
+            while (!stopped.get()) {
+                if (queue.offer(bindings, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
                     return;
                 }
-                final BindingBuilder bindingBuilder = Binding.builder(binding);
-                for (int i = 0; i < vars.size(); i++) {
-                    if (listNodeValues.get(i) != null) {
-                        Node n = listNodeValues.get(i).asNode();
-                        bindingBuilder.add(vars.get(i), n);
-                    }
-                }
-                listBindings.add(bindingBuilder.build());
-            });
-            return listBindings;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SPARQLExtException(ex);
         }
+        if (bindings != END) {
+            throw new CancellationException("The execution of " + this + " was stopped");
+        }
+    }
 
-        synchronized Batch getNextBatch(final Binding execution) {
-            Batch last = lastBatch.get(execution);
-            if (last == null) {
-                if (uncompleteBatches.isEmpty()) {
-                    final Batch batch = new Batch(uncompleteExecutions);
-                    uncompleteBatches.add(batch);
-                    return batch;
-                } else {
-                    return uncompleteBatches.get(0);
+    /**
+     * Waits for the executions that are still running to stop, so that they
+     * do not outlive the execution on a shared pool.
+     */
+    private static void awaitTermination(final List<Future<?>> futures) {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (CancellationException | ExecutionException ex) {
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
                 }
-            } else {
-                int index = uncompleteBatches.indexOf(last);
-                if (index == uncompleteBatches.size() - 1) {
-                    final Batch batch = new Batch(uncompleteExecutions);
-                    uncompleteBatches.add(batch);
-                    return batch;
-                } else {
-                    return uncompleteBatches.get(index + 1);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void exec(
+            final IteratorFunction iterator,
+            final Binding binding,
+            final FunctionEnv env,
+            final Context context,
+            final Consumer<List<List<NodeValue>>> nodeValuesStream) {
+        try {
+            iterator.exec(binding, exprList, env, nodeValuesStream);
+        } catch (ExprEvalException ex) {
+            LOG.debug("No evaluation for " + this + ", caused by " + ex.getMessage());
+            if (ContextUtils.isFailOnException(context)) {
+                throw ex;
+            }
+        } catch (Exception ex) {
+            LOG.warn("Unanticipated exception for " + toString(), ex);
+            if (ContextUtils.isFailOnException(context)) {
+                throw ex;
+            }
+        }
+    }
+
+    private List<Binding> getListBinding(
+            final Binding binding,
+            final List<List<NodeValue>> nodeValues,
+            final NodeDictionary dictionary) {
+        final List<Binding> listBindings = new ArrayList<>();
+        nodeValues.forEach((listNodeValues) -> {
+            if (vars.size() > listNodeValues.size()) {
+                LOG.warn("Too many variables, some will not be bound: " + listNodeValues);
+                return;
+            }
+            final Node[] nodes = new Node[vars.size()];
+            for (int i = 0; i < vars.size(); i++) {
+                if (listNodeValues.get(i) != null) {
+                    final Node n = listNodeValues.get(i).asNode();
+                    nodes[i] = dictionary != null ? dictionary.intern(n) : n;
                 }
             }
+            listBindings.add(SlotBinding.extend(binding, vars, nodes));
+        });
+        return listBindings;
+    }
+
+    /**
+     * Merges the successive collections of bindings emitted by the executions
+     * of the iterator. The k-th batch gathers the k-th collection emitted by
+     * each execution, in the order of the executions, and is emitted once
+     * every execution either contributed to it or completed.
+     */
+    protected class Batches {
+
+        final Consumer<List<Binding>> listBindingStream;
+        final int[] produced;
+        final boolean[] complete;
+        final List<Batch> uncompleteBatches = new ArrayList<>();
+        int emitted = 0;
+
+        Batches(final int executions,
+                final Consumer<List<Binding>> listBindingStream) {
+            this.produced = new int[executions];
+            this.complete = new boolean[executions];
+            this.listBindingStream = listBindingStream;
+        }
+
+        synchronized void add(
+                final int execution,
+                final List<Binding> bindings) {
+            final Batch batch = getBatch(produced[execution]);
+            batch.add(execution, bindings);
+            produced[execution]++;
+            emitCompleteBatches();
+        }
+
+        synchronized void executionComplete(final int execution) {
+            if (complete[execution]) {
+                return;
+            }
+            complete[execution] = true;
+            for (int index = Math.max(produced[execution], emitted); index < emitted + uncompleteBatches.size(); index++) {
+                uncompleteBatches.get(index - emitted).pending--;
+            }
+            emitCompleteBatches();
         }
 
-        void allExecutionComplete() {
+        synchronized void allExecutionComplete() {
             if (!uncompleteBatches.isEmpty()) {
                 LOG.info("Forcing completion of remaining batches");
             }
             for (Batch batch : uncompleteBatches) {
-                batch.expectedExecutions.clear();
                 LOG.trace("A batch is complete " + batch);
-                listBindingStream.accept(batch.bindings);
+                listBindingStream.accept(batch.getBindings());
             }
-            uncompleteExecutions.clear();
+            emitted += uncompleteBatches.size();
             uncompleteBatches.clear();
-            lastBatch.clear();
         }
 
-        private void batchComplete(final Batch batch) {
-            uncompleteBatches.remove(batch);
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("A batch is complete " + batch);
+        private Batch getBatch(final int index) {
+            while (emitted + uncompleteBatches.size() <= index) {
+                final int newIndex = emitted + uncompleteBatches.size();
+                int pending = 0;
+                for (int i = 0; i < produced.length; i++) {
+                    if (!complete[i] && produced[i] <= newIndex) {
+                        pending++;
+                    }
+                }
+                uncompleteBatches.add(new Batch(produced.length, pending));
+            }
+            return uncompleteBatches.get(index - emitted);
+        }
+
+        private void emitCompleteBatches() {
+            while (!uncompleteBatches.isEmpty() && uncompleteBatches.get(0).pending <= 0) {
+                final Batch batch = uncompleteBatches.remove(0);
+                emitted++;
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("A batch is complete " + batch);
+                }
+                listBindingStream.accept(batch.getBindings());
             }
-            listBindingStream.accept(batch.bindings);
         }
 
         @Override
@@ -238,35 +488,45 @@ public class IteratorPlan implements BindingsClausePlan {
 
     }
 
-    private class Batch {
+    private static class Batch {
 
-        final List<Binding> expectedExecutions = new ArrayList<>();
-        final List<Binding> bindings = new ArrayList<>();
+        final List<List<Binding>> chunks;
+        int pending;
 
-        Batch(final List<Binding> uncompleteExecutions) {
-            expectedExecutions.addAll(uncompleteExecutions);
+        Batch(final int executions, final int pending) {
+            this.chunks = new ArrayList<>(Collections.nCopies(executions, null));
+            this.pending = pending;
         }
 
-        synchronized boolean addAndCheckIfEmpty(
-                final Binding iterator,
+        void add(
+                final int execution,
                 final List<Binding> bindings) {
-            expectedExecutions.remove(iterator);
-            this.bindings.addAll(bindings);
-            return expectedExecutions.isEmpty();
+            chunks.set(execution, bindings);
+            pending--;
+        }
+
+        List<Binding> getBindings() {
+            final List<Binding> bindings = new ArrayList<>();
+            for (List<Binding> chunk : chunks) {
+                if (chunk != null) {
+                    bindings.addAll(chunk);
+                }
+            }
+            return bindings;
         }
 
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder("Batch ");
             sb.append(System.identityHashCode(this));
-            if (expectedExecutions.isEmpty()) {
+            if (pending <= 0) {
                 sb.append(" complete with ");
             } else {
                 sb.append(" still waiting for ");
-                sb.append(expectedExecutions.size());
+                sb.append(pending);
                 sb.append(" and has ");
             }
-            sb.append(LogUtils.log(bindings));
+            sb.append(LogUtils.log(getBindings()));
             return sb.toString();
         }
 
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+
+/**
+ * The default {@link ExecutionMetrics}: counters held in memory, that can be
+ * read as a snapshot, or through JMX once {@link #registerMBean(String)} is
+ * called.
+ * <p>
+ * The metrics are named as follows:
+ * <ul>
+ * <li>{@code calls.<type>.<query>}: the number of calls to a sub-query;</li>
+ * <li>{@code plan.builds.<query>} and {@code plan.nanos.<query>}: the number of
+ * plans built for a query, and the time taken;</li>
+ * <li>{@code rows.in.<query>} and {@code rows.out.<query>}: the number of
+ * bindings received by the executions of a query, and produced by its
+ * ITERATOR, SOURCE and BIND clauses;</li>
+ * <li>{@code cache.<cache>.hits}, {@code .misses}, {@code .evictions} and
+ * {@code .size}: the statistics of a cache.</li>
+ * </ul>
+ * The statistics of the caches registered under the same name are added, for
+ * example those of the caches of successive executions. A cache only counts
+ * for what happened while it was registered. The statistics of a cache are
+ * kept when it is unregistered, but the cache itself is not.
+ *
+ * @author Maxime Lefrançois
+ */
+public class MetricsRegistry implements ExecutionMetrics, MetricsRegistryMXBean {
+
+	private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+	/**
+	 * The caches registered, guarded by this registry.
+	 */
+	private final Map<Cache<?, ?>, Registration> caches = new IdentityHashMap<>();
+
+	/**
+	 * The statistics of the caches no longer registered, by cache name,
+	 * guarded by this registry.
+	 */
+	private final Map<String, CacheStats> unregistered = new HashMap<>();
+
+	private void add(final String name, final long value) {
+		counters.computeIfAbsent(name, (n) -> new LongAdder()).add(value);
+	}
+
+	@Override
+	public void queryCalled(final String type, final String queryName) {
+		add("calls." + type + "." + queryName, 1);
+	}
+
+	@Override
+	public void planBuilt(final String queryName, final long nanos) {
+		add("plan.builds." + queryName, 1);
+		add("plan.nanos." + queryName, nanos);
+	}
+
+	@Override
+	public void rowsIn(final String queryName, final long rows) {
+		add("rows.in." + queryName, rows);
+	}
+
+	@Override
+	public void rowsOut(final String queryName, final long rows) {
+		add("rows.out." + queryName, rows);
+	}
+
+	@Override
+	public synchronized void registerCache(final String cacheName, final Cache<?, ?> cache) {
+		caches.computeIfAbsent(cache, (c) -> new Registration(cacheName, c.stats())).count++;
+	}
+
+	@Override
+	public synchronized void unregisterCache(final String cacheName, final Cache<?, ?> cache) {
+		final Registration registration = caches.get(cache);
+		if (registration == null || --registration.count > 0) {
+			return;
+		}
+		caches.remove(cache);
+		unregistered.merge(registration.name, cache.stats().minus(registration.base), CacheStats::plus);
+	}
+
+	@Override
+	public SortedMap<String, Long> snapshot() {
+		final SortedMap<String, Long> snapshot = new TreeMap<>();
+		counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+		final Map<String, CacheStats> stats;
+		final Map<String, Long> sizes = new HashMap<>();
+		synchronized (this) {
+			stats = new HashMap<>(unregistered);
+			caches.forEach((cache, registration) -> {
+				stats.merge(registration.name, cache.stats().minus(registration.base), CacheStats::plus);
+				sizes.merge(registration.name, cache.size(), Long::sum);
+			});
+		}
+		stats.forEach((name, stat) -> {
+			snapshot.put("cache." + name + ".hits", stat.hitCount());
+			snapshot.put("cache." + name + ".misses", stat.missCount());
+			snapshot.put("cache." + name + ".evictions", stat.evictionCount());
+			snapshot.put("cache." + name + ".size", sizes.getOrDefault(name, 0L));
+		});
+		return snapshot;
+	}
+
+	@Override
+	public Map<String, Long> getSnapshot() {
+		return snapshot();
+	}
+
+	/**
+	 * Registers this registry in the platform MBean server.
+	 *
+	 * @param name
+	 *            the name of the registry, used in its object name.
+	 * @return the object name.
+	 */
+	public ObjectName registerMBean(final String name) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName objectName = new ObjectName(
+					"fr.mines_stetienne.ci.sparql_generate:type=Metrics,name=" + ObjectName.quote(name));
+			server.registerMBean(this, objectName);
+			return objectName;
+		} catch (JMException ex) {
+			throw new SPARQLExtException("Error while registering the metrics " + name, ex);
+		}
+	}
+
+	/**
+	 * A cache registered, with its statistics when it was first registered,
+	 * and the number of executions that registered it.
+	 */
+	private static final class Registration {
+
+		private final String name;
+		private final CacheStats base;
+		private int count = 0;
+
+		private Registration(final String name, final CacheStats base) {
+			this.name = name;
+			this.base = base;
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("Metrics:");
+		snapshot().forEach((name, value) -> sb.append("\n  ").append(name).append(" = ").append(value));
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a {@link MetricsRegistry}.
+ *
+ * @author Maxime Lefrançois
+ */
+public interface MetricsRegistryMXBean {
+
+	/**
+	 * @return the current value of every metric, by metric name.
+	 */
+	Map<String, Long> getSnapshot();
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.sparql.syntax.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementSubExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.syntax.FromClause;
+
+/**
+ * A persistent cache of the normalized queries, shared by successive
+ * executions of the same queries.
+ * <p>
+ * Queries with embedded expressions are serialized, parsed again, and
+ * normalized before a plan is made for them. This cache stores the normalized
+ * query in a directory, in a file named after a hash of the query text and of
+ * the base IRI, so that the next executions parse the normalized query once and
+ * skip the normalization. A modified query file has a different hash, and is
+ * normalized again.
+ * <p>
+ * A query is cached only if its normalized form is parsed back to the same
+ * query. Other queries are planned as usual.
+ *
+ * @author Maxime Lefrançois
+ */
+public class PlanCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PlanCache.class);
+
+	/**
+	 * Changes when the format of the cache files changes.
+	 */
+	private static final String VERSION = "1";
+
+	/**
+	 * The header line that lists, for the query and each of its sub-queries,
+	 * whether it still has embedded expressions once normalized.
+	 */
+	private static final String HEADER = "#embedded ";
+
+	private final Path directory;
+
+	/**
+	 * @param directory
+	 *            the directory where the normalized queries are stored. It is
+	 *            created if it does not exist.
+	 */
+	public PlanCache(final Path directory) {
+		this.directory = directory;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Gets the plan for a query, using the normalized query stored in the
+	 * directory if any.
+	 *
+	 * @param queryString
+	 *            the query.
+	 * @param base
+	 *            the base IRI, if not set explicitly in the query.
+	 * @return the plan.
+	 */
+	public RootPlan getPlan(final String queryString, final String base) {
+		final Path file = directory.resolve(key(queryString, base) + ".rqg");
+		if (Files.isRegularFile(file)) {
+			try {
+				final String normalized = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+				final RootPlan plan = PlanFactory.create(parseNormalized(normalized, base));
+				LOG.debug("Loaded normalized query from " + file);
+				return plan;
+			} catch (IOException | RuntimeException ex) {
+				LOG.warn("Ignoring the cached query " + file, ex);
+			}
+		}
+		final RootPlan plan = PlanFactory.create(queryString, base);
+		store(file, plan.getQuery(), base);
+		return plan;
+	}
+
+	private void store(final Path file, final SPARQLExtQuery query, final String base) {
+		final List<SPARQLExtQuery> queries = new ArrayList<>();
+		collect(query, queries);
+		final StringBuilder sb = new StringBuilder(HEADER);
+		for (SPARQLExtQuery q : queries) {
+			sb.append(q.hasEmbeddedExpressions() ? '1' : '0');
+		}
+		sb.append('\n').append(query.toString());
+		final String normalized = sb.toString();
+		try {
+			final SPARQLExtQuery parsed = parseNormalized(normalized, base);
+			if (!parsed.toString().equals(query.toString())) {
+				LOG.debug("Not caching the query, its normalized form is parsed differently:\n" + query);
+				return;
+			}
+			Files.createDirectories(directory);
+			final Path tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+			Files.write(tmp, normalized.getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			LOG.debug("Stored normalized query in " + file);
+		} catch (IOException | RuntimeException ex) {
+			LOG.warn("Could not cache the query in " + file, ex);
+		}
+	}
+
+	/**
+	 * Parses a normalized query, and restores which of its sub-queries still
+	 * have to be normalized.
+	 */
+	private static SPARQLExtQuery parseNormalized(final String normalized, final String base) {
+		if (!normalized.startsWith(HEADER)) {
+			throw new SPARQLExtException("Not a normalized query");
+		}
+		final String flags = normalized.substring(HEADER.length(), normalized.indexOf('\n'));
+		final SPARQLExtQuery query = (SPARQLExtQuery) QueryFactory.create(normalized, base, SPARQLExt.SYNTAX);
+		if (!query.explicitlySetBaseURI()) {
+			query.setBaseURI(base);
+		}
+		final List<SPARQLExtQuery> queries = new ArrayList<>();
+		collect(query, queries);
+		if (queries.size() != flags.length()) {
+			throw new SPARQLExtException("Expected " + flags.length() + " queries, got " + queries.size());
+		}
+		for (int i = 0; i < queries.size(); i++) {
+			queries.get(i).hasEmbeddedExpressions(flags.charAt(i) == '1');
+		}
+		return query;
+	}
+
+	/**
+	 * Lists the query and its GENERATE sub-queries, depth first.
+	 */
+	private static void collect(final SPARQLExtQuery query, final List<SPARQLExtQuery> queries) {
+		queries.add(query);
+		if (query.getFromClauses() != null) {
+			for (FromClause fromClause : query.getFromClauses()) {
+				if (fromClause.getGenerate() != null) {
+					collect(fromClause.getGenerate(), queries);
+				}
+			}
+		}
+		if (query.hasGenerateClause()) {
+			for (Element element : query.getGenerateClause()) {
+				if (element instanceof ElementSubExtQuery) {
+					collect(((ElementSubExtQuery) element).getQuery(), queries);
+				}
+			}
+		}
+	}
+
+	private static String key(final String queryString, final String base) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(String.valueOf(base).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(queryString.replace("\r\n", "\n").trim().getBytes(StandardCharsets.UTF_8));
+			final StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest()) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new SPARQLExtException(ex);
+		}
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.sparql.ARQConstants;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.OpVisitorBase;
+import org.apache.jena.sparql.algebra.OpWalker;
+import org.apache.jena.sparql.algebra.TransformCopy;
+import org.apache.jena.sparql.algebra.Transformer;
+import org.apache.jena.sparql.algebra.op.OpTable;
+import org.apache.jena.sparql.algebra.table.TableData;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.ResultSetStream;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.iterator.QueryIterRoot;
+import org.apache.jena.sparql.engine.main.QC;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementData;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.util.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A SELECT query compiled and optimized once into an ARQ algebra expression,
+ * and executed for every batch of bindings.
+ * <p>
+ * The query is compiled with a placeholder VALUES block for the variables
+ * bound by the ITERATOR, SOURCE, and BIND clauses. Before each execution, the
+ * placeholder table is replaced in the optimized algebra expression by the
+ * table of the batch.
+ */
+class PreparedSelect {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PreparedSelect.class);
+
+	private final Query query;
+
+	private final Op op;
+
+	private final OpTable placeholder;
+
+	private final List<Var> variables;
+
+	private final List<String> resultVars;
+
+	private PreparedSelect(final Query query, final Op op, final OpTable placeholder, final List<Var> variables,
+			final List<String> resultVars) {
+		this.query = query;
+		this.op = op;
+		this.placeholder = placeholder;
+		this.variables = variables;
+		this.resultVars = resultVars;
+	}
+
+	/**
+	 * Compiles and optimizes the query.
+	 *
+	 * @param query
+	 *            the query, without the values of the batch. This query is
+	 *            modified.
+	 * @param variables
+	 *            the variables of the batches.
+	 * @param context
+	 *            the execution context.
+	 * @return the prepared query, or null if it could not be prepared.
+	 */
+	static PreparedSelect prepare(final Query query, final List<Var> variables, final Context context) {
+		if (variables.isEmpty()) {
+			query.setResultVars();
+			final Op op = Algebra.optimize(Algebra.compile(query), context);
+			return new PreparedSelect(query, op, null, variables, query.getResultVars());
+		}
+		if (!(query.getQueryPattern() instanceof ElementGroup)) {
+			return null;
+		}
+		final ElementGroup old = (ElementGroup) query.getQueryPattern();
+		if (old.size() >= 1 && old.get(0) instanceof ElementData) {
+			return null;
+		}
+		final Node marker = NodeFactory.createBlankNode();
+		final ElementData data = new ElementData();
+		variables.forEach(data::add);
+		data.add(Binding.builder().add(variables.get(0), marker).build());
+		final ElementGroup newQueryPattern = new ElementGroup();
+		newQueryPattern.addElement(data);
+		for (Element element : old.getElements()) {
+			newQueryPattern.addElement(element);
+		}
+		query.setQueryPattern(newQueryPattern);
+		query.setResultVars();
+		final Op op = Algebra.optimize(Algebra.compile(query), context);
+
+		final List<OpTable> placeholders = new ArrayList<>();
+		OpWalker.walk(op, new OpVisitorBase() {
+			@Override
+			public void visit(OpTable opTable) {
+				Iterator<Binding> rows = opTable.getTable().rows();
+				if (rows.hasNext() && marker.equals(rows.next().get(variables.get(0)))) {
+					placeholders.add(opTable);
+				}
+			}
+		});
+		if (placeholders.size() != 1) {
+			LOG.debug("Could not locate the values block in the optimized query " + op);
+			return null;
+		}
+		return new PreparedSelect(query, op, placeholders.get(0), variables, query.getResultVars());
+	}
+
+	Op getOp() {
+		return op;
+	}
+
+	/**
+	 * Executes the query for a batch of bindings.
+	 *
+	 * @param values
+	 *            the bindings of the batch.
+	 * @param dataset
+	 *            the dataset to query.
+	 * @param context
+	 *            the execution context.
+	 * @return the iterator over the results. It must be closed by the caller.
+	 */
+	QueryIterator exec(final List<Binding> values, final Dataset dataset, final Context context) {
+		final Op boundOp;
+		if (placeholder == null) {
+			boundOp = op;
+		} else {
+			final OpTable table = OpTable.create(new TableData(variables, values));
+			boundOp = Transformer.transform(new TransformCopy() {
+				@Override
+				public Op transform(OpTable opTable) {
+					return opTable == placeholder ? table : opTable;
+				}
+			}, op);
+		}
+		final DatasetGraph dsg = dataset.asDatasetGraph();
+		final Context cxt = Context.setupContextForDataset(context, dsg);
+		// the base IRI of the query is used to resolve relative IRIs
+		cxt.set(ARQConstants.sysCurrentQuery, query);
+		Context.setCurrentDateTime(cxt);
+		final ExecutionContext execCxt = new ExecutionContext(cxt, dsg.getDefaultGraph(), dsg, QC.getFactory(cxt));
+		return QC.execute(boundOp, QueryIterRoot.create(execCxt), execCxt);
+	}
+
+	/**
+	 * Wraps the results of an execution as a result set.
+	 *
+	 * @param results
+	 *            the iterator returned by
+	 *            {@link #exec(List, Dataset, Context)}.
+	 * @param dataset
+	 *            the queried dataset.
+	 * @return the result set.
+	 */
+	ResultSet asResultSet(final QueryIterator results, final Dataset dataset) {
+		return ResultSetStream.create(resultVars, dataset.getDefaultModel(), results);
+	}
+
+}
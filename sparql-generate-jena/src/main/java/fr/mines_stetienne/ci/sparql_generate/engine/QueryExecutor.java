@@ -18,30 +18,40 @@ package fr.mines_stetienne.ci.sparql_generate.engine;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.atlas.web.TypedInputStream;
+import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
 import org.apache.jena.query.QueryFactory;
 import org.apache.jena.query.QueryParseException;
 import org.apache.jena.query.ResultSet;
-import org.apache.jena.query.ResultSetFactory;
-import org.apache.jena.query.ResultSetRewindable;
+import org.apache.jena.riot.system.StreamRDFLib;
 import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ResultSetStream;
 import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.engine.binding.BindingBuilder;
+import org.apache.jena.sparql.graph.GraphFactory;
 import org.apache.jena.sparql.util.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
@@ -49,6 +59,7 @@ import fr.mines_stetienne.ci.sparql_generate.lang.ParserSPARQLExt;
 import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
+import fr.mines_stetienne.ci.sparql_generate.utils.TemplateWriter;
 
 /**
  *
@@ -61,11 +72,102 @@ public class QueryExecutor {
      */
     private static final Logger LOG = LoggerFactory.getLogger(QueryExecutor.class);
 
-    private final Cache<String, SPARQLExtQuery> loadedQueries = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.MINUTES).maximumSize(200_000).build();
-    private final Cache<SPARQLExtQuery, RootPlan> loadedPlans = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.MINUTES).maximumSize(200_000).build();
-    private final Cache<ExecutionKey, String> templateExecutions = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.SECONDS).maximumSize(200_000).recordStats().build();
-    private final Cache<ExecutionKey, ResultSetRewindable> selectExecutions = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.SECONDS).maximumSize(200_000).recordStats().build();
-    static int nbselect = 0, nbtemplate = 0, nbgenerate = 0;
+    private final Cache<String, SPARQLExtQuery> loadedQueries = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.MINUTES).maximumSize(200_000).recordStats().build();
+    private final Cache<SPARQLExtQuery, RootPlan> loadedPlans = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.MINUTES).maximumSize(200_000).recordStats().build();
+    private final Cache<ExecutionKey, String> templateExecutions;
+    private final boolean templateMemoised;
+    private final Cache<ExecutionKey, SelectResult> selectExecutions;
+    private final Cache<RootPlan, Boolean> deterministicPlans = CacheBuilder.newBuilder().weakKeys().build();
+    private final Cache<RootPlan, Boolean> memoisablePlans = CacheBuilder.newBuilder().weakKeys().build();
+    private final boolean selectMemoised;
+    private final ExecutionMetrics metrics;
+
+    /**
+     * The default maximal number of call bindings whose SELECT results are
+     * memoised.
+     */
+    public static final long DEFAULT_SELECT_CACHE_SIZE = 200_000;
+
+    /**
+     * The default time, in milliseconds, after which the memoised SELECT
+     * results of a call binding that is not used are discarded.
+     */
+    public static final long DEFAULT_SELECT_CACHE_TTL = 10_000;
+
+    /**
+     * The default time, in milliseconds, after which the memoised TEMPLATE
+     * output of a call binding that is not used is discarded.
+     */
+    public static final long DEFAULT_TEMPLATE_CACHE_TTL = 10_000;
+
+    /**
+     * Creates a query executor that records its metrics in a new
+     * {@link MetricsRegistry}.
+     */
+    public QueryExecutor() {
+        this(new MetricsRegistry());
+    }
+
+    /**
+     * Creates a query executor.
+     *
+     * @param metrics where the metrics are recorded.
+     */
+    public QueryExecutor(final ExecutionMetrics metrics) {
+        this(metrics, DEFAULT_SELECT_CACHE_SIZE, DEFAULT_SELECT_CACHE_TTL);
+    }
+
+    /**
+     * Creates a query executor.
+     *
+     * @param metrics where the metrics are recorded.
+     * @param selectCacheSize the maximal number of call bindings whose SELECT
+     * results are memoised, or 0 to not memoise them.
+     * @param selectCacheTtl the time, in milliseconds, after which the
+     * memoised results of a call binding that is not used are discarded.
+     */
+    public QueryExecutor(final ExecutionMetrics metrics, final long selectCacheSize, final long selectCacheTtl) {
+        this(metrics, selectCacheSize, selectCacheTtl, 0, 0, DEFAULT_TEMPLATE_CACHE_TTL);
+    }
+
+    /**
+     * Creates a query executor.
+     *
+     * @param metrics where the metrics are recorded.
+     * @param selectCacheSize the maximal number of call bindings whose SELECT
+     * results are memoised, or 0 to not memoise them.
+     * @param selectCacheTtl the time, in milliseconds, after which the
+     * memoised results of a call binding that is not used are discarded.
+     * @param templateCacheSize the maximal number of call bindings whose
+     * TEMPLATE output is memoised, or 0 to not memoise them.
+     * @param templateCacheCharacters the maximal number of characters of
+     * TEMPLATE output memoised.
+     * @param templateCacheTtl the time, in milliseconds, after which the
+     * memoised output of a call binding that is not used is discarded.
+     */
+    public QueryExecutor(final ExecutionMetrics metrics, final long selectCacheSize, final long selectCacheTtl,
+            final long templateCacheSize, final long templateCacheCharacters, final long templateCacheTtl) {
+        Objects.requireNonNull(metrics, "Metrics must not be null");
+        this.metrics = metrics;
+        this.selectMemoised = selectCacheSize > 0;
+        this.selectExecutions = CacheBuilder.newBuilder().expireAfterAccess(selectCacheTtl, TimeUnit.MILLISECONDS).maximumSize(selectCacheSize).recordStats().build();
+        this.templateMemoised = templateCacheSize > 0 && templateCacheCharacters > 0;
+        // each output weighs at least its share of the characters, so that
+        // both the number of outputs and their total length are bounded
+        final int minWeight = templateMemoised ? (int) Math.min(Integer.MAX_VALUE, Math.max(1, templateCacheCharacters / templateCacheSize)) : 1;
+        this.templateExecutions = CacheBuilder.newBuilder().expireAfterAccess(templateCacheTtl, TimeUnit.MILLISECONDS)
+                .maximumWeight(templateMemoised ? templateCacheCharacters : 0)
+                .weigher((ExecutionKey key, String output) -> Math.max(minWeight, output.length()))
+                .recordStats().build();
+        metrics.registerCache("loadedQueries", loadedQueries);
+        metrics.registerCache("loadedPlans", loadedPlans);
+        metrics.registerCache("templateExecutions", templateExecutions);
+        metrics.registerCache("selectExecutions", selectExecutions);
+    }
+
+    public ExecutionMetrics getMetrics() {
+        return metrics;
+    }
 
     /**
      *
@@ -89,6 +191,14 @@ public class QueryExecutor {
                     } catch (IOException ex) {
                         throw new SPARQLExtException("Error while loading the query file " + queryName, ex);
                     }
+                    final PlanCache planCache = ContextUtils.getPlanCache(context);
+                    if (planCache != null) {
+                        final long start = System.nanoTime();
+                        final RootPlan plan = planCache.getPlan(qString, ContextUtils.getBase(context)).named(queryName);
+                        metrics.planBuilt(queryName, System.nanoTime() - start);
+                        loadedPlans.put(plan.getQuery(), plan);
+                        return plan.getQuery();
+                    }
                     final SPARQLExtQuery q;
                     try {
                     	String base = ContextUtils.getBase(context);
@@ -142,7 +252,7 @@ public class QueryExecutor {
     public RootPlan getPlanFromName(
             final String queryName,
             final Context context) {
-        return getPlan(getQueryFromName(queryName, context));
+        return getPlan(getQueryFromName(queryName, context), queryName);
     }
 
     /**
@@ -165,9 +275,18 @@ public class QueryExecutor {
      */
     public RootPlan getPlan(
             final SPARQLExtQuery query) {
+        return getPlan(query, ExecutionMetrics.ANONYMOUS);
+    }
+
+    private RootPlan getPlan(
+            final SPARQLExtQuery query,
+            final String queryName) {
         try {
             return loadedPlans.get(query, () -> {
-                return PlanFactory.create(query);
+                final long start = System.nanoTime();
+                final RootPlan plan = PlanFactory.create(query).named(queryName);
+                metrics.planBuilt(queryName, System.nanoTime() - start);
+                return plan;
             });
         } catch (ExecutionException ex) {
             throw (SPARQLExtException) ex.getCause();
@@ -187,12 +306,152 @@ public class QueryExecutor {
     	Objects.nonNull(query);
         Objects.nonNull(binding);
         Objects.nonNull(context);
+        metrics.queryCalled("generate", ExecutionMetrics.ANONYMOUS);
         final RootPlan plan = getPlan(query);
         final List<Binding> newValues = new ArrayList<>();
         newValues.add(binding);
         execGeneratePlan(plan, newValues, context);
     }
 
+    /**
+     * Executes the query of a FROM GENERATE clause, and returns the generated
+     * graph. If the query and the queries it calls always generate the same
+     * graph for the same binding, the graph is generated once for each
+     * distinct binding of the variables the query mentions and input
+     * dataset, and reused until the root execution is closed.
+     *
+     * @param query the GENERATE query.
+     * @param binding the binding of the enclosing query, or null.
+     * @param context the execution context.
+     * @return the generated graph, that must not be modified.
+     */
+    public Graph execGenerateGraphFromQuery(
+            final SPARQLExtQuery query,
+            final Binding binding,
+            final Context context) {
+        final RootPlan plan = getPlan(query);
+        final SubQueryEvent event = EngineEvents.beginSubQuery();
+        final Graph generated;
+        int cacheHits = 0;
+        if (!isDeterministic(plan, context)) {
+            generated = generateGraph(plan, binding, context);
+        } else {
+            final Binding projected = plan.getScan().project(binding);
+            final boolean[] loaded = { false };
+            try {
+                generated = ContextUtils.getGeneratedGraphs(context).get(
+                        new ExecutionKey(plan, projected, ContextUtils.getDataset(context)), () -> {
+                            loaded[0] = true;
+                            return generateGraph(plan, projected, context);
+                        });
+            } catch (ExecutionException | UncheckedExecutionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                throw new SPARQLExtException(ex.getCause());
+            }
+            cacheHits = loaded[0] ? 0 : 1;
+        }
+        if (event != null) {
+            event.record(plan.getName(), "GENERATE", 1, cacheHits);
+        }
+        return generated;
+    }
+
+    private Graph generateGraph(
+            final RootPlan plan,
+            final Binding binding,
+            final Context context) {
+        metrics.queryCalled("generate", ExecutionMetrics.ANONYMOUS);
+        final Graph graph = GraphFactory.createJenaDefaultGraph();
+        final Context newContext = ContextUtils.fork(context).setGenerateOutput(StreamRDFLib.graph(graph)).fork();
+        final List<Binding> newValues = new ArrayList<>();
+        newValues.add(binding);
+        plan.execGenerateStream(newValues, newContext);
+        return graph;
+    }
+
+    /**
+     * Checks if a plan, and the plans it calls, always produce the same output
+     * for the same binding and input dataset.
+     *
+     * @param plan the plan.
+     * @param context the execution context, to look up the called queries.
+     * @return false if the plan, or a plan it calls, is not deterministic or
+     * cannot be loaded.
+     */
+    boolean isDeterministic(
+            final RootPlan plan,
+            final Context context) {
+        return checkCalled(plan, context, deterministicPlans, QueryScan::isDeterministic);
+    }
+
+    /**
+     * Checks if the output of a TEMPLATE plan can be memoised: the plan and
+     * the plans it calls are deterministic, and do not change the indentation
+     * of the output.
+     *
+     * @param plan the plan.
+     * @param context the execution context, to look up the called queries.
+     * @return true if the output only depends on the call parameters and on
+     * the input dataset.
+     */
+    private boolean isTemplateMemoisable(
+            final RootPlan plan,
+            final Context context) {
+        return plan.isTemplateMemoisable() && checkCalled(plan, context, memoisablePlans,
+                (scan) -> scan.isDeterministic() && scan.isIndentationFree());
+    }
+
+    private boolean checkCalled(
+            final RootPlan plan,
+            final Context context,
+            final Cache<RootPlan, Boolean> checkedPlans,
+            final Predicate<QueryScan> check) {
+        final Boolean known = checkedPlans.getIfPresent(plan);
+        if (known != null) {
+            return known;
+        }
+        boolean checked;
+        try {
+            checked = checkCalled(plan, context, check, new HashSet<>());
+        } catch (RuntimeException ex) {
+            LOG.debug("Could not load a query called by " + plan.getName(), ex);
+            checked = false;
+        }
+        checkedPlans.put(plan, checked);
+        return checked;
+    }
+
+    private boolean checkCalled(
+            final RootPlan plan,
+            final Context context,
+            final Predicate<QueryScan> check,
+            final Set<RootPlan> visited) {
+        if (plan == null) {
+            return false;
+        }
+        // a plan that calls itself is checked once
+        if (!visited.add(plan)) {
+            return true;
+        }
+        final QueryScan scan = plan.getScan();
+        if (!check.test(scan)) {
+            return false;
+        }
+        for (String name : scan.getCalledNames()) {
+            if (!checkCalled(getPlanFromName(name, context), context, check, visited)) {
+                return false;
+            }
+        }
+        for (String queryString : scan.getCalledQueries()) {
+            if (!checkCalled(getPlanFromString(queryString, null), context, check, visited)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      *
      * @param queryName
@@ -206,6 +465,7 @@ public class QueryExecutor {
         Objects.nonNull(queryName);
         Objects.nonNull(callParameters);
         Objects.nonNull(context);
+        metrics.queryCalled("generate", queryName);
         final RootPlan plan = getPlanFromName(queryName, context);
         final SPARQLExtQuery query = plan.getQuery();
         final List<Var> signature = getSignature(query);
@@ -218,10 +478,11 @@ public class QueryExecutor {
             final List<Binding> values,
             final Context context) {
         Objects.nonNull(ContextUtils.getGenerateOutput(context));
-        if (++nbgenerate % 2000 == 00) {
-            LOG.info(String.format("Called generates %s times.", nbgenerate));
-        }
+        final SubQueryEvent event = EngineEvents.beginSubQuery();
         plan.execGenerateStream(values, context);
+        if (event != null) {
+            event.record(plan.getName(), "GENERATE", values.size(), 0);
+        }
     }
     /**
      *
@@ -236,6 +497,7 @@ public class QueryExecutor {
         Objects.nonNull(queryName);
         Objects.nonNull(callParameters);
         Objects.nonNull(context);
+        metrics.queryCalled("select", queryName);
         final RootPlan plan = getPlanFromName(queryName, context);
         final SPARQLExtQuery query = plan.getQuery();
         final List<Var> signature = getSignature(query);
@@ -266,6 +528,7 @@ public class QueryExecutor {
         Objects.nonNull(query);
         Objects.nonNull(callParameters);
         Objects.nonNull(context);
+        metrics.queryCalled("select", ExecutionMetrics.ANONYMOUS);
         final String queryName = LogUtils.compress(query.toString());
         final RootPlan plan = getPlan(query);
         final List<Var> signature = getSignature(query);
@@ -273,26 +536,146 @@ public class QueryExecutor {
         execSelectPlan(plan, newValues, context);
     }
 
+    /**
+     * Executes a SELECT plan for a list of call bindings. The results are
+     * memoised per call binding: the results of the bindings met recently are
+     * served from the memo, and the other bindings are executed in one SELECT,
+     * whose results are dispatched to the bindings they were computed for.
+     * <p>
+     * Results can be dispatched only if the query projects its signature and
+     * does not combine the results of different bindings with GROUP BY, ORDER
+     * BY, LIMIT or OFFSET. Otherwise, a list of several bindings is executed
+     * as a whole, without the memo.
+     *
+     * @param plan
+     * @param newValues
+     * @param context
+     */
     public void execSelectPlan(
             final RootPlan plan,
             final List<Binding> newValues,
             final Context context) {
         Objects.nonNull(ContextUtils.getSelectOutput(context));
-        final ExecutionKey key = new ExecutionKey(plan, newValues);
-        if (++nbselect % 2000 == 00) {
-            CacheStats stats = selectExecutions.stats();
+        final SubQueryEvent event = EngineEvents.beginSubQuery();
+        final int cacheHits = execSelectPlanMemoised(plan, newValues, context);
+        if (event != null) {
+            event.record(plan.getName(), "SELECT", newValues.size(), cacheHits);
+        }
+    }
+
+    /**
+     * @return the number of call bindings whose results were memoised.
+     */
+    private int execSelectPlanMemoised(
+            final RootPlan plan,
+            final List<Binding> newValues,
+            final Context context) {
+        if (!selectMemoised || newValues.size() > 1 && !isDispatchable(plan.getQuery())) {
+            ContextUtils.getSelectOutput(context).accept(plan.execSelect(newValues, context));
+            return 0;
+        }
+        final SelectResult[] results = new SelectResult[newValues.size()];
+        final Map<Binding, List<Integer>> missing = new LinkedHashMap<>();
+        int hits = 0;
+        for (int i = 0; i < results.length; i++) {
+            results[i] = selectExecutions.getIfPresent(new ExecutionKey(plan, newValues.get(i)));
+            if (results[i] == null) {
+                missing.computeIfAbsent(newValues.get(i), (b) -> new ArrayList<>()).add(i);
+            } else {
+                hits++;
+            }
+        }
+        final ExecutionProfile.PlanNode profileNode = plan.getProfileNode(context);
+        if (profileNode != null) {
+            profileNode.addCacheHits(hits);
+        }
+        if (!missing.isEmpty()) {
+            final List<Binding> missingValues = new ArrayList<>(missing.keySet());
+            final ResultSet resultSet = plan.execSelect(missingValues, context);
+            final List<SelectResult> missingResults = dispatch(plan.getQuery(), missingValues, resultSet);
+            if (missingResults == null) {
+                LOG.debug("Could not dispatch the results of " + plan.getName() + " to the call bindings");
+                ContextUtils.getSelectOutput(context).accept(plan.execSelect(newValues, context));
+                return hits;
+            }
+            for (int j = 0; j < missingValues.size(); j++) {
+                final SelectResult result = missingResults.get(j);
+                selectExecutions.put(new ExecutionKey(plan, missingValues.get(j)), result);
+                for (int i : missing.get(missingValues.get(j))) {
+                    results[i] = result;
+                }
+            }
+        }
+        final List<Binding> rows = new ArrayList<>();
+        for (SelectResult result : results) {
+            rows.addAll(result.rows);
+        }
+        final List<String> resultVars = results.length > 0 ? results[0].resultVars : plan.getQuery().getResultVars();
+        ContextUtils.getSelectOutput(context).accept(ResultSetStream.create(resultVars, null, rows.iterator()));
+        return hits;
+    }
 
-            LOG.info("call select " + nbselect + " count " + stats.loadCount() + " - hit count " + stats.hitCount() + " - rate " + stats.hitRate());
+    /**
+     * Checks that every result row of a query can be traced back to the call
+     * binding it was computed for.
+     */
+    private boolean isDispatchable(final SPARQLExtQuery query) {
+        if (query.hasGroupBy() || query.hasAggregators() || query.hasOrderBy() || query.hasLimit()
+                || query.hasOffset()) {
+            return false;
+        }
+        if (query.isQueryResultStar()) {
+            return true;
         }
-        ResultSetRewindable resultSet = selectExecutions.getIfPresent(key);
-        if (resultSet != null) {
-            resultSet.reset();
+        final List<Var> projected = query.getProjectVars();
+        return projected.containsAll(getSignature(query));
+    }
+
+    /**
+     * Splits the results of a SELECT executed for several call bindings.
+     *
+     * @return the results of each binding, or null if a result row cannot be
+     * traced back to one binding.
+     */
+    private List<SelectResult> dispatch(final SPARQLExtQuery query, final List<Binding> values,
+            final ResultSet resultSet) {
+        final List<String> resultVars = resultSet.getResultVars();
+        final List<List<Binding>> rows = new ArrayList<>();
+        for (int j = 0; j < values.size(); j++) {
+            rows.add(new ArrayList<>());
+        }
+        if (values.size() == 1) {
+            while (resultSet.hasNext()) {
+                rows.get(0).add(resultSet.nextBinding());
+            }
         } else {
-            ResultSet memResultSet = plan.execSelect(newValues, context);
-            resultSet = ResultSetFactory.copyResults(memResultSet);
-            selectExecutions.put(key, resultSet);
+            final List<Var> signature = getSignature(query);
+            final Map<List<Node>, Integer> index = new HashMap<>();
+            for (int j = 0; j < values.size(); j++) {
+                index.put(signatureValues(signature, values.get(j)), j);
+            }
+            while (resultSet.hasNext()) {
+                final Binding row = resultSet.nextBinding();
+                final Integer j = index.get(signatureValues(signature, row));
+                if (j == null) {
+                    return null;
+                }
+                rows.get(j).add(row);
+            }
+        }
+        final List<SelectResult> results = new ArrayList<>();
+        for (List<Binding> r : rows) {
+            results.add(new SelectResult(resultVars, r));
+        }
+        return results;
+    }
+
+    private List<Node> signatureValues(final List<Var> signature, final Binding binding) {
+        final List<Node> nodes = new ArrayList<>(signature.size());
+        for (Var var : signature) {
+            nodes.add(binding.get(var));
         }
-        ContextUtils.getSelectOutput(context).accept(resultSet);
+        return nodes;
     }
 
     /**
@@ -309,6 +692,7 @@ public class QueryExecutor {
         Objects.nonNull(queryName);
         Objects.nonNull(callParameters);
         Objects.nonNull(context);
+        metrics.queryCalled("template", queryName);
         final RootPlan plan = getPlanFromName(queryName, context);
         final SPARQLExtQuery query = plan.getQuery();
         final List<Var> signature = getSignature(query);
@@ -316,6 +700,60 @@ public class QueryExecutor {
         execTemplatePlan(plan, newValues, context);
     }
 
+    /**
+     * Executes a TEMPLATE query for several calls at once, and returns the
+     * output of each call.
+     *
+     * @param queryName the query uri
+     * @param callParameters the parameters of each call
+     * @param context
+     * @return the output of each call, or null if the query cannot be executed
+     * for several calls at once.
+     */
+    public List<String> execTemplatesFromName(
+            final String queryName,
+            final List<List<Node>> callParameters,
+            final Context context) {
+        Objects.nonNull(queryName);
+        Objects.nonNull(callParameters);
+        Objects.nonNull(context);
+        final RootPlan plan = getPlanFromName(queryName, context);
+        // the calls with the same parameters share one output
+        if (!plan.isTemplateBatchable() || !isDeterministic(plan, context)) {
+            return null;
+        }
+        metrics.queryCalled("template", queryName);
+        final SPARQLExtQuery query = plan.getQuery();
+        final List<Var> signature = getSignature(query);
+        final List<Binding> newValues = getNewValues(queryName, query, signature, callParameters);
+        final SubQueryEvent event = EngineEvents.beginSubQuery();
+        final boolean memoised = templateMemoised && isTemplateMemoisable(plan, context);
+        final Object dataset = ContextUtils.getDataset(context);
+        final String[] results = new String[newValues.size()];
+        final List<Binding> missingValues = new ArrayList<>();
+        final List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+            results[i] = memoised ? templateExecutions.getIfPresent(new ExecutionKey(plan, newValues.get(i), dataset)) : null;
+            if (results[i] == null) {
+                missingValues.add(newValues.get(i));
+                missing.add(i);
+            }
+        }
+        if (!missingValues.isEmpty()) {
+            final List<String> missingResults = plan.execTemplatePerBinding(missingValues, context);
+            for (int j = 0; j < missing.size(); j++) {
+                results[missing.get(j)] = missingResults.get(j);
+                if (memoised) {
+                    templateExecutions.put(new ExecutionKey(plan, missingValues.get(j), dataset), missingResults.get(j));
+                }
+            }
+        }
+        if (event != null) {
+            event.record(plan.getName(), "TEMPLATE", results.length, results.length - missingValues.size());
+        }
+        return Arrays.asList(results);
+    }
+
     /**
      *
      * @param queryString the query as a string
@@ -330,6 +768,7 @@ public class QueryExecutor {
         Objects.nonNull(queryString);
         Objects.nonNull(binding);
         Objects.nonNull(context);
+        metrics.queryCalled("template", ExecutionMetrics.ANONYMOUS);
         final SPARQLExtQuery query = getQueryFromString(queryString, null);
         final RootPlan plan = getPlan(query);
         final List<Binding> newValues = new ArrayList<>();
@@ -344,6 +783,7 @@ public class QueryExecutor {
         Objects.nonNull(query);
         Objects.nonNull(callParameters);
         Objects.nonNull(context);
+        metrics.queryCalled("template", ExecutionMetrics.ANONYMOUS);
         final String queryName = LogUtils.compress(query.toString());
         final RootPlan plan = getPlan(query);
         final List<Var> signature = getSignature(query);
@@ -353,15 +793,63 @@ public class QueryExecutor {
 
 
     
+    /**
+     * Executes a TEMPLATE plan for a list of call bindings. If the memo is
+     * enabled, the output of a template called with one binding is memoised,
+     * unless the template changes the indentation or calls functions that
+     * return a different value on each call.
+     *
+     * @param plan
+     * @param newValues
+     * @param context
+     */
     public void execTemplatePlan(
             final RootPlan plan,
             final List<Binding> newValues,
             final Context context) {
-        Objects.nonNull(ContextUtils.getTemplateOutput(context));
-        if (++nbtemplate % 2000 == 00) {
-            LOG.info(String.format("Called templates %s times.", nbtemplate));
+        final IndentedWriter output = ContextUtils.getTemplateOutput(context);
+        Objects.nonNull(output);
+        final SubQueryEvent event = EngineEvents.beginSubQuery();
+        final boolean cacheHit = execTemplatePlanMemoised(plan, newValues, context, output);
+        if (event != null) {
+            event.record(plan.getName(), "TEMPLATE", newValues.size(), cacheHit ? 1 : 0);
+        }
+    }
+
+    /**
+     * @return true if the output was memoised.
+     */
+    private boolean execTemplatePlanMemoised(
+            final RootPlan plan,
+            final List<Binding> newValues,
+            final Context context,
+            final IndentedWriter output) {
+        if (!templateMemoised || newValues.size() != 1 || !isTemplateMemoisable(plan, context)) {
+            plan.execTemplateStream(newValues, context);
+            return false;
+        }
+        final ExecutionKey key = new ExecutionKey(plan, newValues.get(0), ContextUtils.getDataset(context));
+        String result = templateExecutions.getIfPresent(key);
+        final boolean cacheHit = result != null;
+        if (!cacheHit) {
+            final TemplateWriter writer = TemplateWriter.acquire();
+            try {
+                final Context newContext = ContextUtils.fork(context).setTemplateOutput(writer).fork();
+                plan.execTemplateStream(newValues, newContext);
+                result = writer.toString();
+            } finally {
+                writer.release();
+            }
+            templateExecutions.put(key, result);
+        } else {
+            final ExecutionProfile.PlanNode profileNode = plan.getProfileNode(context);
+            if (profileNode != null) {
+                profileNode.addCacheHits(1);
+            }
         }
-        plan.execTemplateStream(newValues, context);
+        output.print(result);
+        output.flush();
+        return cacheHit;
     }
 
     private List<Var> getSignature(SPARQLExtQuery query) {
@@ -390,14 +878,39 @@ public class QueryExecutor {
         return bindings;
     }
 
+    /**
+     * The results of a SELECT for one call binding.
+     */
+    private static class SelectResult {
+
+        final List<String> resultVars;
+        final List<Binding> rows;
+
+        SelectResult(List<String> resultVars, List<Binding> rows) {
+            this.resultVars = resultVars;
+            this.rows = rows;
+        }
+
+    }
+
     private class ExecutionKey {
 
         RootPlan plan;
-        List<Binding> binding;
+        Binding binding;
+        Object dataset;
+
+        public ExecutionKey(RootPlan plan, Binding binding) {
+            this(plan, binding, null);
+        }
 
-        public ExecutionKey(RootPlan plan, List<Binding> binding) {
+        /**
+         * @param dataset the dataset the execution reads, compared by
+         * identity.
+         */
+        public ExecutionKey(RootPlan plan, Binding binding, Object dataset) {
             this.plan = plan;
             this.binding = binding;
+            this.dataset = dataset;
         }
 
         @Override
@@ -406,7 +919,7 @@ public class QueryExecutor {
                 return false;
             }
             ExecutionKey other = (ExecutionKey) obj;
-            if (plan != other.plan) {
+            if (plan != other.plan || dataset != other.dataset) {
                 return false;
             }
             boolean eq = binding.equals(other.binding);
@@ -415,7 +928,7 @@ public class QueryExecutor {
 
         @Override
         public int hashCode() {
-            return 3 * Objects.hashCode(this.plan) + 17 * Objects.hashCode(binding);
+            return 3 * Objects.hashCode(this.plan) + 17 * Objects.hashCode(binding) + System.identityHashCode(dataset);
         }
 
     }
@@ -0,0 +1,510 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.SortCondition;
+import org.apache.jena.sparql.algebra.walker.Walker;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.core.VarExprList;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingBuilder;
+import org.apache.jena.sparql.expr.E_Function;
+import org.apache.jena.sparql.expr.E_Now;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprAggregator;
+import org.apache.jena.sparql.expr.ExprFunction;
+import org.apache.jena.sparql.expr.ExprFunction0;
+import org.apache.jena.sparql.expr.ExprFunction1;
+import org.apache.jena.sparql.expr.ExprFunction2;
+import org.apache.jena.sparql.expr.ExprFunction3;
+import org.apache.jena.sparql.expr.ExprFunctionN;
+import org.apache.jena.sparql.expr.ExprFunctionOp;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.ExprVisitorBase;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.Unstable;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementAssign;
+import org.apache.jena.sparql.syntax.ElementBind;
+import org.apache.jena.sparql.syntax.ElementData;
+import org.apache.jena.sparql.syntax.ElementDataset;
+import org.apache.jena.sparql.syntax.ElementExists;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.ElementLateral;
+import org.apache.jena.sparql.syntax.ElementMinus;
+import org.apache.jena.sparql.syntax.ElementNamedGraph;
+import org.apache.jena.sparql.syntax.ElementNotExists;
+import org.apache.jena.sparql.syntax.ElementOptional;
+import org.apache.jena.sparql.syntax.ElementPathBlock;
+import org.apache.jena.sparql.syntax.ElementService;
+import org.apache.jena.sparql.syntax.ElementSubQuery;
+import org.apache.jena.sparql.syntax.ElementTriplesBlock;
+import org.apache.jena.sparql.syntax.ElementUnion;
+
+import fr.mines_stetienne.ci.sparql_generate.function.library.FUN_Select_Call_Template;
+import fr.mines_stetienne.ci.sparql_generate.graph.Node_Extended;
+import fr.mines_stetienne.ci.sparql_generate.iterator.library.ITER_Call_Select;
+import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementBox;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementExpr;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementFormat;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementGenerateTriplesBlock;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementIterator;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementPerform;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementSource;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementSubExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.syntax.ElementTGroup;
+import fr.mines_stetienne.ci.sparql_generate.syntax.FromClause;
+import fr.mines_stetienne.ci.sparql_generate.syntax.SPARQLExtElementVisitorBase;
+import fr.mines_stetienne.ci.sparql_generate.utils.ST;
+
+/**
+ * What the execution of a query depends on, found by walking the query and
+ * its sub-queries: the variables it mentions, whether it calls functions that
+ * return a different value on each call, reads documents, or creates blank
+ * nodes, and the queries it calls by name or by query string.
+ */
+final class QueryScan {
+
+	private final Set<Var> vars = new HashSet<>();
+	private final Set<String> calledNames = new LinkedHashSet<>();
+	private final Set<String> calledQueries = new LinkedHashSet<>();
+	private boolean allVars = false;
+	private boolean deterministic = true;
+	private boolean indentationFree = true;
+
+	QueryScan(final Query query) {
+		scan(query);
+	}
+
+	/**
+	 * @return true if the query does not call functions that return a
+	 *         different value on each call, does not read documents with
+	 *         SOURCE or SERVICE, does not create blank nodes, and only calls
+	 *         queries with a constant name or query string.
+	 */
+	boolean isDeterministic() {
+		return deterministic;
+	}
+
+	/**
+	 * @return true if the query does not change the indentation of the output
+	 *         with st:incr or st:decr.
+	 */
+	boolean isIndentationFree() {
+		return indentationFree;
+	}
+
+	/**
+	 * @return the names of the queries called with st:call-template,
+	 *         fun:select-call-template, iter:call-select, or a named GENERATE
+	 *         sub-query.
+	 */
+	Set<String> getCalledNames() {
+		return calledNames;
+	}
+
+	/**
+	 * @return the query strings called with st:call-template or
+	 *         fun:select-call-template.
+	 */
+	Set<String> getCalledQueries() {
+		return calledQueries;
+	}
+
+	/**
+	 * Restricts a binding to the variables the query mentions. The query
+	 * strings it calls are executed with the whole binding, so the binding is
+	 * kept as is if there are some.
+	 *
+	 * @return the binding of the variables the query may read.
+	 */
+	Binding project(final Binding binding) {
+		if (allVars) {
+			return binding;
+		}
+		final BindingBuilder builder = Binding.builder();
+		if (binding != null) {
+			binding.forEach((var, node) -> {
+				if (vars.contains(var)) {
+					builder.add(var, node);
+				}
+			});
+		}
+		return builder.build();
+	}
+
+	private void scan(final Query query) {
+		if (query == null) {
+			return;
+		}
+		scan(query.getProject());
+		scan(query.getGroupBy());
+		scanExprs(query.getHavingExprs());
+		if (query.getOrderBy() != null) {
+			for (SortCondition condition : query.getOrderBy()) {
+				scan(condition.getExpression());
+			}
+		}
+		if (query.getValuesVariables() != null) {
+			vars.addAll(query.getValuesVariables());
+		}
+		scan(query.getQueryPattern());
+		if (query instanceof SPARQLExtQuery) {
+			scanExt((SPARQLExtQuery) query);
+		}
+	}
+
+	private void scanExt(final SPARQLExtQuery query) {
+		if (query.getName() != null) {
+			scanCall(query.getName(), false);
+		}
+		if (query.getSignature() != null) {
+			vars.addAll(query.getSignature());
+		}
+		if (query.getCallParameters() != null) {
+			scanExprs(query.getCallParameters().getList());
+		}
+		if (query.getFromClauses() != null) {
+			for (FromClause fromClause : query.getFromClauses()) {
+				scan(fromClause.getName());
+				scan(fromClause.getGenerate());
+			}
+		}
+		scanElements(query.getBindingClauses());
+		scanElements(query.getGenerateClause());
+		scanElements(query.getTemplateClause());
+		scanElements(query.getPerformClause());
+		scan(query.getTemplateClauseBefore());
+		scan(query.getTemplateClauseSeparator());
+		scan(query.getTemplateClauseAfter());
+		scan(query.getFunctionExpression());
+		scan(query.getPostSelect());
+	}
+
+	private void scanElements(final List<Element> elements) {
+		if (elements != null) {
+			elements.forEach(this::scan);
+		}
+	}
+
+	private void scan(final Element element) {
+		if (element != null) {
+			element.visit(elementVisitor);
+		}
+	}
+
+	private void scan(final VarExprList varExprList) {
+		if (varExprList != null) {
+			vars.addAll(varExprList.getVars());
+			scanExprs(varExprList.getExprs().values());
+		}
+	}
+
+	private void scanExprs(final Collection<Expr> exprs) {
+		if (exprs != null) {
+			exprs.forEach(this::scan);
+		}
+	}
+
+	private void scan(final Expr expr) {
+		if (expr != null) {
+			Walker.walk(expr, exprVisitor);
+		}
+	}
+
+	private void scan(final Node node, final boolean template) {
+		if (node == null) {
+			return;
+		}
+		if (node.isVariable()) {
+			vars.add(Var.alloc(node));
+		} else if (node.isBlank() && template) {
+			deterministic = false;
+		} else if (node instanceof Node_Extended) {
+			// not found in normalized queries
+			allVars = true;
+			deterministic = false;
+		}
+	}
+
+	private void scan(final Triple triple, final boolean template) {
+		scan(triple.getSubject(), template);
+		scan(triple.getPredicate(), template);
+		scan(triple.getObject(), template);
+	}
+
+	/**
+	 * Records the query called by name or by query string.
+	 *
+	 * @param target
+	 *            the expression of the name or of the query string.
+	 * @param withBinding
+	 *            true if a query string is executed with the whole binding.
+	 */
+	private void scanCall(final Expr target, final boolean withBinding) {
+		if (target == null) {
+			return;
+		}
+		if (!target.isConstant()) {
+			// the called query is only known at execution time
+			deterministic = false;
+			return;
+		}
+		final NodeValue nodeValue = target.getConstant();
+		if (nodeValue.isIRI()) {
+			calledNames.add(nodeValue.asNode().getURI());
+		} else if (nodeValue.isLiteral()) {
+			calledQueries.add(nodeValue.asNode().getLiteralLexicalForm());
+			allVars |= withBinding;
+		}
+	}
+
+	private final ExprVisitorBase exprVisitor = new ExprVisitorBase() {
+		@Override
+		public void visit(ExprVar nv) {
+			vars.add(nv.asVar());
+		}
+
+		@Override
+		public void visit(ExprFunction0 func) {
+			checkStable(func);
+		}
+
+		@Override
+		public void visit(ExprFunction1 func) {
+			checkStable(func);
+		}
+
+		@Override
+		public void visit(ExprFunction2 func) {
+			checkStable(func);
+		}
+
+		@Override
+		public void visit(ExprFunction3 func) {
+			checkStable(func);
+		}
+
+		@Override
+		public void visit(ExprFunctionN func) {
+			checkStable(func);
+			if (func instanceof E_Function) {
+				final String iri = ((E_Function) func).getFunctionIRI();
+				final List<Expr> args = func.getArgs();
+				if (ST.incr.equals(iri) || ST.decr.equals(iri)) {
+					indentationFree = false;
+				} else if (ST.callTemplate.equals(iri) && args.size() >= 1) {
+					scanCall(args.get(0), true);
+				} else if (FUN_Select_Call_Template.URI.equals(iri) && args.size() >= 2) {
+					scanCall(args.get(0), true);
+					scanCall(args.get(1), false);
+				} else if (ITER_Call_Select.URI.equals(iri) && args.size() >= 1) {
+					scanCall(args.get(0), false);
+				}
+			}
+		}
+
+		/**
+		 * RAND, UUID, STRUUID, BNODE and NOW return a different value on each
+		 * call.
+		 */
+		private void checkStable(ExprFunction func) {
+			if (func instanceof Unstable || func instanceof E_Now) {
+				deterministic = false;
+			}
+		}
+
+		@Override
+		public void visit(ExprFunctionOp funcOp) {
+			scan(funcOp.getElement());
+		}
+
+		@Override
+		public void visit(ExprAggregator eAgg) {
+			final ExprList exprList = eAgg.getAggregator().getExprList();
+			if (exprList != null) {
+				scanExprs(exprList.getList());
+			}
+		}
+	};
+
+	private final SPARQLExtElementVisitorBase elementVisitor = new SPARQLExtElementVisitorBase() {
+		@Override
+		public void visit(ElementGenerateTriplesBlock el) {
+			el.getPattern().forEach((triple) -> scan(triple, true));
+		}
+
+		@Override
+		public void visit(ElementSubExtQuery el) {
+			QueryScan.this.scan(el.getQuery());
+		}
+
+		@Override
+		public void visit(ElementIterator el) {
+			vars.addAll(el.getVars());
+			scan(el.getExpr());
+		}
+
+		@Override
+		public void visit(ElementSource el) {
+			// the document may change between two reads
+			deterministic = false;
+			vars.add(el.getVar());
+			scan(el.getSource(), false);
+			scan(el.getAccept(), false);
+		}
+
+		@Override
+		public void visit(ElementExpr el) {
+			scan(el.getExpr());
+		}
+
+		@Override
+		public void visit(ElementBox el) {
+			indentationFree = false;
+			scanElements(el.getTExpressions());
+		}
+
+		@Override
+		public void visit(ElementFormat el) {
+			scan(el.getExpr());
+			scanElements(el.getTExpressions());
+		}
+
+		@Override
+		public void visit(ElementTGroup el) {
+			scanElements(el.getTExpressions());
+		}
+
+		@Override
+		public void visit(ElementPerform el) {
+			deterministic = false;
+			scan(el.getName(), false);
+			if (el.getParams() != null) {
+				scanExprs(el.getParams().getList());
+			}
+		}
+
+		@Override
+		public void visit(ElementTriplesBlock el) {
+			el.getPattern().forEach((triple) -> scan(triple, false));
+		}
+
+		@Override
+		public void visit(ElementPathBlock el) {
+			el.getPattern().forEach((triplePath) -> {
+				scan(triplePath.getSubject(), false);
+				// null for a property path, that has no variables
+				scan(triplePath.getPredicate(), false);
+				scan(triplePath.getObject(), false);
+			});
+		}
+
+		@Override
+		public void visit(ElementFilter el) {
+			scan(el.getExpr());
+		}
+
+		@Override
+		public void visit(ElementAssign el) {
+			vars.add(el.getVar());
+			scan(el.getExpr());
+		}
+
+		@Override
+		public void visit(ElementBind el) {
+			vars.add(el.getVar());
+			scan(el.getExpr());
+		}
+
+		@Override
+		public void visit(ElementData el) {
+			vars.addAll(el.getVars());
+		}
+
+		@Override
+		public void visit(ElementUnion el) {
+			scanElements(el.getElements());
+		}
+
+		@Override
+		public void visit(ElementOptional el) {
+			scan(el.getOptionalElement());
+		}
+
+		@Override
+		public void visit(ElementLateral el) {
+			scan(el.getLateralElement());
+		}
+
+		@Override
+		public void visit(ElementGroup el) {
+			scanElements(el.getElements());
+		}
+
+		@Override
+		public void visit(ElementDataset el) {
+			scan(el.getElement());
+		}
+
+		@Override
+		public void visit(ElementNamedGraph el) {
+			scan(el.getGraphNameNode(), false);
+			scan(el.getElement());
+		}
+
+		@Override
+		public void visit(ElementExists el) {
+			scan(el.getElement());
+		}
+
+		@Override
+		public void visit(ElementNotExists el) {
+			scan(el.getElement());
+		}
+
+		@Override
+		public void visit(ElementMinus el) {
+			scan(el.getMinusElement());
+		}
+
+		@Override
+		public void visit(ElementService el) {
+			// the service may answer differently between two calls
+			deterministic = false;
+			scan(el.getServiceNode(), false);
+			scan(el.getElement());
+		}
+
+		@Override
+		public void visit(ElementSubQuery el) {
+			QueryScan.this.scan(el.getQuery());
+		}
+	};
+
+}
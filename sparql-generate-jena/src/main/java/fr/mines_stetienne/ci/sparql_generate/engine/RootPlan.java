@@ -15,7 +15,6 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.engine;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -24,9 +23,8 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
-import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFactory;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.riot.system.StreamRDF;
@@ -42,10 +40,14 @@ import org.slf4j.LoggerFactory;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
 import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
-import fr.mines_stetienne.ci.sparql_generate.utils.EvalUtils;
+import fr.mines_stetienne.ci.sparql_generate.utils.TemplateWriter;
 
 /**
  * Entry point to a SPARQL-Generate query execution.
+ * <p>
+ * A plan holds no state of its executions: the state of an execution is held
+ * by the context it is given, so that one plan may be executed by several
+ * threads at once.
  *
  * @author Maxime Lefrançois
  */
@@ -71,6 +73,11 @@ public class RootPlan {
 	 */
 	private final List<BindingsClausePlan> iteratorAndSourcePlans;
 
+	/**
+	 * The slots of the variables bound by the iterator and source plans.
+	 */
+	private final SlotBinding.Layout layout;
+
 	/**
 	 * The plan for the SPARQL SELECT.
 	 */
@@ -86,10 +93,85 @@ public class RootPlan {
 	 */
 	private final TemplatePlan templatePlan;
 
+	/**
+	 * What the executions of the query depend on.
+	 */
+	private final QueryScan scan;
+
+	/**
+	 * The name under which the metrics of the executions are recorded.
+	 */
+	private final String name;
+
 	public SPARQLExtQuery getQuery() {
 		return query;
 	}
 
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get this plan under another name. The plans share everything else, so
+	 * that a plan cached for a query string may be named after each query
+	 * file that holds that string.
+	 *
+	 * @param name
+	 *            the name under which the metrics of the executions are
+	 *            recorded.
+	 * @return this plan if it already has that name, else a copy of it.
+	 */
+	RootPlan named(final String name) {
+		return this.name.equals(name) ? this : new RootPlan(this, name);
+	}
+
+	QueryScan getScan() {
+		return scan;
+	}
+
+	/**
+	 * Get the node of the profile for the executions of this plan called in a
+	 * context.
+	 *
+	 * @return the node, or null if the execution is not profiled.
+	 */
+	ExecutionProfile.PlanNode getProfileNode(final Context context) {
+		if (ContextUtils.getProfileNode(context) == null) {
+			return null;
+		}
+		final String type = query.isGenerateType() ? "GENERATE"
+				: query.isTemplateType() ? "TEMPLATE" : query.isSelectType() ? "SELECT" : "QUERY";
+		return ExecutionProfile.getNode(context, this, type + " " + name);
+	}
+
+	/**
+	 * Checks the TEMPLATE clause only: the query executor also checks the other
+	 * clauses with {@link #getScan()}, and the queries this one calls.
+	 *
+	 * @return true if this is a TEMPLATE query whose TEMPLATE clause only
+	 *         depends on the call parameters.
+	 */
+	boolean isTemplateMemoisable() {
+		return templatePlan != null && templatePlan.isMemoisable();
+	}
+
+	/**
+	 * The solutions of a batched execution carry the index of their call. The
+	 * SELECT plan projects it as it projects all the call variables of a query
+	 * with no GROUP BY and no aggregate, and the query must not remove
+	 * solutions with DISTINCT or REDUCED.
+	 *
+	 * @return true if this is a TEMPLATE query that can be executed at once
+	 *         for several call bindings, with
+	 *         {@link #execTemplatePerBinding(List, Context)}.
+	 */
+	boolean isTemplateBatchable() {
+		return templatePlan != null && templatePlan.isDeterministic() && !query.hasGroupBy()
+				&& !query.hasAggregators() && !query.hasLimit() && !query.hasOffset()
+				&& !query.isDistinct() && !query.isReduced()
+				&& datasetDeclarationPlan.isBindingIndependent();
+	}
+
 	/**
 	 * Constructor
 	 *
@@ -103,9 +185,12 @@ public class RootPlan {
 		this.query = query;
 		this.datasetDeclarationPlan = datasetDeclarationPlan;
 		this.iteratorAndSourcePlans = iteratorAndSourcePlans;
+		this.layout = new SlotBinding.Layout(iteratorAndSourcePlans);
+		this.scan = new QueryScan(query);
 		this.selectPlan = selectPlan;
 		this.generatePlan = null;
 		this.templatePlan = null;
+		this.name = ExecutionMetrics.ANONYMOUS;
 	}
 
 	/**
@@ -123,9 +208,12 @@ public class RootPlan {
 		this.query = query;
 		this.datasetDeclarationPlan = datasetDeclarationPlan;
 		this.iteratorAndSourcePlans = iteratorAndSourcePlans;
+		this.layout = new SlotBinding.Layout(iteratorAndSourcePlans);
+		this.scan = new QueryScan(query);
 		this.selectPlan = selectPlan;
 		this.generatePlan = generatePlan;
 		this.templatePlan = null;
+		this.name = ExecutionMetrics.ANONYMOUS;
 	}
 
 	/**
@@ -143,9 +231,24 @@ public class RootPlan {
 		this.query = query;
 		this.datasetDeclarationPlan = datasetDeclarationPlan;
 		this.iteratorAndSourcePlans = iteratorAndSourcePlans;
+		this.layout = new SlotBinding.Layout(iteratorAndSourcePlans);
+		this.scan = new QueryScan(query);
 		this.selectPlan = selectPlan;
 		this.generatePlan = null;
 		this.templatePlan = templatePlan;
+		this.name = ExecutionMetrics.ANONYMOUS;
+	}
+
+	private RootPlan(final RootPlan plan, final String name) {
+		this.query = plan.query;
+		this.datasetDeclarationPlan = plan.datasetDeclarationPlan;
+		this.iteratorAndSourcePlans = plan.iteratorAndSourcePlans;
+		this.layout = plan.layout;
+		this.scan = plan.scan;
+		this.selectPlan = plan.selectPlan;
+		this.generatePlan = plan.generatePlan;
+		this.templatePlan = plan.templatePlan;
+		this.name = name;
 	}
 
 	/**
@@ -234,7 +337,9 @@ public class RootPlan {
 		List<ResultSet> results = new ArrayList<>();
 		checkContextHasNoOutput(context);
 		boolean isRoot = ContextUtils.isRootContext(context);
-		final Context newContext = ContextUtils.fork(context, isRoot).setSelectOutput(results::add).fork();
+		// the result sets are consumed after the end of the executions that produced them
+		final Context newContext = ContextUtils.fork(context, isRoot)
+				.setSelectOutput((resultSet) -> results.add(ResultSetFactory.copyResults(resultSet))).fork();
 		execSelectStream(values, newContext);
 		return ResultSetUtils.union(results.toArray(new ResultSet[results.size()]));
 	}
@@ -286,18 +391,46 @@ public class RootPlan {
 	 */
 	public String execTemplate(final List<Binding> values, final Context context) {
 		checkContextHasNoOutput(context);
-		try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				IndentedWriter output = new IndentedWriter(baos);) {
+		final TemplateWriter output = TemplateWriter.acquire();
+		try {
 			boolean isRoot = ContextUtils.isRootContext(context);
 			final Context newContext = ContextUtils.fork(context, isRoot).setTemplateOutput(output).fork();
 			execTemplateStream(values, newContext);
-			output.flush();
-			return new String(baos.toByteArray());
-		} catch (IOException ex) {
-			throw new SPARQLExtException(ex);
+			return output.toString();
+		} finally {
+			output.release();
 		}
 	}
 	
+	/**
+	 * Executes a TEMPLATE query at once for several call bindings, and returns
+	 * the output of each binding. The bindings are tagged with the index of the
+	 * call they come from, so that the result rows can be traced back to their
+	 * call.
+	 *
+	 * @param values
+	 *            the values for the query signature.
+	 * @param context
+	 *            the execution context.
+	 * @return the output for each binding.
+	 */
+	List<String> execTemplatePerBinding(final List<Binding> values, final Context context) {
+		if (!query.isTemplateType()) {
+			throw new SPARQLExtException("Query is not a TEMPLATE query.");
+		}
+		final List<Var> variables = getVariables(values);
+		final List<Binding> taggedValues = new ArrayList<>(values.size());
+		for (int i = 0; i < values.size(); i++) {
+			taggedValues.add(TemplateCallOutputs.tag(values.get(i), i));
+		}
+		variables.add(TemplateCallOutputs.CALL);
+		final TemplateCallOutputs outputs = new TemplateCallOutputs(values.size());
+		final Context newContext = ContextUtils.fork(context).setTemplateOutput(outputs).fork();
+		exec(variables, taggedValues, newContext);
+		templatePlan.execAfter(outputs, newContext);
+		return outputs.getOutputs();
+	}
+
 	public void execTemplateStream(final Context context) {
 		execTemplateStream(null, context);
 	}
@@ -376,16 +509,37 @@ public class RootPlan {
 			LOG.trace("Starting sub-execution");
 		}
 
-		Binding binding = values.size() > 0 ? values.get(0) : null;
-		Context newContext = datasetDeclarationPlan.prepareDataset(binding, context);
-		execIteratorAndSourcePlans(variables, values, newContext, 0);
+		final ExecutionProfile.PlanNode profileNode = getProfileNode(context);
+		final Context planContext = profileNode != null ? ContextUtils.withProfileNode(context, profileNode) : context;
+		final ExecutionProfile.Timer timer = ExecutionProfile.start(profileNode, values.size());
+		try {
+			Binding binding = values.size() > 0 ? values.get(0) : null;
+			Context newContext = datasetDeclarationPlan.prepareDataset(binding, planContext);
+			ContextUtils.getQueryExecutor(context).getMetrics().rowsIn(name, values.size());
+			final List<Binding> slotValues = layout.wrap(values);
+			if (ContextUtils.isStreamingExecution(newContext)) {
+				execPipeline(variables, slotValues, newContext);
+			} else {
+				execIteratorAndSourcePlans(variables, slotValues, newContext, 0);
+			}
 
-		if (ContextUtils.isRootContext(context)) {
-			StreamRDF outputGenerate = ContextUtils.getGenerateOutput(context);
-			if (outputGenerate != null) {
-				outputGenerate.finish();
+			if (ContextUtils.isRootContext(context)) {
+				StreamRDF outputGenerate = ContextUtils.getGenerateOutput(context);
+				if (outputGenerate != null) {
+					outputGenerate.finish();
+				}
+			}
+		} finally {
+			if (timer != null) {
+				timer.close();
 			}
-			ContextUtils.close(context);
+			// also when the execution fails, so that the pools are shut down
+			// and the spooled documents are deleted
+			if (ContextUtils.isRootContext(context)) {
+				ContextUtils.close(context);
+			}
+		}
+		if (ContextUtils.isRootContext(context)) {
 			LOG.info("End of execution");
 		} else {
 			LOG.trace("End of sub-execution");
@@ -417,7 +571,30 @@ public class RootPlan {
 		}
 	}
 
+	/**
+	 * Pull-based alternative to {@link #execIteratorAndSourcePlans}: the
+	 * ITERATOR, SOURCE and BIND clauses are chained as cursors, and each batch
+	 * pulled from the last one is handed over to the SELECT and GENERATE or
+	 * TEMPLATE clauses.
+	 */
+	private void execPipeline(final List<Var> variables, final List<Binding> values, final Context context) {
+		final List<Var> pipelineVariables = new ArrayList<>(variables);
+		final int bufferSize = ContextUtils.getStreamingBufferSize(context);
+		try (BindingsPipeline pipeline = new BindingsPipeline(iteratorAndSourcePlans, pipelineVariables, values,
+				context, bufferSize)) {
+			while (pipeline.hasNext()) {
+				execSelectPlan(pipelineVariables, pipeline.next(), context);
+			}
+		}
+		LOG.debug("Finished pipeline");
+	}
+
 	private void execSelectPlan(final List<Var> variables, final List<Binding> values, final Context context) {
+		ContextUtils.getQueryExecutor(context).getMetrics().rowsOut(name, values.size());
+		final ExecutionProfile.PlanNode profileNode = ContextUtils.getProfileNode(context);
+		if (profileNode != null) {
+			profileNode.addRowsOut(values.size());
+		}
 		if (selectPlan == null) {
 			if (query.isSelectType()) {
 				final List<String> listVar = variables.stream().map(Var::getVarName).collect(Collectors.toList());
@@ -425,9 +602,25 @@ public class RootPlan {
 				final ResultSet resultSet = ResultSetStream.create(listVar, model, values.iterator());
 				ContextUtils.getSelectOutput(context).accept(resultSet);
 			} else if(query.isGenerateType()) {
-				generatePlan.exec(variables, values, context);
+				final ExecutionProfile.Timer timer = ExecutionProfile.start(
+						ExecutionProfile.getNode(context, generatePlan, "GENERATE"), values.size());
+				try {
+					generatePlan.exec(variables, values, context);
+				} finally {
+					if (timer != null) {
+						timer.close();
+					}
+				}
 			} else if(query.isTemplateType()) {
-				templatePlan.exec(variables, values, context);
+				final ExecutionProfile.Timer timer = ExecutionProfile.start(
+						ExecutionProfile.getNode(context, templatePlan, "TEMPLATE"), values.size());
+				try {
+					templatePlan.exec(variables, values, context);
+				} finally {
+					if (timer != null) {
+						timer.close();
+					}
+				}
 			}
 		} else {
 			selectPlan.exec(variables, values, context, resultSet -> {
@@ -437,21 +630,58 @@ public class RootPlan {
 					final List<Var> newVariables = new ArrayList<>();
 					newVariables.addAll(variables); // can we delete this?
 					newVariables.addAll(selectPlan.getVars());
-					final List<Binding> newValues = new ArrayList<>();
-					while (resultSet.hasNext()) {
-						final Binding p = EvalUtils.createBinding(resultSet.next());
-						newValues.add(p);
-					}
 					if(query.isGenerateType()) {
-						generatePlan.exec(newVariables, newValues, context);
+						final ExecutionProfile.PlanNode node = ExecutionProfile.getNode(context, generatePlan, "GENERATE");
+						final ExecutionProfile.Timer timer = ExecutionProfile.start(node, 0);
+						try {
+							generatePlan.exec(newVariables, asBindings(resultSet, node), context);
+						} finally {
+							if (timer != null) {
+								timer.close();
+							}
+						}
 					} else if(query.isTemplateType()) {
-						templatePlan.exec(newVariables, newValues, context);
+						final ExecutionProfile.PlanNode node = ExecutionProfile.getNode(context, templatePlan, "TEMPLATE");
+						final ExecutionProfile.Timer timer = ExecutionProfile.start(node, 0);
+						try {
+							templatePlan.exec(newVariables, asBindings(resultSet, node), context);
+						} finally {
+							if (timer != null) {
+								timer.close();
+							}
+						}
 					}
 				}
 			});
 		}
 	}
 
+	/**
+	 * Reads the bindings of the result set as they are produced by the query
+	 * execution.
+	 *
+	 * @param profileNode
+	 *            the node of the profile that receives the bindings, or null.
+	 */
+	private static Iterator<Binding> asBindings(final ResultSet resultSet,
+			final ExecutionProfile.PlanNode profileNode) {
+		return new Iterator<Binding>() {
+			@Override
+			public boolean hasNext() {
+				return resultSet.hasNext();
+			}
+
+			@Override
+			public Binding next() {
+				final Binding binding = resultSet.nextBinding();
+				if (profileNode != null) {
+					profileNode.addRowsIn(1);
+				}
+				return binding;
+			}
+		};
+	}
+
 	private void checkContextHasNoOutput(Context context) {
 		if (!ContextUtils.isRootContext(context)) {
 			return;
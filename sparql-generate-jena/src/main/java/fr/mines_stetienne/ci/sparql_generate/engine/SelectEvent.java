@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.function.Consumer;
+
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.resultset.ResultSetWrapper;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * An execution of the SELECT part of a query. The results are consumed by
+ * the rest of the query as they are computed, so the duration includes the
+ * time the rest of the query took to process them, whose events are nested
+ * in this one. The time spent computing the results is given apart.
+ *
+ * @author Maxime Lefrançois
+ * @see EngineEvents
+ */
+@Name("fr.mines_stetienne.ci.sparql_generate.Select")
+@Label("Select Execution")
+@Category(EngineEvents.CATEGORY)
+@Description("An execution of the SELECT part of a query")
+@Enabled(false)
+@StackTrace(false)
+public class SelectEvent extends Event {
+
+	@Label("Bindings In")
+	@Description("The number of bindings injected in the query")
+	int bindingsIn;
+
+	@Label("Bindings Out")
+	@Description("The number of results")
+	long bindingsOut;
+
+	@Label("Evaluation Time")
+	@Description("The time spent computing the results")
+	@Timespan(Timespan.NANOSECONDS)
+	long evaluationTime;
+
+	private transient long started;
+
+	SelectEvent() {
+	}
+
+	/**
+	 * Begins the event, and the time spent computing the results.
+	 */
+	void start() {
+		started = System.nanoTime();
+		begin();
+	}
+
+	/**
+	 * Wraps the results, so that the results read and the time taken to
+	 * compute them are recorded.
+	 */
+	ResultSet count(final ResultSet resultSet) {
+		evaluationTime += System.nanoTime() - started;
+		return new ResultSetWrapper(resultSet) {
+			@Override
+			public boolean hasNext() {
+				final long start = System.nanoTime();
+				try {
+					return super.hasNext();
+				} finally {
+					evaluationTime += System.nanoTime() - start;
+				}
+			}
+
+			@Override
+			public QuerySolution next() {
+				final long start = System.nanoTime();
+				try {
+					return super.next();
+				} finally {
+					evaluationTime += System.nanoTime() - start;
+					bindingsOut++;
+				}
+			}
+
+			@Override
+			public void forEachRemaining(final Consumer<? super QuerySolution> action) {
+				while (hasNext()) {
+					action.accept(next());
+				}
+			}
+
+			@Override
+			public QuerySolution nextSolution() {
+				final long start = System.nanoTime();
+				try {
+					return super.nextSolution();
+				} finally {
+					evaluationTime += System.nanoTime() - start;
+					bindingsOut++;
+				}
+			}
+
+			@Override
+			public Binding nextBinding() {
+				final long start = System.nanoTime();
+				try {
+					return super.nextBinding();
+				} finally {
+					evaluationTime += System.nanoTime() - start;
+					bindingsOut++;
+				}
+			}
+		};
+	}
+
+	void record(final int bindingsIn) {
+		end();
+		if (shouldCommit()) {
+			this.bindingsIn = bindingsIn;
+			commit();
+		}
+	}
+
+}
@@ -19,6 +19,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -30,6 +33,7 @@ import org.apache.jena.query.ResultSet;
 import org.apache.jena.query.ResultSetFactory;
 import org.apache.jena.query.ResultSetRewindable;
 import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.QueryIterator;
 import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.engine.binding.BindingBuilder;
 import org.apache.jena.sparql.syntax.ElementData;
@@ -40,6 +44,7 @@ import org.slf4j.LoggerFactory;
 
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
 import fr.mines_stetienne.ci.sparql_generate.query.SPARQLExtQuery;
+import fr.mines_stetienne.ci.sparql_generate.syntax.FromClause;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.VarUtils;
@@ -62,6 +67,12 @@ public class SelectPlan {
 
 	private final List<Var> signature;
 
+	/**
+	 * The query compiled and optimized for the different lists of variables it
+	 * has been executed with.
+	 */
+	private final Map<List<Var>, Optional<PreparedSelect>> preparedSelects = new ConcurrentHashMap<>();
+
 	/**
 	 * Constructor.
 	 *
@@ -96,10 +107,40 @@ public class SelectPlan {
 	 *            the execution context.
 	 * @return the new list of bindings
 	 */
-	final public void exec(final List<Var> variables, final List<Binding> values, final Context context, Consumer<ResultSet> output) {
+	final public void exec(final List<Var> variables, final List<Binding> slotValues, final Context context, Consumer<ResultSet> output) {
+		final SelectEvent event = EngineEvents.beginSelect();
+		final Consumer<ResultSet> recorded = event != null ? (resultSet) -> output.accept(event.count(resultSet)) : output;
+		final ExecutionProfile.PlanNode profileNode = ExecutionProfile.getNode(context, this, "SELECT");
+		if (profileNode == null) {
+			execSelect(variables, slotValues, context, recorded);
+		} else {
+			final ExecutionProfile.Timer timer = ExecutionProfile.start(profileNode, slotValues.size());
+			try {
+				execSelect(variables, slotValues, context, (resultSet) -> recorded.accept(profileNode.profile(resultSet)));
+			} finally {
+				if (timer != null) {
+					timer.close();
+				}
+			}
+		}
+		if (event != null) {
+			event.record(slotValues.size());
+		}
+	}
+
+	private void execSelect(final List<Var> variables, final List<Binding> slotValues, final Context context,
+			Consumer<ResultSet> output) {
 		if (Thread.interrupted()) {
 			throw new SPARQLExtException(new InterruptedException());
 		}
+		final List<Binding> values = SlotBinding.detach(slotValues);
+		if (ContextUtils.isPreparedSelect(context)) {
+			final PreparedSelect preparedSelect = getPreparedSelect(variables, context);
+			if (preparedSelect != null) {
+				execPrepared(preparedSelect, variables, values, context, output);
+				return;
+			}
+		}
 		final Query q = createQuery(select, variables, values, context);
 		final Dataset inputDataset = ContextUtils.getDataset(context);
 		if (LOG.isTraceEnabled()) {
@@ -118,33 +159,7 @@ public class SelectPlan {
 		try {
 			augmentQuery(q, variables, values);
 			try (QueryExecution exec = QueryExecutionDatasetBuilder.create().query(q).dataset(inputDataset).context(context).build()) {
-				ResultSet resultSet = exec.execSelect();
-				if (LOG.isTraceEnabled()) {
-					ResultSetRewindable rewindable = ResultSetFactory.copyResults(resultSet);
-					final List<Var> resultVariables = getVariables(rewindable.getResultVars());
-					final List<Binding> resultBindings = new ArrayList<>();
-					while (rewindable.hasNext()) {
-						resultBindings.add(rewindable.nextBinding());
-					}
-					LOG.trace(String.format("Query output is\n%s", LogUtils.log(resultVariables, resultBindings)));
-					rewindable.reset();
-					resultSet = rewindable;
-				} else if (LOG.isDebugEnabled()) {
-					ResultSetRewindable rewindable = ResultSetFactory.copyResults(resultSet);
-					int size = 0;
-					while (rewindable.hasNext()) {
-						rewindable.next();
-						size++;
-					}
-					LOG.debug(String.format("Query has %s output for variables %s", size, rewindable.getResultVars()));
-					rewindable.reset();
-					resultSet = rewindable;
-				} else {
-					// got exception with call of unionOf in RootPlan. Would be better not to need to make rewindable
-					ResultSetRewindable rewindable = ResultSetFactory.copyResults(resultSet);
-					resultSet = rewindable;
-				}				
-				output.accept(resultSet);
+				output(exec.execSelect(), output);
 			}
 		} catch (Exception ex) {
 			LOG.error("Error while executing SELECT Query " + q, ex);
@@ -152,6 +167,80 @@ public class SelectPlan {
 		}
 	}
 
+	private void execPrepared(final PreparedSelect preparedSelect, final List<Var> variables,
+			final List<Binding> values, final Context context, Consumer<ResultSet> output) {
+		final Dataset inputDataset = ContextUtils.getDataset(context);
+		if (LOG.isTraceEnabled()) {
+			StringBuilder sb = new StringBuilder("Executing prepared select query:\n");
+			sb.append(preparedSelect.getOp());
+			if (variables.size() > 0 && values.size() > 0) {
+				sb.append(" \nwith initial values:\n");
+				sb.append(LogUtils.log(variables, values));
+			} else {
+				sb.append(" \nwithout initial values.");
+			}
+			LOG.trace(sb.toString());
+		} else if (LOG.isDebugEnabled()) {
+			LOG.debug("Executing prepared select query with " + values.size() + " bindings.");
+		}
+		try {
+			final QueryIterator results = preparedSelect.exec(values, inputDataset, context);
+			try {
+				output(preparedSelect.asResultSet(results, inputDataset), output);
+			} finally {
+				results.close();
+			}
+		} catch (Exception ex) {
+			LOG.error("Error while executing SELECT Query " + preparedSelect.getOp(), ex);
+			throw new SPARQLExtException("Error while executing SELECT Query " + preparedSelect.getOp(), ex);
+		}
+	}
+
+	/**
+	 * Gets the query compiled and optimized for the given variables, or null if
+	 * the query cannot be prepared, for example because its FROM NAMED clauses
+	 * depend on the bindings.
+	 */
+	private PreparedSelect getPreparedSelect(final List<Var> variables, final Context context) {
+		return preparedSelects.computeIfAbsent(new ArrayList<>(variables), (vars) -> {
+			if (select.getFromClauses().stream().anyMatch(FromClause::isNamed)) {
+				return Optional.empty();
+			}
+			try {
+				final Query q = createQuery(select, new ArrayList<>(vars), Collections.emptyList(), context);
+				return Optional.ofNullable(PreparedSelect.prepare(q, vars, context));
+			} catch (Exception ex) {
+				LOG.debug("Could not prepare SELECT Query " + select, ex);
+				return Optional.empty();
+			}
+		}).orElse(null);
+	}
+
+	private void output(ResultSet resultSet, Consumer<ResultSet> output) {
+		if (LOG.isTraceEnabled()) {
+			ResultSetRewindable rewindable = ResultSetFactory.copyResults(resultSet);
+			final List<Var> resultVariables = getVariables(rewindable.getResultVars());
+			final List<Binding> resultBindings = new ArrayList<>();
+			while (rewindable.hasNext()) {
+				resultBindings.add(rewindable.nextBinding());
+			}
+			LOG.trace(String.format("Query output is\n%s", LogUtils.log(resultVariables, resultBindings)));
+			rewindable.reset();
+			resultSet = rewindable;
+		} else if (LOG.isDebugEnabled()) {
+			ResultSetRewindable rewindable = ResultSetFactory.copyResults(resultSet);
+			int size = 0;
+			while (rewindable.hasNext()) {
+				rewindable.next();
+				size++;
+			}
+			LOG.debug(String.format("Query has %s output for variables %s", size, rewindable.getResultVars()));
+			rewindable.reset();
+			resultSet = rewindable;
+		}
+		output.accept(resultSet);
+	}
+
 	private Query createQuery(final SPARQLExtQuery select, final List<Var> variables,
 			final List<Binding> values, final Context context) {
 		// SPARQLExtQuery q = select.cloneQuery();
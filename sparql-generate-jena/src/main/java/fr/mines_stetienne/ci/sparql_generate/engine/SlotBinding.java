@@ -0,0 +1,331 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingBase;
+import org.apache.jena.sparql.engine.binding.BindingBuilder;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.util.FmtUtils;
+
+/**
+ * A binding of the variables of the ITERATOR, SOURCE, and BIND clauses of a
+ * query, stored in a flat array of nodes.
+ * <p>
+ * The variables are assigned a slot once, when the plan is built. Binding a
+ * variable writes its slot instead of chaining a new binding to its parent,
+ * so that looking up a variable does not depend on the number of clauses. The
+ * parent of a slot binding is the input binding of the execution.
+ * <p>
+ * A slot binding only sees the slots below its limit. The bindings that
+ * descend from the same input binding share their array, and the first one
+ * that binds a slot above the limit claims it. The others copy the slots
+ * below their limit.
+ */
+class SlotBinding extends BindingBase {
+
+	private final Layout layout;
+
+	private final Node[] values;
+
+	/**
+	 * The number of slots of the array claimed by one of the bindings.
+	 */
+	private final AtomicInteger claimed;
+
+	/**
+	 * The number of slots this binding sees.
+	 */
+	private final int limit;
+
+	/**
+	 * Creates an empty slot binding over the input binding.
+	 *
+	 * @param layout
+	 *            the layout of the slots.
+	 * @param input
+	 *            the input binding of the execution.
+	 */
+	SlotBinding(final Layout layout, final Binding input) {
+		this(layout, input, new Node[layout.vars.length], new AtomicInteger(), 0);
+	}
+
+	private SlotBinding(final Layout layout, final Binding parent, final Node[] values, final AtomicInteger claimed,
+			final int limit) {
+		super(parent);
+		this.layout = layout;
+		this.values = values;
+		this.claimed = claimed;
+		this.limit = limit;
+	}
+
+	/**
+	 * Binds a variable.
+	 *
+	 * @param binding
+	 *            the binding to extend.
+	 * @param var
+	 *            the variable.
+	 * @param node
+	 *            the value, may be null.
+	 * @return the new binding.
+	 * @throws IllegalArgumentException
+	 *             if the variable is already bound.
+	 */
+	static Binding extend(final Binding binding, final Var var, final Node node) {
+		if (binding instanceof SlotBinding) {
+			final SlotBinding slotBinding = (SlotBinding) binding;
+			final int slot = slotBinding.layout.slot(var);
+			if (slot >= 0 && node == null) {
+				return binding;
+			}
+			if (slot >= 0) {
+				slotBinding.checkUnbound(slot, var, node);
+				return slotBinding.bind(slot, slot, (values) -> values[slot] = node);
+			}
+		}
+		return BindingFactory.binding(binding, var, node);
+	}
+
+	/**
+	 * Binds several variables.
+	 *
+	 * @param binding
+	 *            the binding to extend.
+	 * @param vars
+	 *            the variables.
+	 * @param nodes
+	 *            the values, in the order of the variables. Null values are
+	 *            left unbound.
+	 * @return the new binding.
+	 * @throws IllegalArgumentException
+	 *             if one of the variables is already bound.
+	 */
+	static Binding extend(final Binding binding, final List<Var> vars, final Node[] nodes) {
+		if (binding instanceof SlotBinding) {
+			final SlotBinding slotBinding = (SlotBinding) binding;
+			final int[] slots = new int[nodes.length];
+			int min = Integer.MAX_VALUE;
+			int max = -1;
+			boolean slotted = true;
+			for (int i = 0; i < nodes.length && slotted; i++) {
+				final int slot = slotBinding.layout.slot(vars.get(i));
+				slots[i] = slot;
+				if (slot < 0) {
+					slotted = false;
+				} else if (nodes[i] != null) {
+					slotBinding.checkUnbound(slot, vars.get(i), nodes[i]);
+					min = Math.min(min, slot);
+					max = Math.max(max, slot);
+				}
+			}
+			if (slotted && max < 0) {
+				return binding;
+			}
+			if (slotted) {
+				return slotBinding.bind(min, max, (values) -> {
+					for (int i = 0; i < nodes.length; i++) {
+						if (nodes[i] != null) {
+							values[slots[i]] = nodes[i];
+						}
+					}
+				});
+			}
+		}
+		final BindingBuilder bindingBuilder = Binding.builder(binding);
+		for (int i = 0; i < nodes.length; i++) {
+			if (nodes[i] != null) {
+				bindingBuilder.add(vars.get(i), nodes[i]);
+			}
+		}
+		return bindingBuilder.build();
+	}
+
+	/**
+	 * Rejects a variable that is already bound, in a slot or in the input
+	 * binding, as {@link BindingBuilder} does.
+	 */
+	private void checkUnbound(final int slot, final Var var, final Node node) {
+		Node old = slot < limit ? values[slot] : null;
+		if (old == null && parent != null) {
+			old = parent.get(var);
+		}
+		if (old != null) {
+			throw new IllegalArgumentException("Attempt to reassign '" + var + "' from '"
+					+ FmtUtils.stringForNode(old) + "' to '" + FmtUtils.stringForNode(node) + "'");
+		}
+	}
+
+	/**
+	 * Writes slots from min to max, in the shared array if they are not
+	 * claimed yet, or in a copy.
+	 */
+	private SlotBinding bind(final int min, final int max, final Consumer<Node[]> writer) {
+		final int newLimit = Math.max(limit, max + 1);
+		if (min >= limit && claimed.compareAndSet(limit, newLimit)) {
+			writer.accept(values);
+			return new SlotBinding(layout, parent, values, claimed, newLimit);
+		}
+		final Node[] copy = new Node[values.length];
+		System.arraycopy(values, 0, copy, 0, limit);
+		writer.accept(copy);
+		return new SlotBinding(layout, parent, copy, new AtomicInteger(newLimit), newLimit);
+	}
+
+	/**
+	 * Converts slot bindings to plain Jena bindings, before they are handed
+	 * over to ARQ.
+	 *
+	 * @param values
+	 *            the bindings.
+	 * @return the converted bindings.
+	 */
+	static List<Binding> detach(final List<Binding> values) {
+		List<Binding> detached = null;
+		for (int i = 0; i < values.size(); i++) {
+			final Binding binding = values.get(i);
+			if (binding instanceof SlotBinding) {
+				if (detached == null) {
+					detached = new ArrayList<>(values.subList(0, i));
+				}
+				detached.add(Binding.builder().addAll(binding).build());
+			} else if (detached != null) {
+				detached.add(binding);
+			}
+		}
+		return detached == null ? values : detached;
+	}
+
+	@Override
+	protected Iterator<Var> vars1() {
+		return new Iterator<Var>() {
+			private int next = advance(0);
+
+			private int advance(int slot) {
+				while (slot < limit && values[slot] == null) {
+					slot++;
+				}
+				return slot;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next < limit;
+			}
+
+			@Override
+			public Var next() {
+				if (next >= limit) {
+					throw new NoSuchElementException();
+				}
+				final Var var = layout.vars[next];
+				next = advance(next + 1);
+				return var;
+			}
+		};
+	}
+
+	@Override
+	protected int size1() {
+		int size = 0;
+		for (int slot = 0; slot < limit; slot++) {
+			if (values[slot] != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	protected boolean isEmpty1() {
+		return size1() == 0;
+	}
+
+	@Override
+	protected boolean contains1(final Var var) {
+		return get1(var) != null;
+	}
+
+	@Override
+	protected Node get1(final Var var) {
+		final int slot = layout.slot(var);
+		return slot >= 0 && slot < limit ? values[slot] : null;
+	}
+
+	/**
+	 * The slots of the variables bound by the ITERATOR, SOURCE, and BIND
+	 * clauses of a query.
+	 */
+	static class Layout {
+
+		private final Var[] vars;
+
+		private final Map<Var, Integer> slots = new HashMap<>();
+
+		Layout(final List<BindingsClausePlan> plans) {
+			final List<Var> list = new ArrayList<>();
+			for (BindingsClausePlan plan : plans) {
+				if (plan instanceof BindOrSourcePlan) {
+					add(list, ((BindOrSourcePlan) plan).getVar());
+				} else {
+					for (Var var : ((IteratorPlan) plan).getVars()) {
+						add(list, var);
+					}
+				}
+			}
+			vars = list.toArray(new Var[list.size()]);
+		}
+
+		private void add(final List<Var> list, final Var var) {
+			if (!slots.containsKey(var)) {
+				slots.put(var, list.size());
+				list.add(var);
+			}
+		}
+
+		int slot(final Var var) {
+			final Integer slot = slots.get(var);
+			return slot == null ? -1 : slot;
+		}
+
+		/**
+		 * Wraps the input bindings of an execution.
+		 */
+		List<Binding> wrap(final List<Binding> values) {
+			if (vars.length == 0) {
+				return values;
+			}
+			final List<Binding> wrapped = new ArrayList<>(values.size());
+			for (Binding binding : values) {
+				wrapped.add(new SlotBinding(this, binding));
+			}
+			return wrapped;
+		}
+
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import org.apache.jena.riot.system.stream.Locator;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A document fetched by a SOURCE clause. The duration is the time taken to
+ * open and read the document.
+ *
+ * @author Maxime Lefrançois
+ * @see EngineEvents
+ */
+@Name("fr.mines_stetienne.ci.sparql_generate.SourceFetch")
+@Label("Source Fetch")
+@Category(EngineEvents.CATEGORY)
+@Description("A document fetched by a SOURCE clause")
+@Enabled(false)
+@StackTrace(false)
+public class SourceFetchEvent extends Event {
+
+	@Label("URI")
+	@Description("The URI of the document")
+	String uri;
+
+	@Label("Accept")
+	@Description("The media type requested")
+	String accept;
+
+	@Label("Locator")
+	@Description("The locator that found the document, or null if it was not found")
+	String locator;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+	SourceFetchEvent() {
+	}
+
+	void found(final Locator locator) {
+		this.locator = locator.getName();
+	}
+
+	void record(final String uri, final String accept, final long bytes) {
+		end();
+		if (shouldCommit()) {
+			this.uri = uri;
+			this.accept = accept;
+			this.bytes = bytes;
+			commit();
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
+
+/**
+ * Fetches the documents of the SOURCE clauses concurrently, with at most a
+ * given number of requests to the same host at once. The limit is shared by
+ * all the executions that use the fetcher.
+ *
+ * @author Maxime Lefrançois
+ */
+public class SourceFetcher {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SourceFetcher.class);
+
+	/**
+	 * The time, in milliseconds, after which the requests waiting for a host
+	 * used by other executions are tried again.
+	 */
+	private static final long RETRY_DELAY = 10;
+
+	private final ExecutorService executor;
+
+	private final int maxPerHost;
+
+	private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+	/**
+	 * @param executor
+	 *            the executor that fetches the documents.
+	 * @param maxPerHost
+	 *            the maximal number of documents fetched from the same host at
+	 *            once.
+	 */
+	public SourceFetcher(final ExecutorService executor, final int maxPerHost) {
+		if (maxPerHost <= 0) {
+			throw new IllegalArgumentException("Maximal number of requests per host must be positive, got " + maxPerHost);
+		}
+		this.executor = executor;
+		this.maxPerHost = maxPerHost;
+	}
+
+	/**
+	 * Fetches documents, and returns when they are all fetched.
+	 *
+	 * @param requests
+	 *            the requests.
+	 * @param fetch
+	 *            fetches the document of a request.
+	 * @return the documents, in the order of the requests.
+	 */
+	public <T> List<T> fetch(final List<LookUpRequest> requests, final Function<LookUpRequest, T> fetch) {
+		final Object[] results = new Object[requests.size()];
+		final Map<String, Deque<Integer>> pending = new LinkedHashMap<>();
+		for (int i = 0; i < requests.size(); i++) {
+			pending.computeIfAbsent(getHost(requests.get(i)), (host) -> new ArrayDeque<>()).add(i);
+		}
+		final BlockingQueue<Future<?>> completed = new LinkedBlockingQueue<>();
+		final List<Future<?>> running = new ArrayList<>();
+		try {
+			while (!pending.isEmpty() || !running.isEmpty()) {
+				pending.entrySet().removeIf((entry) -> {
+					final Semaphore slots = hosts.computeIfAbsent(entry.getKey(), (host) -> new Semaphore(maxPerHost));
+					final Deque<Integer> indices = entry.getValue();
+					while (!indices.isEmpty() && slots.tryAcquire()) {
+						final int i = indices.poll();
+						final FutureTask<Void> task = new FutureTask<Void>(() -> {
+							results[i] = fetch.apply(requests.get(i));
+							return null;
+						}) {
+							@Override
+							protected void done() {
+								slots.release();
+								completed.add(this);
+							}
+						};
+						running.add(task);
+						executor.execute(task);
+					}
+					return indices.isEmpty();
+				});
+				final Future<?> future = completed.poll(RETRY_DELAY, TimeUnit.MILLISECONDS);
+				if (future != null) {
+					running.remove(future);
+					future.get();
+				}
+			}
+		} catch (InterruptedException ex) {
+			running.forEach((future) -> future.cancel(true));
+			Thread.currentThread().interrupt();
+			throw new SPARQLExtException(ex);
+		} catch (ExecutionException ex) {
+			running.forEach((future) -> future.cancel(true));
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new SPARQLExtException(ex.getCause());
+		}
+		LOG.trace("Fetched {} documents", requests.size());
+		@SuppressWarnings("unchecked")
+		final List<T> documents = (List<T>) Arrays.asList(results);
+		return documents;
+	}
+
+	private static String getHost(final LookUpRequest request) {
+		try {
+			final String host = URI.create(request.getFilenameOrURI()).getHost();
+			return host != null ? host : "";
+		} catch (IllegalArgumentException ex) {
+			return "";
+		}
+	}
+
+}
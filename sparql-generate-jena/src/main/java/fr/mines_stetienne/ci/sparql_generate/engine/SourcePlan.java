@@ -17,11 +17,17 @@ package fr.mines_stetienne.ci.sparql_generate.engine;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.jena.atlas.web.TypedInputStream;
 import org.apache.jena.datatypes.DatatypeFormatException;
 import org.apache.jena.datatypes.RDFDatatype;
@@ -31,7 +37,6 @@ import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.riot.SysRIOT;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
-import org.apache.jena.sparql.engine.binding.BindingFactory;
 import org.apache.jena.sparql.util.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,6 +44,8 @@ import org.slf4j.LoggerFactory;
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
 import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
 import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
+import fr.mines_stetienne.ci.sparql_generate.stream.SpooledDocument;
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
 
 /**
@@ -93,28 +100,123 @@ public class SourcePlan extends BindOrSourcePlan {
 		this.accept = accept;
 	}
 
+	/**
+	 * Fetches the distinct documents of the bindings once, concurrently if a
+	 * {@link SourceFetcher} is set, and extends the bindings in order. When
+	 * the execution is profiled, the bindings that reuse the document of a
+	 * previous binding are counted as cache hits.
+	 *
+	 * @param values
+	 *            the bindings.
+	 * @param context
+	 *            the execution context.
+	 * @return the extended bindings.
+	 */
+	@Override
+	protected List<Binding> execBatch(final List<Binding> values, final Context context) {
+		LOG.debug("Start " + this + " for " + values.size() + " bindings");
+		final SPARQLExtStreamManager sm = (SPARQLExtStreamManager) context.get(SysRIOT.sysStreamManager);
+		Objects.requireNonNull(sm);
+		final List<LookUpRequest> requests = new ArrayList<>(values.size());
+		final Map<LookUpRequest, Integer> distinct = new LinkedHashMap<>();
+		for (Binding binding : values) {
+			final LookUpRequest request = getRequest(binding);
+			requests.add(request);
+			if (request != null) {
+				distinct.putIfAbsent(request, distinct.size());
+			}
+		}
+		final List<LookUpRequest> lookUps = new ArrayList<>(distinct.keySet());
+		final int spoolThreshold = ContextUtils.getSourceSpoolThreshold(context);
+		final ExecutionProfile.PlanNode profileNode = ExecutionProfile.getNode(context, this);
+		if (profileNode != null) {
+			profileNode.addCacheHits(requests.stream().filter(Objects::nonNull).count() - lookUps.size());
+		}
+		final SourceFetcher fetcher = ContextUtils.getSourceFetcher(context);
+		final List<Node> documents;
+		if (fetcher == null || lookUps.size() <= 1) {
+			documents = lookUps.stream().map((request) -> fetch(request, sm, spoolThreshold, profileNode))
+					.collect(Collectors.toList());
+		} else {
+			documents = fetcher.fetch(lookUps, (request) -> fetch(request, sm, spoolThreshold, profileNode));
+		}
+		documents.forEach((n) -> deleteOnClose(n, context));
+		LOG.trace("... fetched " + lookUps.size() + " distinct documents");
+		final List<Binding> result = new ArrayList<>(values.size());
+		for (int i = 0; i < values.size(); i++) {
+			final Binding binding = values.get(i);
+			final LookUpRequest request = requests.get(i);
+			if (request == null) {
+				result.add(SlotBinding.extend(binding, var, null));
+				continue;
+			}
+			final Node n = documents.get(distinct.get(request));
+			result.add(n != null ? SlotBinding.extend(binding, var, n) : binding);
+		}
+		return result;
+	}
+
 	final protected Binding exec(final Binding binding, final Context context) {
 
 		LOG.debug("Start " + this);
 		Objects.nonNull(binding);
+		final LookUpRequest request = getRequest(binding);
+		if (request == null) {
+			return SlotBinding.extend(binding, var, null);
+		}
+		final SPARQLExtStreamManager sm = (SPARQLExtStreamManager) context.get(SysRIOT.sysStreamManager);
+		Objects.requireNonNull(sm);
+		final Node n = fetch(request, sm, ContextUtils.getSourceSpoolThreshold(context),
+				ExecutionProfile.getNode(context, this));
+		deleteOnClose(n, context);
+		return n != null ? SlotBinding.extend(binding, var, n) : binding;
+	}
+
+	/**
+	 * Get the request for the document of a binding.
+	 *
+	 * @param binding -
+	 * @return the request, or null if the source is not bound.
+	 */
+	private LookUpRequest getRequest(final Binding binding) {
 		// generate the source URI.
 		final String sourceUri = getActualSource(binding);
 		final String acceptHeader = getAcceptHeader(binding);
 		LOG.trace("... resolved to SOURCE <" + sourceUri + "> ACCEPT " + acceptHeader + " AS " + var);
 		if (sourceUri == null) {
-			return BindingFactory.binding(binding, var, null);
+			return null;
 		}
-		final LookUpRequest request = new LookUpRequest(sourceUri, acceptHeader);
-		final SPARQLExtStreamManager sm = (SPARQLExtStreamManager) context.get(SysRIOT.sysStreamManager);
-		Objects.requireNonNull(sm);
-		try (TypedInputStream stream = sm.open(request)) {
+		return new LookUpRequest(sourceUri, acceptHeader);
+	}
+
+	/**
+	 * Fetches a document.
+	 *
+	 * @param request -
+	 * @param sm      the stream manager.
+	 * @param spoolThreshold the size above which the document is spooled to a
+	 *               file, or 0 to always hold it in memory.
+	 * @param profileNode the node of the profile that counts the bytes
+	 *               fetched, or null.
+	 * @return the literal of the document, or null if it could not be fetched.
+	 */
+	private Node fetch(final LookUpRequest request, final SPARQLExtStreamManager sm, final int spoolThreshold,
+			final ExecutionProfile.PlanNode profileNode) {
+		final String sourceUri = request.getFilenameOrURI();
+		final SourceFetchEvent event = EngineEvents.beginSourceFetch();
+		try (TypedInputStream stream = event != null ? sm.open(request, event::found) : sm.open(request)) {
 			if (stream == null) {
-				LOG.info(
-						"Exec SOURCE <" + sourceUri + "> ACCEPT " + acceptHeader + " AS " + var + " returned nothing.");
-				return BindingFactory.binding(binding);
+				LOG.info("Exec SOURCE <" + sourceUri + "> ACCEPT " + request.getAccept() + " AS " + var
+						+ " returned nothing.");
+				if (event != null) {
+					event.record(sourceUri, request.getAccept(), 0);
+				}
+				return null;
 			}
-			try (InputStream in = stream.getInputStream()) {
-				final String literal = IOUtils.toString(in, "UTF-8");
+			final CountingInputStream counter = profileNode != null || event != null
+					? new CountingInputStream(stream.getInputStream())
+					: null;
+			try (InputStream in = counter != null ? counter : stream.getInputStream()) {
 				final RDFDatatype dt;
 				if (stream.getMediaType() != null && stream.getMediaType().getContentTypeStr() != null) {
 					dt = tm.getSafeTypeByName(
@@ -122,18 +224,39 @@ public class SourcePlan extends BindOrSourcePlan {
 				} else {
 					dt = tm.getSafeTypeByName("http://www.w3.org/2001/XMLSchema#string");
 				}
-				final Node n = NodeFactory.createLiteral(literal, dt);
+				final Node n;
+				if (spoolThreshold > 0) {
+					n = SpooledDocument.read(in, dt, spoolThreshold);
+				} else {
+					n = NodeFactory.createLiteral(IOUtils.toString(in, "UTF-8"), dt);
+				}
+				if (profileNode != null) {
+					profileNode.addBytes(counter.getByteCount());
+				}
+				if (event != null) {
+					event.record(sourceUri, request.getAccept(), counter.getByteCount());
+				}
 				LOG.debug("Exec " + this + " returned. " + "Enable TRACE level for more.");
-				if (LOG.isTraceEnabled()) {
+				if (LOG.isTraceEnabled() && !SpooledDocument.isSpooled(n)) {
 					LOG.trace("Exec " + this + " returned\n" + LogUtils.compress(n));
 				}
-				return BindingFactory.binding(binding, var, n);
+				return n;
 			}
 		} catch (IOException | DatatypeFormatException ex) {
 			LOG.warn("Exception while looking up " + sourceUri + ":", ex);
-			return BindingFactory.binding(binding);
+			return null;
 		}
+	}
 
+	/**
+	 * Deletes the file of a spooled document when the execution ends, if it
+	 * was not deleted before. Literals of the document may outlive the batch,
+	 * for example in a buffering writer or a memoised result.
+	 */
+	private static void deleteOnClose(final Node n, final Context context) {
+		if (n != null && SpooledDocument.isSpooled(n)) {
+			ContextUtils.addTaskOnClose(context, ((SpooledDocument) n.getLiteral()).getDeleteTask());
+		}
 	}
 
 	/**
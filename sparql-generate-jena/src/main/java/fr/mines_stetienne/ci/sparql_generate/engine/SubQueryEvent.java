@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A call of a sub-query, by a GENERATE or TEMPLATE clause, a function, or a
+ * FROM GENERATE clause. The duration includes the execution of the sub-query
+ * for all the bindings of the call, whose events are nested in this one.
+ *
+ * @author Maxime Lefrançois
+ * @see EngineEvents
+ */
+@Name("fr.mines_stetienne.ci.sparql_generate.SubQuery")
+@Label("Sub-Query Call")
+@Category(EngineEvents.CATEGORY)
+@Description("A call of a sub-query")
+@Enabled(false)
+@StackTrace(false)
+public class SubQueryEvent extends Event {
+
+	@Label("Query")
+	@Description("The name of the query")
+	String query;
+
+	@Label("Type")
+	@Description("GENERATE, SELECT or TEMPLATE")
+	String type;
+
+	@Label("Bindings")
+	@Description("The number of bindings the query is called with")
+	int bindings;
+
+	@Label("Cache Hits")
+	@Description("The number of bindings whose results were memoised")
+	int cacheHits;
+
+	SubQueryEvent() {
+	}
+
+	void record(final String query, final String type, final int bindings, final int cacheHits) {
+		end();
+		if (shouldCommit()) {
+			this.query = query;
+			this.type = type;
+			this.bindings = bindings;
+			this.cacheHits = cacheHits;
+			commit();
+		}
+	}
+
+}
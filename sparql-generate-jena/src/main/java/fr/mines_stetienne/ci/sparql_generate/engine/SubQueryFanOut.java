@@ -0,0 +1,266 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import fr.mines_stetienne.ci.sparql_generate.SPARQLExtException;
+import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.util.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes independent GENERATE sub-queries concurrently on the pool set with
+ * {@link ContextUtils.Builder#setParallelSubQueries(ForkJoinPool)}. Each
+ * sub-query writes to a buffer confined to its thread, and the buffers are
+ * merged into the output of the parent query by batches, from the calling
+ * thread. At most {@link #BUFFERED_BATCHES} batches per thread of the pool
+ * wait to be merged, so that fast sub-queries wait for the calling thread.
+ * If the calling thread fails, the sub-queries stop at their next batch.
+ *
+ * @author Maxime Lefrançois
+ */
+class SubQueryFanOut {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubQueryFanOut.class);
+
+    /**
+     * The number of triples a buffer holds before they are merged.
+     */
+    static final int BATCH_SIZE = 1024;
+
+    /**
+     * The number of batches per thread of the pool that wait to be merged.
+     */
+    static final int BUFFERED_BATCHES = 2;
+
+    /**
+     * The time in milliseconds a sub-query waits for room in the queue before
+     * it checks whether the execution was stopped.
+     */
+    private static final long OFFER_TIMEOUT = 100;
+
+    /**
+     * Marks the end of the execution of all the sub-queries.
+     */
+    private static final List<Triple> END = new ArrayList<>();
+
+    private SubQueryFanOut() {
+    }
+
+    /**
+     * Tells whether the sub-queries are executed concurrently: a pool is set,
+     * there are several sub-queries, and the calling thread is not a worker of
+     * the pool. Nested sub-queries are executed sequentially by the worker, so
+     * that a bounded pool is not exhausted by workers waiting for each other.
+     *
+     * @param context the execution context.
+     * @param subQueries the number of sub-queries.
+     * @return true if the sub-queries are executed concurrently.
+     */
+    static boolean isConcurrent(final Context context, final int subQueries) {
+        final ForkJoinPool pool = ContextUtils.getSubQueryPool(context);
+        return pool != null && subQueries > 1 && ForkJoinTask.getPool() != pool;
+    }
+
+    /**
+     * Executes the sub-queries concurrently, and returns when they are all
+     * executed.
+     *
+     * @param subQueries the executions of the sub-queries, in the context
+     * they receive.
+     * @param context the execution context.
+     */
+    static void exec(
+            final List<Consumer<Context>> subQueries,
+            final Context context) {
+        final ForkJoinPool pool = ContextUtils.getSubQueryPool(context);
+        final StreamRDF output = ContextUtils.getGenerateOutput(context);
+        final BlockingQueue<List<Triple>> queue = new ArrayBlockingQueue<>(
+                BUFFERED_BATCHES * pool.getParallelism());
+        final AtomicInteger running = new AtomicInteger(subQueries.size());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (Consumer<Context> subQuery : subQueries) {
+            futures.add(pool.submit(() -> {
+                try {
+                    final Buffer buffer = new Buffer(queue, stopped);
+                    subQuery.accept(ContextUtils.fork(context).setGenerateOutput(buffer).fork());
+                    buffer.flush();
+                } catch (Throwable ex) {
+                    failure.compareAndSet(null, ex);
+                } finally {
+                    if (running.decrementAndGet() == 0) {
+                        put(queue, stopped, END);
+                    }
+                }
+            }));
+        }
+        try {
+            for (List<Triple> triples = queue.take(); triples != END; triples = queue.take()) {
+                LOG.trace("Merging {} triples", triples.size());
+                triples.forEach(output::triple);
+            }
+        } catch (InterruptedException ex) {
+            stop(queue, stopped, futures);
+            Thread.currentThread().interrupt();
+            throw new SPARQLExtException(ex);
+        } catch (RuntimeException | Error ex) {
+            stop(queue, stopped, futures);
+            awaitTermination(futures);
+            throw ex;
+        }
+        final Throwable ex = failure.get();
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        } else if (ex instanceof Error) {
+            throw (Error) ex;
+        } else if (ex != null) {
+            throw new SPARQLExtException(ex);
+        }
+    }
+
+    /**
+     * Stops the sub-queries. Cancelling a running task of a fork-join pool
+     * does not interrupt it, so the sub-queries that wait for room in the
+     * queue are released by clearing it, and stop when they see the flag.
+     */
+    private static void stop(
+            final BlockingQueue<List<Triple>> queue,
+            final AtomicBoolean stopped,
+            final List<Future<?>> futures) {
+        stopped.set(true);
+        futures.forEach((future) -> future.cancel(false));
+        queue.clear();
+    }
+
+    /**
+     * Waits for the sub-queries that are still running to stop, so that they
+     * do not outlive the execution on a shared pool.
+     */
+    private static void awaitTermination(final List<Future<?>> futures) {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (CancellationException | ExecutionException ex) {
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void put(
+            final BlockingQueue<List<Triple>> queue,
+            final AtomicBoolean stopped,
+            final List<Triple> triples) {
+        try {
+            while (!stopped.get()) {
+                if (queue.offer(triples, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SPARQLExtException(ex);
+        }
+        if (triples != END) {
+            throw new CancellationException("The execution of the sub-queries was stopped");
+        }
+    }
+
+    /**
+     * The output of a sub-query, that hands its triples to the calling thread
+     * every {@link SubQueryFanOut#BATCH_SIZE} triples.
+     */
+    private static class Buffer implements StreamRDF {
+
+        private final BlockingQueue<List<Triple>> queue;
+
+        private final AtomicBoolean stopped;
+
+        private List<Triple> triples = new ArrayList<>();
+
+        private Buffer(
+                final BlockingQueue<List<Triple>> queue,
+                final AtomicBoolean stopped) {
+            this.queue = queue;
+            this.stopped = stopped;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void triple(Triple triple) {
+            triples.add(triple);
+            if (triples.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            // GENERATE sub-queries only emit triples
+        }
+
+        @Override
+        public void base(String base) {
+        }
+
+        @Override
+        public void prefix(String prefix, String iri) {
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        private void flush() {
+            if (!triples.isEmpty()) {
+                put(queue, stopped, triples);
+                triples = new ArrayList<>();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+
+import fr.mines_stetienne.ci.sparql_generate.utils.TemplateWriter;
+
+/**
+ * The output of a TEMPLATE query executed at once for several call bindings.
+ * The bindings carry the index of the call they come from, and the output of
+ * each call is written separately.
+ *
+ * @author Maxime Lefrançois
+ */
+class TemplateCallOutputs extends IndentedWriter {
+
+	/**
+	 * The variable bound to the index of the call.
+	 */
+	static final Var CALL = Var.alloc("sparql_generate_call");
+
+	private final TemplateWriter[] writers;
+	private final Binding[] last;
+
+	TemplateCallOutputs(int size) {
+		super(NullOutputStream.NULL_OUTPUT_STREAM);
+		writers = new TemplateWriter[size];
+		last = new Binding[size];
+		for (int i = 0; i < size; i++) {
+			writers[i] = new TemplateWriter();
+		}
+	}
+
+	static Binding tag(Binding binding, int call) {
+		return BindingFactory.binding(binding, CALL, NodeFactory.createLiteral(Integer.toString(call)));
+	}
+
+	static int callOf(Binding binding) {
+		final Node node = binding.get(CALL);
+		return Integer.parseInt(node.getLiteralLexicalForm());
+	}
+
+	IndentedWriter getWriter(int call) {
+		return writers[call];
+	}
+
+	/**
+	 * @return the last binding output for the call, or null if the call had no
+	 *         output.
+	 */
+	Binding getLast(int call) {
+		return last[call];
+	}
+
+	void setLast(int call, Binding binding) {
+		last[call] = binding;
+	}
+
+	int size() {
+		return writers.length;
+	}
+
+	List<String> getOutputs() {
+		final List<String> outputs = new ArrayList<>(writers.length);
+		for (int i = 0; i < writers.length; i++) {
+			outputs.add(writers[i].toString());
+		}
+		return outputs;
+	}
+
+}
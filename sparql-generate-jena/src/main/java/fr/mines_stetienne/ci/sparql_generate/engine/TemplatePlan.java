@@ -15,23 +15,44 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.engine;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.algebra.walker.Walker;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.E_Function;
+import org.apache.jena.sparql.expr.E_Now;
+import org.apache.jena.sparql.expr.E_Str;
 import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprFunction;
+import org.apache.jena.sparql.expr.ExprFunction0;
+import org.apache.jena.sparql.expr.ExprFunction1;
+import org.apache.jena.sparql.expr.ExprFunctionN;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.ExprVisitorBase;
 import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.Unstable;
 import org.apache.jena.sparql.function.FunctionEnv;
 import org.apache.jena.sparql.function.FunctionEnvBase;
 import org.apache.jena.sparql.util.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import fr.mines_stetienne.ci.sparql_generate.function.library.ST_Concat;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
+import fr.mines_stetienne.ci.sparql_generate.utils.EvalUtils;
+import fr.mines_stetienne.ci.sparql_generate.utils.ST;
 
 public class TemplatePlan {
 
@@ -44,6 +65,20 @@ public class TemplatePlan {
 	private final Expr expr;
 	private final Expr separator;
 	private final Expr after;
+	private final boolean memoisable;
+	private final boolean deterministic;
+
+	/**
+	 * The calls to st:call-template that are evaluated for every binding, and
+	 * can be executed for a batch of bindings at once.
+	 */
+	private final List<E_Function> calls = new ArrayList<>();
+
+	/**
+	 * The maximal number of bindings whose calls to st:call-template are
+	 * executed at once.
+	 */
+	private static final int CALL_BATCH_SIZE = 1024;
 
 	public TemplatePlan(Expr before, Expr expr, Expr separator, Expr after) {
 		Objects.requireNonNull(expr, "expr must not be null");
@@ -51,31 +86,247 @@ public class TemplatePlan {
 		this.expr = expr;
 		this.separator = separator;
 		this.after = after;
+		final boolean[] flags = { true, true };
+		scan(before, flags);
+		scan(expr, flags);
+		scan(separator, flags);
+		scan(after, flags);
+		this.deterministic = flags[0];
+		this.memoisable = flags[0] && flags[1];
+		collectCalls(expr);
+	}
+
+	/**
+	 * Checks if the output of the template can be memoised: it does not change
+	 * the indentation of the output with st:incr or st:decr, and does not call
+	 * functions that return a different value on each call.
+	 *
+	 * @return true if the output only depends on the call parameters.
+	 */
+	public boolean isMemoisable() {
+		return memoisable;
+	}
+
+	/**
+	 * Checks if the template does not call functions that return a different
+	 * value on each call.
+	 *
+	 * @return true if the output only depends on the call parameters and on the
+	 *         indentation.
+	 */
+	public boolean isDeterministic() {
+		return deterministic;
+	}
+
+	/**
+	 * Sets flags[0] to false if the expression calls a function that returns a
+	 * different value on each call, and flags[1] to false if it changes the
+	 * indentation.
+	 */
+	private static void scan(Expr expr, boolean[] flags) {
+		if (expr == null) {
+			return;
+		}
+		Walker.walk(expr, new ExprVisitorBase() {
+			@Override
+			public void visit(ExprFunction0 func) {
+				checkStable(func);
+			}
+
+			@Override
+			public void visit(ExprFunction1 func) {
+				checkStable(func);
+			}
+
+			@Override
+			public void visit(ExprFunctionN func) {
+				checkStable(func);
+				if (func instanceof E_Function) {
+					final String iri = ((E_Function) func).getFunctionIRI();
+					if (ST.incr.equals(iri) || ST.decr.equals(iri)) {
+						flags[1] = false;
+					}
+				}
+			}
+
+			// BNODE() is a function of arity 0, and BNODE(str) of arity 1
+			private void checkStable(ExprFunction func) {
+				if (func instanceof Unstable || func instanceof E_Now) {
+					flags[0] = false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Collects the calls to st:call-template with a query name, that are
+	 * arguments of st:concat or str.
+	 */
+	private void collectCalls(Expr expr) {
+		if (expr instanceof E_Str) {
+			collectCalls(((E_Str) expr).getArg());
+		} else if (expr instanceof E_Function) {
+			final E_Function function = (E_Function) expr;
+			if (ST.concat.equals(function.getFunctionIRI())) {
+				function.getArgs().forEach(this::collectCalls);
+			} else if (ST.callTemplate.equals(function.getFunctionIRI()) && function.getArgs().size() >= 1) {
+				calls.add(function);
+			}
+		}
 	}
 
 	public void exec(List<Var> variables, List<Binding> values, Context context) {
+		exec(variables, values.iterator(), context);
+	}
+
+	/**
+	 * Executes the template on bindings that are consumed as they are produced.
+	 * The calls to st:call-template are executed for a batch of bindings at
+	 * once.
+	 *
+	 * @param variables
+	 *            the list of variables.
+	 * @param values
+	 *            the bindings.
+	 * @param context
+	 *            the execution context.
+	 */
+	public void exec(List<Var> variables, Iterator<Binding> values, Context context) {
 		final IndentedWriter writer = ContextUtils.getTemplateOutput(context);
+		if (writer instanceof TemplateCallOutputs) {
+			execCalls(values, (TemplateCallOutputs) writer, context);
+			return;
+		}
 		boolean first = true;
+		while (values.hasNext()) {
+			final List<Binding> batch = nextBatch(values);
+			final Context batchContext = prepareCalls(batch, context);
+			final FunctionEnv env = new FunctionEnvBase(batchContext);
+			for (Iterator<Binding> it = batch.iterator(); it.hasNext();) {
+				Binding binding = it.next();
+				if (first && before != null) {
+					print(writer, before, binding, batchContext, env);
+				}
+				if (!first && separator != null) {
+					print(writer, separator, binding, batchContext, env);
+				}
+				print(writer, expr, binding, batchContext, env);
+				first = false;
+				if (!it.hasNext() && !values.hasNext() && after != null) {
+					print(writer, after, binding, batchContext, env);
+				}
+				writer.flush();
+			}
+		}
+	}
+
+	/**
+	 * Executes the template on bindings that come from several calls, and
+	 * writes the output of each call separately. The after expression is
+	 * output by {@link #execAfter(TemplateCallOutputs, Context)}.
+	 */
+	private void execCalls(Iterator<Binding> values, TemplateCallOutputs outputs, Context context) {
+		while (values.hasNext()) {
+			final List<Binding> batch = nextBatch(values);
+			final Context batchContext = prepareCalls(batch, context);
+			final FunctionEnv env = new FunctionEnvBase(batchContext);
+			for (Binding binding : batch) {
+				final int call = TemplateCallOutputs.callOf(binding);
+				final IndentedWriter writer = outputs.getWriter(call);
+				final boolean first = outputs.getLast(call) == null;
+				if (first && before != null) {
+					writer.print(getExprEval(before, binding, batchContext, env));
+				}
+				if (!first && separator != null) {
+					writer.print(getExprEval(separator, binding, batchContext, env));
+				}
+				writer.print(getExprEval(expr, binding, batchContext, env));
+				outputs.setLast(call, binding);
+			}
+		}
+	}
+
+	/**
+	 * Outputs the after expression for each call that had output.
+	 */
+	void execAfter(TemplateCallOutputs outputs, Context context) {
+		if (after == null) {
+			return;
+		}
 		final FunctionEnv env = new FunctionEnvBase(context);
-		String result;
-		for(Iterator<Binding> it=values.iterator(); it.hasNext();) {
-			Binding binding = it.next();
-			if (first && before != null) {
-				result = getExprEval(before, binding, context, env);
-				writer.print(result);
+		for (int call = 0; call < outputs.size(); call++) {
+			final Binding last = outputs.getLast(call);
+			if (last != null) {
+				outputs.getWriter(call).print(getExprEval(after, last, context, env));
 			}
-			if (!first && separator != null) {
-				result = getExprEval(separator, binding, context, env);
-				writer.print(result);
+		}
+	}
+
+	private List<Binding> nextBatch(Iterator<Binding> values) {
+		final List<Binding> batch = new ArrayList<>();
+		while (values.hasNext() && batch.size() < CALL_BATCH_SIZE) {
+			batch.add(values.next());
+		}
+		return batch;
+	}
+
+	/**
+	 * Executes the calls to st:call-template of a batch of bindings, with one
+	 * execution of each template for all the distinct call parameters.
+	 *
+	 * @return the context in which st:call-template finds the output of the
+	 *         calls.
+	 */
+	private Context prepareCalls(List<Binding> batch, Context context) {
+		if (calls.isEmpty() || batch.size() < 2) {
+			return context;
+		}
+		final FunctionEnv env = new FunctionEnvBase(context);
+		final Map<Node, Set<List<Node>>> callParameters = new LinkedHashMap<>();
+		for (Binding binding : batch) {
+			for (E_Function call : calls) {
+				final Node queryName = EvalUtils.eval(call.getArg(1), binding, env);
+				if (queryName == null || !queryName.isURI()) {
+					continue;
+				}
+				final List<Node> parameters = EvalUtils.eval(new ExprList(call.getArgs().subList(1, call.getArgs().size())),
+						binding, env);
+				callParameters.computeIfAbsent(queryName, (n) -> new LinkedHashSet<>()).add(parameters);
+			}
+		}
+		final QueryExecutor queryExecutor = ContextUtils.getQueryExecutor(context);
+		final Map<List<Node>, String> outputs = new HashMap<>();
+		callParameters.forEach((queryName, parameters) -> {
+			final List<List<Node>> parametersList = new ArrayList<>(parameters);
+			final List<String> results = queryExecutor.execTemplatesFromName(queryName.getURI(), parametersList,
+					context);
+			if (results == null) {
+				return;
 			}
-			result = getExprEval(expr, binding, context, env);
-			writer.print(result);
-			first = false;
-			if (!it.hasNext() && after != null) {
-				result = getExprEval(after, binding, context, env);
-				writer.print(result);
+			for (int i = 0; i < parametersList.size(); i++) {
+				final List<Node> key = new ArrayList<>();
+				key.add(queryName);
+				key.addAll(parametersList.get(i));
+				outputs.put(key, results.get(i));
 			}
-			writer.flush();
+		});
+		if (outputs.isEmpty()) {
+			return context;
+		}
+		return ContextUtils.fork(context).setTemplateCalls(outputs).fork();
+	}
+
+	/**
+	 * Writes the value of the expression to the template output of the
+	 * context. A call to st:concat writes its arguments to the output directly,
+	 * instead of building the string of its output first.
+	 */
+	private void print(IndentedWriter writer, Expr expr, Binding binding, Context context, FunctionEnv env) {
+		final Expr concat = expr instanceof E_Str ? ((E_Str) expr).getArg() : expr;
+		if (ST_Concat.isConcat(concat)) {
+			ST_Concat.append(binding, ((E_Function) concat).getArgs(), env);
+		} else {
+			writer.print(getExprEval(expr, binding, context, env));
 		}
 	}
 
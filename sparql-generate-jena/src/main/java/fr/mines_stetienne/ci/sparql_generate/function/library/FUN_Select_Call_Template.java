@@ -15,12 +15,9 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.function.library;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
-import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.graph.Node;
 import org.apache.jena.query.ResultSet;
 import org.apache.jena.sparql.ARQInternalErrorException;
@@ -40,6 +37,7 @@ import fr.mines_stetienne.ci.sparql_generate.engine.QueryExecutor;
 import fr.mines_stetienne.ci.sparql_generate.engine.RootPlan;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.EvalUtils;
+import fr.mines_stetienne.ci.sparql_generate.utils.TemplateWriter;
 
 /**
  * Extension of st:call-template where the first parameter is a select * query
@@ -112,16 +110,14 @@ public class FUN_Select_Call_Template implements Function {
             callParameters.add(EvalUtils.eval(callArgs, binding, env));
         }
         String templateQueryName = templateQueryNode.asNode().getURI();
-        try(ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        		IndentedWriter writer = new IndentedWriter(baos);) {
+        final TemplateWriter writer = TemplateWriter.acquire();
+        try {
 	        Context newContext = ContextUtils.fork(context).setTemplateOutput(writer).fork();
 	        queryExecutor.execTemplateFromName(templateQueryName, callParameters, newContext);
-	        String result = new String(baos.toByteArray());
-	        writer.close(); // need to flush. One before the other isn't important. boas.close is the only variant that doesn't work.
-	        return new NodeValueString(result);
-        } catch (IOException ex) {
-        	throw new ExprEvalException(ex);
-		}
+	        return new NodeValueString(writer.toString());
+        } finally {
+        	writer.release();
+        }
 
     }
 }
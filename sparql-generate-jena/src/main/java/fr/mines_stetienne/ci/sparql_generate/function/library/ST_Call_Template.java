@@ -20,13 +20,12 @@ import fr.mines_stetienne.ci.sparql_generate.engine.QueryExecutor;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.EvalUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.ST;
+import fr.mines_stetienne.ci.sparql_generate.utils.TemplateWriter;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
-import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.graph.Node;
 import org.apache.jena.sparql.ARQInternalErrorException;
 import org.apache.jena.sparql.engine.binding.Binding;
@@ -91,24 +90,37 @@ public class ST_Call_Template implements Function {
 
         final Context context = env.getContext();
         final QueryExecutor queryExecutor = ContextUtils.getQueryExecutor(context);
-        try(ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        		IndentedWriter writer = new IndentedWriter(baos);) {
-        	Context newContext = ContextUtils.fork(context).setTemplateOutput(writer).fork();
+        List<Node> parameters = null;
+        if (queryNode.isIRI()) {
+            parameters = EvalUtils.eval(args.subList(1, args.size()), binding, env);
+            // the call may have been executed with the other calls of the batch
+            final Map<List<Node>, String> templateCalls = ContextUtils.getTemplateCalls(context);
+            if (templateCalls != null) {
+                final List<Node> key = new ArrayList<>();
+                key.add(queryNode.asNode());
+                key.addAll(parameters);
+                final String result = templateCalls.get(key);
+                if (result != null) {
+                    return new NodeValueString(result);
+                }
+            }
+        }
+        final TemplateWriter writer = TemplateWriter.acquire();
+        try {
+            Context newContext = ContextUtils.fork(context).setTemplateOutput(writer).fork();
             if (queryNode.isIRI()) {
                 String queryName = queryNode.asNode().getURI();
                 List<List<Node>> callParameters = new ArrayList<>();
-                callParameters.add(EvalUtils.eval(args.subList(1, args.size()), binding, env));
+                callParameters.add(parameters);
                 queryExecutor.execTemplateFromName(queryName, callParameters, newContext);
-                return new NodeValueString(new String(baos.toByteArray()));
+                return new NodeValueString(writer.toString());
             }
             String queryString = queryNode.asNode().getLiteralLexicalForm();
-        	queryExecutor.execTemplateFromString(queryString, binding, newContext);
-            String result = new String(baos.toByteArray());
-	        writer.close(); // need to flush. One before the other isn't important. boas.close is the only variant that doesn't work.
-            return new NodeValueString(result);
-        } catch (IOException ex) {
-        	throw new ExprEvalException(ex);
-		}
+            queryExecutor.execTemplateFromString(queryString, binding, newContext);
+            return new NodeValueString(writer.toString());
+        } finally {
+            writer.release();
+        }
     }
 
 }
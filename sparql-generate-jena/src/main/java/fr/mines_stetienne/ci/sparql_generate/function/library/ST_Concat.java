@@ -18,15 +18,16 @@ package fr.mines_stetienne.ci.sparql_generate.function.library;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.ST;
+import fr.mines_stetienne.ci.sparql_generate.utils.TemplateWriter;
 
-import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.List;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.sparql.ARQInternalErrorException;
 import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.E_Function;
 import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.ExprEvalException;
 import org.apache.jena.sparql.expr.ExprList;
@@ -70,37 +71,221 @@ public class ST_Concat implements Function {
      */
     @Override
     public NodeValue exec(Binding binding, ExprList args, String uri, FunctionEnv env) {
-        final boolean isDebugStConcat = ContextUtils.isDebugStConcat(env.getContext());
         if (args == null) {
             throw new ARQInternalErrorException("FunctionBase: Null args list");
         }
-        try(ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        		IndentedWriter writer = new IndentedWriter(baos);) {
-	        Context newContext = ContextUtils.fork(env.getContext()).setTemplateOutput(writer).fork();
-	        FunctionEnv newEnv = new FunctionEnvBase(newContext);
-	        for (int i = 0; i < args.size(); i++) {
-	            Expr expr = args.get(i);
-	            try {
-	                NodeValue arg = expr.eval(binding, newEnv);
-	                writer.print(arg.asString());
-	            } catch (Exception ex) {
-	                StringWriter sw = new StringWriter();
-	                ex.printStackTrace(new PrintWriter(sw));
-	                String message = String.format("Error executing st:concat with expression %s and binding %s: %s", ExprUtils.fmtSPARQL(expr), LogUtils.compress(binding).toString(), sw.toString());
-	                if (LOG.isDebugEnabled()) {
-	                    LOG.debug(message, ex);
-	                }
-	                if (isDebugStConcat) {
-	                    writer.print(String.format("\n<<<<<<<<<< %s >>>>>>>>>>\n", message));
-	                }
-	            }
-	        }
-	        writer.close(); // need to flush. One before the other isn't important. boas.close is the only variant that doesn't work.
-	        String result = new String(baos.toByteArray());
-	        return new NodeValueString(result);
-        } catch (IOException ex) {
-        	throw new ExprEvalException(ex);
-		}
+        final TemplateWriter writer = TemplateWriter.acquire();
+        try {
+            Context newContext = ContextUtils.fork(env.getContext()).setTemplateOutput(writer).fork();
+            FunctionEnv newEnv = new FunctionEnvBase(newContext);
+            append(binding, args.getList(), newEnv, writer, null, ContextUtils.isDebugStConcat(newContext));
+            return new NodeValueString(writer.toString());
+        } finally {
+            writer.release();
+        }
+    }
+
+    /**
+     * Checks if the expression is a call to st:concat.
+     *
+     * @param expr the expression.
+     * @return true if the expression is a call to st:concat.
+     */
+    public static boolean isConcat(Expr expr) {
+        return expr instanceof E_Function && URI.equals(((E_Function) expr).getFunctionIRI());
+    }
+
+    /**
+     * Writes the output of st:concat to the template output of the context,
+     * instead of returning it as a string. The arguments that are themselves
+     * calls to st:concat write to the same output, with their own
+     * indentation.
+     *
+     * @param binding the binding.
+     * @param args the arguments of st:concat.
+     * @param env the function environment, whose context has a template
+     * output.
+     */
+    public static void append(Binding binding, List<Expr> args, FunctionEnv env) {
+        final Context context = env.getContext();
+        final IndentedWriter writer = ContextUtils.getTemplateOutput(context);
+        append(binding, args, env, writer, null, ContextUtils.isDebugStConcat(context));
+    }
+
+    /**
+     * Writes the arguments, and restores the indentation of the writer.
+     */
+    private static void append(Binding binding, List<Expr> args, FunctionEnv env, IndentedWriter writer, Level parent, boolean isDebugStConcat) {
+        final Level level = new Level(parent, writer.getAbsoluteIndent());
+        try {
+            for (Expr expr : args) {
+                try {
+                    if (isConcat(expr)) {
+                        append(binding, ((E_Function) expr).getArgs(), env, writer, level, isDebugStConcat);
+                    } else {
+                        NodeValue arg = expr.eval(binding, env);
+                        print(writer, level, arg.asString());
+                    }
+                } catch (Exception ex) {
+                    StringWriter sw = new StringWriter();
+                    ex.printStackTrace(new PrintWriter(sw));
+                    String message = String.format("Error executing st:concat with expression %s and binding %s: %s", ExprUtils.fmtSPARQL(expr), LogUtils.compress(binding).toString(), sw.toString());
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(message, ex);
+                    }
+                    if (isDebugStConcat) {
+                        print(writer, level, String.format("\n<<<<<<<<<< %s >>>>>>>>>>\n", message));
+                    }
+                }
+            }
+        } finally {
+            writer.setAbsoluteIndent(level.base);
+        }
+    }
+
+    /**
+     * Writes the output as if each call to st:concat had written to a writer
+     * of its own: on the first line of a call, the indentation is relative to
+     * the column where the output of the call starts, each enclosing call
+     * pads the following lines with its own indentation, and a line feed that
+     * follows a carriage return of the same call is ignored.
+     */
+    private static void print(IndentedWriter writer, Level level, String output) {
+        if (output.indexOf('\r') >= 0 || level.isAfterCarriageReturn()) {
+            output = level.normalise(output, writer.getAbsoluteIndent());
+        }
+        if (output.isEmpty()) {
+            return;
+        }
+        final int indent = writer.getAbsoluteIndent();
+        final int row = writer.getRow();
+        level.start(getColumn(writer), row);
+        final int column = level.padding(indent, row);
+        try {
+            // the padding by the calls is written as characters, as it was
+            // part of their output
+            writer.setAbsoluteIndent(level.outer);
+            final int padded = writer.getCol();
+            if (padded < column) {
+                writer.print(' ', column - padded);
+            }
+            writer.setAbsoluteIndent(level.padding(indent, -1));
+            writer.print(output);
+        } finally {
+            writer.setAbsoluteIndent(indent);
+        }
+    }
+
+    /**
+     * Get the column of the writer before it is padded up to the indentation.
+     */
+    private static int getColumn(IndentedWriter writer) {
+        final int indent = writer.getAbsoluteIndent();
+        writer.setAbsoluteIndent(0);
+        final int column = writer.getCol();
+        writer.setAbsoluteIndent(indent);
+        return column;
+    }
+
+    /**
+     * A call to st:concat that writes to the writer of an enclosing call.
+     */
+    private static final class Level {
+
+        private final Level parent;
+
+        /**
+         * The indentation of the writer when the call starts.
+         */
+        private final int base;
+
+        /**
+         * The indentation of the writer when the outermost call starts.
+         */
+        private final int outer;
+
+        /**
+         * The padding of the lines by the enclosing calls, that do not
+         * unindent the lines when their indentation is negative.
+         */
+        private final int lead;
+
+        /**
+         * The column and the row of the first output of the call, or -1 if it
+         * did not output anything yet.
+         */
+        private int origin = -1;
+        private int row;
+
+        /**
+         * If the last character the call output is a carriage return.
+         */
+        private boolean carriageReturn = false;
+
+        private Level(Level parent, int base) {
+            this.parent = parent;
+            this.base = base;
+            this.outer = parent == null ? base : parent.outer;
+            this.lead = parent == null ? Math.max(0, base) : parent.lead + Math.max(0, base - parent.base);
+        }
+
+        /**
+         * Sets the column of the first output of the call and of the
+         * enclosing calls.
+         */
+        private void start(int column, int row) {
+            if (origin >= 0) {
+                return;
+            }
+            if (parent == null) {
+                origin = Math.max(column, base);
+            } else {
+                parent.start(column, row);
+                origin = Math.max(column, parent.padding(base, row));
+            }
+            this.row = row;
+        }
+
+        private boolean isAfterCarriageReturn() {
+            for (Level level = this; level != null; level = level.parent) {
+                if (level.carriageReturn) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Replaces the carriage returns by line feeds, and removes the line
+         * feeds that follow a carriage return of the call, or of an enclosing
+         * call if the calls in between do not pad the line.
+         */
+        private String normalise(String output, int indent) {
+            final StringBuilder sb = new StringBuilder(output.length());
+            for (int i = 0; i < output.length(); i++) {
+                final char ch = output.charAt(i);
+                boolean ignored = carriageReturn && ch == '\n';
+                carriageReturn = ch == '\r';
+                boolean padded = indent > base;
+                for (Level level = this; level.parent != null && !ignored; level = level.parent) {
+                    ignored = level.parent.carriageReturn && !padded && (ch == '\n' || ch == '\r');
+                    level.parent.carriageReturn = false;
+                    padded |= level.base > level.parent.base;
+                }
+                if (!ignored) {
+                    sb.append(ch == '\r' ? '\n' : ch);
+                }
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Get the column the call pads a row up to, once started.
+         */
+        private int padding(int indent, int row) {
+            return (row == this.row ? origin : lead) + Math.max(0, indent - base);
+        }
+
     }
 
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.iterator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses the number of rows a streaming iterator emits per batch, when the
+ * query does not give it.
+ * <p>
+ * The size is adjusted after each batch so that the rest of the query takes
+ * about {@link #TARGET_LATENCY} milliseconds to process a batch: large enough
+ * for the cost of executing the SELECT and GENERATE clauses once per batch to
+ * be negligible, small enough for a batch not to fill the heap. The size is
+ * halved whenever less than {@link #MIN_HEAP_HEADROOM} of the heap is free
+ * after a batch.
+ *
+ * @author Maxime Lefrançois
+ */
+public class BatchSizer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchSizer.class);
+
+    /**
+     * The size of the first batch.
+     */
+    public static final int INITIAL_SIZE = 1024;
+
+    public static final int MIN_SIZE = 16;
+
+    public static final int MAX_SIZE = 1 << 20;
+
+    /**
+     * The time, in milliseconds, the rest of the query should take to process
+     * a batch.
+     */
+    public static final long TARGET_LATENCY = 100;
+
+    /**
+     * The minimal fraction of the heap that should be free after a batch.
+     */
+    public static final double MIN_HEAP_HEADROOM = 0.1;
+
+    private volatile int size = INITIAL_SIZE;
+
+    /**
+     * @return the number of rows to emit in the next batch.
+     */
+    public int getBatchSize() {
+        return size;
+    }
+
+    /**
+     * Adjusts the size from the time the rest of the query took to process a
+     * batch.
+     *
+     * @param rows the number of rows of the batch.
+     * @param nanos the time, in nanoseconds, taken to process the batch.
+     */
+    public synchronized void record(final int rows, final long nanos) {
+        if (rows == 0) {
+            return;
+        }
+        final int previous = size;
+        final int next;
+        if (getHeapHeadroom() < MIN_HEAP_HEADROOM) {
+            next = Math.max(MIN_SIZE, previous / 2);
+        } else {
+            final double nanosPerRow = Math.max(1, nanos) / (double) rows;
+            final double ideal = TimeUnit.MILLISECONDS.toNanos(TARGET_LATENCY) / nanosPerRow;
+            final double bounded = Math.max(previous / 2.0, Math.min(previous * 2.0, ideal));
+            next = (int) Math.max(MIN_SIZE, Math.min(MAX_SIZE, bounded));
+        }
+        if (next != previous) {
+            LOG.trace("Batch of " + rows + " rows processed in " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms, next batches of " + next + " rows");
+            size = next;
+        }
+    }
+
+    private static double getHeapHeadroom() {
+        final Runtime runtime = Runtime.getRuntime();
+        final long used = runtime.totalMemory() - runtime.freeMemory();
+        return 1 - (double) used / runtime.maxMemory();
+    }
+
+    @Override
+    public String toString() {
+        return "BatchSizer " + size;
+    }
+
+}
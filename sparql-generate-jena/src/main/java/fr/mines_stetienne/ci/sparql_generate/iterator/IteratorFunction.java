@@ -26,6 +26,10 @@ import org.apache.jena.sparql.function.FunctionEnv;
  * The interface of SPARQL-Generate iterator functions. SPARQL-Generate
  * iterators are similar to SPARQL functions, except they return a list of list
  * of RDF terms or SPARQL variables.
+ * <p>
+ * An instance is built for each execution of an ITERATOR clause, and is
+ * always called with the same environment. It may be called by several
+ * threads at once, for different bindings of that execution.
  */
 public interface IteratorFunction {
 
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.iterator;
+
+import org.apache.jena.sparql.function.FunctionEnvBase;
+import org.apache.jena.sparql.util.Context;
+
+/**
+ * The environment in which an ITERATOR clause executes its iterator function.
+ *
+ * @author Maxime Lefrançois
+ */
+public class IteratorFunctionEnv extends FunctionEnvBase {
+
+    private final BatchSizer batchSizer;
+
+    /**
+     * @param context the execution context.
+     * @param batchSizer chooses the size of the batches the iterator emits, or
+     * null if the iterator emits all its rows as one batch by default.
+     */
+    public IteratorFunctionEnv(final Context context, final BatchSizer batchSizer) {
+        super(context);
+        this.batchSizer = batchSizer;
+    }
+
+    /**
+     * @return the batch sizer, or null.
+     */
+    public BatchSizer getBatchSizer() {
+        return batchSizer;
+    }
+
+}
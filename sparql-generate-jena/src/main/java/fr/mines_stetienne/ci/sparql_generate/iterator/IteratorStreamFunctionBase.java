@@ -33,6 +33,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * The base implementation of the {@link IteratorFunction} interface.
+ * <p>
+ * An instance serves one execution of an ITERATOR clause, so
+ * {@link #getContext()} returns the context of that execution from any
+ * thread, including the threads an iterator starts to emit its values.
  */
 public abstract class IteratorStreamFunctionBase implements IteratorFunction {
 
@@ -44,9 +48,9 @@ public abstract class IteratorStreamFunctionBase implements IteratorFunction {
     protected ExprList arguments = null;
     
     /**
-     * The function environment.
+     * The function environment of the execution.
      */
-    private FunctionEnv env;
+    private volatile FunctionEnv env;
 
     /**
      * Build a iterator function execution with the given arguments, and operate
@@ -108,6 +112,18 @@ public abstract class IteratorStreamFunctionBase implements IteratorFunction {
         return (Context) env.getContext();
     }
 
+    /**
+     * Get the batch sizer that chooses the number of rows per batch when the
+     * query does not give it.
+     *
+     * @return the batch sizer, or null if all the rows should be emitted as
+     * one batch.
+     */
+    public final BatchSizer getBatchSizer() {
+        final FunctionEnv current = env;
+        return current instanceof IteratorFunctionEnv ? ((IteratorFunctionEnv) current).getBatchSizer() : null;
+    }
+
     /**
      * IteratorFunction call to a list of evaluated argument values.
      *
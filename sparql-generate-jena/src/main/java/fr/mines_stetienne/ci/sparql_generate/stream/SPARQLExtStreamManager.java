@@ -15,6 +15,8 @@
  */
 package fr.mines_stetienne.ci.sparql_generate.stream;
 
+import java.util.function.Consumer;
+
 import org.apache.jena.atlas.web.TypedInputStream;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.riot.system.stream.LocationMapper;
@@ -77,8 +79,20 @@ public class SPARQLExtStreamManager extends StreamManager {
      * found.
      */
     public TypedInputStream open(LookUpRequest _request) {
+        return open(_request, null);
+    }
+
+    /**
+     * Open a file using the locators of this StreamManager, and tell which
+     * locator found it. Returns null if not found.
+     *
+     * @param _request the request.
+     * @param found called with the locator that found the file, or null.
+     * @return the stream, or null.
+     */
+    public TypedInputStream open(LookUpRequest _request, Consumer<Locator> found) {
         LookUpRequest request = mapRequest(_request);
-        return openNoMapOrNull(request);
+        return openNoMapOrNull(request, found);
     }
 
     @Deprecated
@@ -126,11 +140,18 @@ public class SPARQLExtStreamManager extends StreamManager {
     }
 
     public TypedInputStream openNoMapOrNull(LookUpRequest request) {
+        return openNoMapOrNull(request, null);
+    }
+
+    private TypedInputStream openNoMapOrNull(LookUpRequest request, Consumer<Locator> found) {
         for (Locator loc : locators()) {
             LocatorAccept loca = (LocatorAccept) loc;
             TypedInputStream in = loca.open(request);
             if (in != null) {
                 LOG.debug("Locator " + loc.getName() + " found: " + request.getFilenameOrURI() + " with accept: " + request.getAccept());
+                if (found != null) {
+                    found.accept(loc);
+                }
                 return in;
             }
         };
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.jena.datatypes.BaseDatatype;
+import org.apache.jena.datatypes.DatatypeFormatException;
+import org.apache.jena.datatypes.RDFDatatype;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.impl.LiteralLabel;
+import org.apache.jena.graph.impl.LiteralLabelFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The label of a literal whose lexical form is a document spooled to a
+ * temporary file, so that a large document is not held in memory.
+ * <p>
+ * Iterators that parse documents as streams open the file with
+ * {@link #open(Node)}. The hash code of the lexical form is computed while the
+ * document is spooled, and two literals are compared by streaming their
+ * lexical forms. The lexical form is read from the file in memory only when
+ * it is needed, for example when the literal is passed to a function. The
+ * file is deleted with {@link #delete()}, after which the
+ * lexical form that was not read can no longer be. The file of a document
+ * that is no longer referenced is deleted when the next document is spooled.
+ *
+ * @author Maxime Lefrançois
+ */
+public class SpooledDocument implements LiteralLabel {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpooledDocument.class);
+
+    /**
+     * The size of the buffer a document is first read to. It grows up to the
+     * threshold for larger documents.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    /**
+     * The documents that are no longer referenced, and whose files can be
+     * deleted.
+     */
+    private static final ReferenceQueue<SpooledDocument> UNREACHABLE = new ReferenceQueue<>();
+
+    /**
+     * The references to the documents whose files are not deleted yet, so
+     * that the references are enqueued.
+     */
+    private static final Set<FileReference> SPOOLED = ConcurrentHashMap.newKeySet();
+
+    private final Path file;
+
+    private final RDFDatatype dtype;
+
+    /**
+     * The hash code of the lexical form, as computed by String#hashCode.
+     */
+    private final int lexicalHash;
+
+    private final FileReference reference;
+
+    private volatile LiteralLabel label;
+
+    private SpooledDocument(final Path file, final RDFDatatype dtype, final int lexicalHash) {
+        this.file = file;
+        this.dtype = dtype;
+        this.lexicalHash = lexicalHash;
+        this.reference = new FileReference(this);
+        SPOOLED.add(reference);
+    }
+
+    /**
+     * Reads a document encoded in UTF-8 to a literal. If the document is
+     * larger than the threshold, it is spooled to a temporary file.
+     *
+     * @param in the document.
+     * @param dtype the datatype of the literal.
+     * @param threshold the maximal size, in bytes, of a document held in
+     * memory.
+     * @return the literal.
+     * @throws IOException if the document could not be read or spooled.
+     */
+    public static Node read(final InputStream in, final RDFDatatype dtype, final int threshold)
+            throws IOException {
+        byte[] head = new byte[(int) Math.min(threshold + 1L, INITIAL_BUFFER_SIZE)];
+        int length = 0;
+        while (length <= threshold) {
+            if (length == head.length) {
+                head = Arrays.copyOf(head, (int) Math.min(threshold + 1L, 2L * length));
+            }
+            final int read = in.read(head, length, head.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        if (length <= threshold) {
+            return NodeFactory.createLiteral(new String(head, 0, length, StandardCharsets.UTF_8), dtype);
+        }
+        deleteUnreachable();
+        final Path file = Files.createTempFile("sparql-generate-source-", ".tmp");
+        final int lexicalHash;
+        try (OutputStream out = Files.newOutputStream(file)) {
+            // the bytes are written to the file as they are decoded
+            final InputStream document = new SequenceInputStream(new ByteArrayInputStream(head, 0, length), in);
+            lexicalHash = hash(new InputStreamReader(new TeeInputStream(document, out), StandardCharsets.UTF_8));
+            LOG.debug("Spooled document to " + file);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+        return createLiteral(new SpooledDocument(file, dtype, lexicalHash));
+    }
+
+    /**
+     * Jena has no other way to create a literal with a custom label.
+     */
+    @SuppressWarnings("deprecation")
+    private static Node createLiteral(final SpooledDocument document) {
+        return NodeFactory.createLiteral(document);
+    }
+
+    private static int hash(final Reader reader) throws IOException {
+        final char[] buffer = new char[INITIAL_BUFFER_SIZE];
+        int hash = 0;
+        for (int read = reader.read(buffer); read != -1; read = reader.read(buffer)) {
+            for (int i = 0; i < read; i++) {
+                hash = 31 * hash + buffer[i];
+            }
+        }
+        return hash;
+    }
+
+    private Reader openReader() throws IOException {
+        return new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8);
+    }
+
+    private static boolean contentEquals(final Reader reader, final Reader other) throws IOException {
+        final char[] buffer = new char[INITIAL_BUFFER_SIZE];
+        final char[] otherBuffer = new char[INITIAL_BUFFER_SIZE];
+        while (true) {
+            final int read = IOUtils.read(reader, buffer);
+            final int otherRead = IOUtils.read(other, otherBuffer);
+            if (read != otherRead) {
+                return false;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] != otherBuffer[i]) {
+                    return false;
+                }
+            }
+            if (read < buffer.length) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Tells whether a node is a literal spooled to a file.
+     *
+     * @param node the node.
+     * @return true if the lexical form of the node is spooled to a file.
+     */
+    public static boolean isSpooled(final Node node) {
+        return node.isLiteral() && node.getLiteral() instanceof SpooledDocument;
+    }
+
+    /**
+     * Opens the lexical form of a literal encoded in UTF-8, from its file if
+     * it is spooled.
+     *
+     * @param node the literal.
+     * @return the stream, that must be closed.
+     * @throws IOException if the file could not be opened.
+     */
+    public static InputStream open(final Node node) throws IOException {
+        if (isSpooled(node)) {
+            return Files.newInputStream(((SpooledDocument) node.getLiteral()).file);
+        }
+        return IOUtils.toInputStream(node.getLiteralLexicalForm(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes the file of the document.
+     */
+    public void delete() {
+        delete(reference);
+    }
+
+    /**
+     * Get a task that deletes the file of the document, and that does not keep
+     * the document from being garbage collected.
+     *
+     * @return the task.
+     */
+    public Runnable getDeleteTask() {
+        final FileReference reference = this.reference;
+        return () -> delete(reference);
+    }
+
+    /**
+     * Deletes the files of the documents that are no longer referenced.
+     */
+    private static void deleteUnreachable() {
+        Reference<? extends SpooledDocument> unreachable;
+        while ((unreachable = UNREACHABLE.poll()) != null) {
+            delete((FileReference) unreachable);
+        }
+    }
+
+    private static void delete(final FileReference reference) {
+        if (!SPOOLED.remove(reference)) {
+            return;
+        }
+        reference.clear();
+        try {
+            Files.deleteIfExists(reference.file);
+        } catch (IOException ex) {
+            LOG.warn("Could not delete " + reference.file, ex);
+        }
+    }
+
+    /**
+     * A reference to a document, enqueued when the document is no longer
+     * referenced.
+     */
+    private static final class FileReference extends PhantomReference<SpooledDocument> {
+
+        private final Path file;
+
+        FileReference(final SpooledDocument document) {
+            super(document, UNREACHABLE);
+            this.file = document.file;
+        }
+
+    }
+
+    /**
+     * Get the label of the literal read from the file.
+     */
+    private LiteralLabel materialize() {
+        LiteralLabel result = label;
+        if (result == null) {
+            synchronized (this) {
+                result = label;
+                if (result == null) {
+                    LOG.debug("Reading the lexical form of the document spooled to " + file);
+                    try {
+                        final String lexicalForm = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                        result = LiteralLabelFactory.create(lexicalForm, dtype);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException("Could not read the document spooled to " + file, ex);
+                    }
+                    label = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isXML() {
+        return false;
+    }
+
+    /**
+     * Tells whether any lexical form is valid for the datatype, so that the
+     * lexical form needs not be read to know if the literal is well formed.
+     */
+    private boolean isOpaque() {
+        return dtype.getClass() == BaseDatatype.class || XSDDatatype.XSDstring.equals(dtype);
+    }
+
+    @Override
+    public boolean isWellFormed() {
+        return isOpaque() || materialize().isWellFormed();
+    }
+
+    @Override
+    public boolean isWellFormedRaw() {
+        return isOpaque() || materialize().isWellFormedRaw();
+    }
+
+    @Override
+    public String toString(boolean quoting) {
+        return materialize().toString(quoting);
+    }
+
+    @Override
+    public String toString() {
+        return materialize().toString();
+    }
+
+    @Override
+    public String getLexicalForm() {
+        return materialize().getLexicalForm();
+    }
+
+    @Override
+    public Object getIndexingValue() {
+        return materialize().getIndexingValue();
+    }
+
+    @Override
+    public String language() {
+        return "";
+    }
+
+    @Override
+    public Object getValue() throws DatatypeFormatException {
+        return materialize().getValue();
+    }
+
+    @Override
+    public RDFDatatype getDatatype() {
+        return dtype;
+    }
+
+    @Override
+    public String getDatatypeURI() {
+        return dtype.getURI();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof SpooledDocument && file.equals(((SpooledDocument) obj).file)) {
+            return true;
+        }
+        if (!(obj instanceof LiteralLabel)) {
+            return false;
+        }
+        final LiteralLabel other = (LiteralLabel) obj;
+        if (!Objects.equals(dtype, other.getDatatype())
+                || !Objects.equals(language(), other.language())
+                || hashCode() != other.hashCode()) {
+            return false;
+        }
+        final LiteralLabel materialized = label;
+        if (materialized != null) {
+            return materialized.getLexicalForm().equals(other.getLexicalForm());
+        }
+        try (Reader reader = openReader();
+                Reader otherReader = other instanceof SpooledDocument
+                        ? ((SpooledDocument) other).openReader()
+                        : new StringReader(other.getLexicalForm())) {
+            return contentEquals(reader, otherReader);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not read the document spooled to " + file, ex);
+        }
+    }
+
+    @Override
+    public boolean sameValueAs(LiteralLabel other) {
+        return materialize().sameValueAs(other);
+    }
+
+    /**
+     * Same as the hash code of a label created by Jena, which for these
+     * datatypes only depends on the lexical form.
+     */
+    @Override
+    public int hashCode() {
+        return isOpaque() ? dtype.getHashCode(this) : materialize().hashCode();
+    }
+
+    @Override
+    public int getDefaultHashcode() {
+        if (XSDDatatype.XSDstring.equals(dtype)) {
+            return lexicalHash;
+        } else if (isOpaque()) {
+            // the value is a BaseDatatype.TypedValue
+            return lexicalHash ^ dtype.getURI().hashCode();
+        }
+        return materialize().getDefaultHashcode();
+    }
+
+}
@@ -17,17 +17,25 @@ package fr.mines_stetienne.ci.sparql_generate.utils;
 
 import static fr.mines_stetienne.ci.sparql_generate.SPARQLExt.NS;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.atlas.web.TypedInputStream;
+import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.query.ARQ;
@@ -42,21 +50,34 @@ import org.apache.jena.riot.RDFParser;
 import org.apache.jena.riot.RiotException;
 import org.apache.jena.riot.SysRIOT;
 import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
 import org.apache.jena.riot.system.StreamRDFOps;
 import org.apache.jena.shared.PrefixMapping;
 import org.apache.jena.sparql.ARQConstants;
 import org.apache.jena.sparql.SystemARQ;
 import org.apache.jena.sparql.function.FunctionRegistry;
+import org.apache.jena.sparql.graph.GraphFactory;
 import org.apache.jena.sparql.util.Context;
 import org.apache.jena.sparql.util.Symbol;
 import org.apache.jena.vocabulary.RDF;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.engine.ExecutionMetrics;
+import fr.mines_stetienne.ci.sparql_generate.engine.ExecutionProfile;
+import fr.mines_stetienne.ci.sparql_generate.engine.GraphCache;
+import fr.mines_stetienne.ci.sparql_generate.engine.IteratorPlan;
+import fr.mines_stetienne.ci.sparql_generate.engine.MetricsRegistry;
+import fr.mines_stetienne.ci.sparql_generate.engine.PlanCache;
 import fr.mines_stetienne.ci.sparql_generate.engine.QueryExecutor;
+import fr.mines_stetienne.ci.sparql_generate.engine.SourceFetcher;
 import fr.mines_stetienne.ci.sparql_generate.function.SPARQLExtFunctionRegistry;
 import fr.mines_stetienne.ci.sparql_generate.graph.Node_List;
+import fr.mines_stetienne.ci.sparql_generate.iterator.BatchSizer;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorFunctionRegistry;
 import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
 import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
@@ -69,30 +90,28 @@ public class ContextUtils {
 
 	static final Logger LOG = LoggerFactory.getLogger(ContextUtils.class);
 
-	private static final Symbol COMMONS = SystemARQ.allocSymbol(NS, "commons");
-
-	private static final Symbol PARENT_CONTEXT = SystemARQ.allocSymbol(NS, "parent_context");
-
-	private static final Symbol DATASET = SystemARQ.allocSymbol(NS, "dataset");
-
-	private static final Symbol OUTPUT_TEMPLATE = SystemARQ.allocSymbol(NS, "output_template");
-
-	private static final Symbol OUTPUT_GENERATE = SystemARQ.allocSymbol(NS, "output_generate");
-
-	private static final Symbol OUTPUT_SELECT = SystemARQ.allocSymbol(NS, "output_select");
+	private static final Symbol STATE = SystemARQ.allocSymbol(NS, "state");
 
 	private static final Symbol BASE = SystemARQ.allocSymbol(NS, "base");
 
 	private static final Symbol PREFIX_MANAGER = SystemARQ.allocSymbol(NS, "prefixManager");
 
-	private static final Symbol SIZE = SystemARQ.allocSymbol(NS, "size");
-
-	private static final Symbol LIST_NODES = SystemARQ.allocSymbol(NS, "list_nodes");
-
 	private static final Node[] NIL = new Node[] { RDF.nil.asNode() };
 
+	private static final String GRAPH_ACCEPT_HEADER = "text/turtle;q=1.0,application/rdf+xml;q=0.9,*/*;q=0.1";
+
 	private static final Symbol FAIL_ON_EXCEPTION = SystemARQ.allocSymbol(NS, "fail_on_exception");
 
+	private static final Symbol STREAMING_BUFFER = SystemARQ.allocSymbol(NS, "streaming_buffer");
+
+	private static final Symbol PREPARED_SELECT = SystemARQ.allocSymbol(NS, "prepared_select");
+
+	/**
+	 * The maximal total number of triples of the graphs generated by FROM
+	 * GENERATE clauses that an execution keeps for reuse.
+	 */
+	private static final long GENERATED_GRAPHS_TRIPLES = 5_000_000;
+
 	static {
 		SPARQLExt.init();
 	}
@@ -106,59 +125,243 @@ public class ContextUtils {
 	 * @param position
 	 * @return
 	 */
-	public static synchronized Node getNode(final Context context, final Node_List list, int position) {
+	public static Node getNode(final Context context, final Node_List list, int position) {
 		return getInfo(context, list)[position];
 	}
 
-	public static synchronized Node[] getInfo(final Context context, final Node_List list) {
-		final int size = (Integer) context.get(SIZE);
-		if (size == 0) {
+	/**
+	 * get the nodes of the LIST( expr ), followed by rdf:nil. The nodes are
+	 * allocated once per context created with {@link Forker#setSize(int)}, and
+	 * are looked up without locking once allocated.
+	 *
+	 * @param context
+	 * @param list
+	 * @return
+	 */
+	public static Node[] getInfo(final Context context, final Node_List list) {
+		final State state = getState(context);
+		if (state.size == 0) {
 			return NIL;
 		}
-		if (context.isUndef(LIST_NODES)) {
-			context.set(LIST_NODES, new HashMap<>());
-		}
-		final Map<Node_List, Node[]> listNodes = context.get(LIST_NODES);
-		if (!listNodes.containsKey(list)) {
-			createListNodes(listNodes, list, size);
+		final Node[] nodes = state.listNodes.get(list);
+		if (nodes != null) {
+			return nodes;
 		}
-		return listNodes.get(list);
+		return state.listNodes.computeIfAbsent(list, (l) -> createListNodes(state.size));
 	}
 
-	private static void createListNodes(final Map<Node_List, Node[]> listNodes, final Node_List list, final int size) {
+	private static Node[] createListNodes(final int size) {
 		Node[] nodes = new Node[size + 1];
 		for (int i = 0; i < size; i++) {
 			nodes[i] = NodeFactory.createBlankNode();
 		}
 		nodes[size] = RDF.nil.asNode();
-		listNodes.put(list, nodes);
+		return nodes;
+	}
+
+	private static State getState(Context context) {
+		return context.get(STATE);
 	}
 
 	public static Dataset getDataset(Context context) {
-		return context.get(DATASET);
+		return getState(context).dataset;
 	}
 
 	public static ExecutorService getExecutor(Context context) {
-		Commons commons = context.get(COMMONS);
-		return commons.executor;
+		return getState(context).commons.executor;
+	}
+
+	/**
+	 * Get the pool on which the iterator executions for the different outer
+	 * bindings are spread, or null if they are executed sequentially.
+	 *
+	 * @param context
+	 * @return the pool, or null.
+	 */
+	public static ForkJoinPool getIteratorPool(Context context) {
+		return getState(context).commons.iteratorPool;
+	}
+
+	/**
+	 * If the iterators are executed in parallel, tells whether the bindings must
+	 * be emitted in the same order as in a sequential execution.
+	 *
+	 * @param context
+	 * @return true if the order must be preserved.
+	 */
+	public static boolean isIteratorOrdered(Context context) {
+		return getState(context).commons.iteratorOrdered;
+	}
+
+	/**
+	 * Get the pool on which the independent GENERATE sub-queries are executed
+	 * concurrently, or null if they are executed sequentially.
+	 *
+	 * @param context
+	 * @return the pool, or null.
+	 */
+	public static ForkJoinPool getSubQueryPool(Context context) {
+		return getState(context).commons.subQueryPool;
+	}
+
+	/**
+	 * Get the fetcher of the documents of the SOURCE clauses, or null if they
+	 * are fetched sequentially.
+	 *
+	 * @param context
+	 * @return the fetcher, or null.
+	 */
+	public static SourceFetcher getSourceFetcher(Context context) {
+		return getState(context).commons.sourceFetcher;
+	}
+
+	/**
+	 * Get the size, in bytes, above which the documents of the SOURCE clauses
+	 * are spooled to temporary files, or 0 if they are held in memory.
+	 *
+	 * @param context
+	 * @return the size, or 0.
+	 */
+	public static int getSourceSpoolThreshold(Context context) {
+		return getState(context).commons.sourceSpoolThreshold;
 	}
 
 	public static QueryExecutor getQueryExecutor(Context context) {
-		Commons commons = context.get(COMMONS);
-		return commons.queryExecutor;
+		return getState(context).commons.queryExecutor;
+	}
+
+	/**
+	 * Get the persistent cache of the normalized queries loaded by name, or
+	 * null if they are normalized at each execution.
+	 *
+	 * @param context
+	 * @return the cache, or null.
+	 */
+	public static PlanCache getPlanCache(Context context) {
+		return getState(context).commons.planCache;
+	}
+
+	/**
+	 * Get the dictionary that interns the nodes bound by the ITERATOR and BIND
+	 * clauses of the execution, or null if the nodes are not interned.
+	 *
+	 * @param context
+	 * @return the dictionary, or null.
+	 */
+	public static NodeDictionary getNodeDictionary(Context context) {
+		return getState(context).commons.nodeDictionary;
+	}
+
+	/**
+	 * Get the batch sizer of an ITERATOR clause for the execution, or null if
+	 * the streaming iterators emit all their rows as one batch by default.
+	 *
+	 * @param context
+	 * @param plan
+	 *            the plan of the ITERATOR clause.
+	 * @return the batch sizer, or null.
+	 */
+	public static BatchSizer getBatchSizer(Context context, IteratorPlan plan) {
+		final Commons commons = getState(context).commons;
+		if (commons.batchSizers == null) {
+			return null;
+		}
+		return commons.batchSizers.computeIfAbsent(plan, (p) -> new BatchSizer());
+	}
+
+	/**
+	 * Get the graphs generated by the FROM GENERATE clauses of the execution,
+	 * that are reused until the execution is closed.
+	 *
+	 * @param context
+	 * @return the graphs, by execution key.
+	 */
+	public static Cache<Object, Graph> getGeneratedGraphs(Context context) {
+		return getState(context).commons.generatedGraphs;
+	}
+
+	/**
+	 * Get the node of the profile for the plan that executes in the context.
+	 *
+	 * @param context
+	 * @return the node, or null if the execution is not profiled.
+	 */
+	public static ExecutionProfile.PlanNode getProfileNode(Context context) {
+		return getState(context).profileNode;
+	}
+
+	/**
+	 * Get a context in which the plans called are profiled as children of a
+	 * node. The context shares everything else with the given one.
+	 *
+	 * @param context
+	 * @param node
+	 *            the node of the plan that executes in the new context.
+	 * @return the new context.
+	 */
+	public static Context withProfileNode(Context context, ExecutionProfile.PlanNode node) {
+		final Context newContext = Context.create();
+		newContext.putAll(context);
+		newContext.set(STATE, new State(getState(context), node));
+		return newContext;
 	}
 
 	public static boolean isRootContext(Context context) {
-		return context.get(PARENT_CONTEXT) == null;
+		return getState(context).parent == null;
 	}
 
 	public static boolean isFailOnException(Context context) {
 		return context.get(FAIL_ON_EXCEPTION);
 	}
 
+	/**
+	 * Tells whether the ITERATOR, SOURCE and BIND clauses are executed as a
+	 * pipeline of cursors that pull bindings from one another.
+	 *
+	 * @param context
+	 * @return true if the pull-based execution is used.
+	 */
+	public static boolean isStreamingExecution(Context context) {
+		return getStreamingBufferSize(context) > 0;
+	}
+
+	/**
+	 * Get the maximal number of batches buffered after each ITERATOR clause in
+	 * the pull-based execution, or 0 if the pull-based execution is not used.
+	 *
+	 * @param context
+	 * @return the buffer size.
+	 */
+	public static int getStreamingBufferSize(Context context) {
+		Integer bufferSize = context.get(STREAMING_BUFFER);
+		return bufferSize == null ? 0 : bufferSize;
+	}
+
+	/**
+	 * Get the pool on which the ITERATOR clauses run ahead in the pull-based
+	 * execution, or null if they are executed in the thread of their
+	 * consumer.
+	 *
+	 * @param context
+	 * @return the pool, or null.
+	 */
+	public static ExecutorService getPipelinePool(Context context) {
+		return getState(context).commons.pipelinePool;
+	}
+
+	/**
+	 * Tells whether the SELECT queries are compiled and optimized once, and
+	 * reused for all the batches of bindings.
+	 *
+	 * @param context
+	 * @return true if the prepared SELECT queries are used.
+	 */
+	public static boolean isPreparedSelect(Context context) {
+		return context.isTrue(PREPARED_SELECT);
+	}
+
 	public static boolean isDebugStConcat(Context context) {
-		Commons commons = context.get(COMMONS);
-		return commons.debugTemplate;
+		return getState(context).commons.debugTemplate;
 	}
 
 	public static String getBase(Context context) {
@@ -173,70 +376,106 @@ public class ContextUtils {
 	}
 
 	public static void addTaskOnClose(Context context, final Runnable task) {
-		Commons commons = context.get(COMMONS);
-		commons.closingTasks.add(task);
+		getState(context).commons.closingTasks.add(task);
 	}
 
 	public static void close(Context context) {
-		Commons commons = context.get(COMMONS);
+		Commons commons = getState(context).commons;
 		try {
 			LOG.trace("Closing context");
 			commons.closingTasks.forEach(Runnable::run);
+			commons.generatedGraphs.invalidateAll();
+			final ExecutionMetrics metrics = commons.queryExecutor.getMetrics();
+			metrics.unregisterCache("generatedGraphs", commons.generatedGraphs);
+			if (commons.graphCache != null) {
+				commons.graphCache.unregisterFrom(metrics);
+			}
+			if (commons.nodeDictionary != null) {
+				LOG.info(commons.nodeDictionary.toString());
+			}
+			if (LOG.isDebugEnabled()) {
+				LOG.debug(metrics.toString());
+			}
+			if (commons.profile != null && LOG.isDebugEnabled()) {
+				LOG.debug(commons.profile.toString());
+			}
 		} catch (Exception ex) {
 			LOG.warn("Exception while closing context:", ex);
 		}
 	}
 
 	public static IndentedWriter getTemplateOutput(Context context) {
-		IndentedWriter writer = context.get(OUTPUT_TEMPLATE);
-		if(writer != null) {
-			return writer;
-		}
-		if(!isRootContext(context)) {
-			Context parentContext = (Context) context.get(PARENT_CONTEXT);
-			return getTemplateOutput(parentContext);
-		}
-		return null;
+		return getState(context).templateOutput;
 	}
 
 	public static Consumer<ResultSet> getSelectOutput(Context context) {
-		Consumer<ResultSet> output = context.get(OUTPUT_SELECT);
-		if(output != null) {
-			return output;
-		}
-		if(!isRootContext(context)) {
-			Context parentContext = (Context) context.get(PARENT_CONTEXT);
-			return getSelectOutput(parentContext);
-		}
-		return null;
+		return getState(context).selectOutput;
+	}
+
+	/**
+	 * Gets the output of calls to st:call-template that have already been
+	 * executed for a batch of bindings.
+	 *
+	 * @return the output of the calls, by query name followed by the call
+	 *         parameters, or null.
+	 */
+	public static Map<List<Node>, String> getTemplateCalls(Context context) {
+		return getState(context).templateCalls;
 	}
 
 	public static StreamRDF getGenerateOutput(Context context) {
-		StreamRDF output = context.get(OUTPUT_GENERATE);
-		if(output != null) {
-			return output;
-		}
-		if(!isRootContext(context)) {
-			Context parentContext = (Context) context.get(PARENT_CONTEXT);
-			return getGenerateOutput(parentContext);
-		}
-		return null;
+		return getState(context).generateOutput;
 	}
 
 	public static void loadGraph(Context context, String sourceURI, String baseURI, StreamRDF dest) {
-		if(getDataset(context).containsNamedModel(sourceURI)) {
-			final Model model = getDataset(context).getNamedModel(sourceURI);
-			StreamRDFOps.sendGraphToStream(model.getGraph(), dest);
+		final Graph graph = findGraph(context, sourceURI);
+		if (graph != null) {
+			StreamRDFOps.sendGraphToStream(graph, dest);
 			return;
 		}
-		if(!isRootContext(context)) {
-			Context parentContext = (Context) context.get(PARENT_CONTEXT);
-			loadGraph(parentContext, sourceURI, baseURI, dest);
-			return;
+		parseGraph(context, sourceURI, baseURI, dest);
+	}
+
+	/**
+	 * Get a graph without copying it: a named graph of the dataset, or the graph
+	 * parsed from the document located by the stream manager. If a graph cache
+	 * is set, parsed graphs are taken from the cache.
+	 *
+	 * @param context
+	 * @param sourceURI
+	 *            the URI of the graph.
+	 * @param baseURI
+	 *            the absolute URI of the graph, used as the base to parse it.
+	 * @return the graph, that must not be modified.
+	 */
+	public static Graph getGraph(Context context, String sourceURI, String baseURI) {
+		final Graph graph = findGraph(context, sourceURI);
+		if (graph != null) {
+			return graph;
 		}
+		final GraphCache graphCache = getState(context).commons.graphCache;
+		if (graphCache != null) {
+			final SPARQLExtStreamManager sm = (SPARQLExtStreamManager) context.get(SysRIOT.sysStreamManager);
+			return graphCache.get(sm, new LookUpRequest(sourceURI, GRAPH_ACCEPT_HEADER), baseURI,
+					(dest) -> parseGraph(context, sourceURI, baseURI, dest));
+		}
+		final Graph parsed = GraphFactory.createDefaultGraph();
+		parseGraph(context, sourceURI, baseURI, StreamRDFLib.graph(parsed));
+		return parsed;
+	}
+
+	private static Graph findGraph(Context context, String sourceURI) {
+		for (State state = getState(context); state != null; state = state.parent) {
+			if(state.dataset.containsNamedModel(sourceURI)) {
+				return state.dataset.getNamedModel(sourceURI).getGraph();
+			}
+		}
+		return null;
+	}
+
+	private static void parseGraph(Context context, String sourceURI, String baseURI, StreamRDF dest) {
 		final SPARQLExtStreamManager sm = (SPARQLExtStreamManager) context.get(SysRIOT.sysStreamManager);
-		final String acceptHeader = "text/turtle;q=1.0,application/rdf+xml;q=0.9,*/*;q=0.1";
-		final LookUpRequest request = new LookUpRequest(sourceURI, acceptHeader);
+		final LookUpRequest request = new LookUpRequest(sourceURI, GRAPH_ACCEPT_HEADER);
 		try (TypedInputStream tin = sm.open(request);) {
 			if(tin == null) {
 				LOG.warn("Could not locate graph " + request);
@@ -249,7 +488,6 @@ public class ContextUtils {
 		}
 	}
 
-
 	public static TypedInputStream openStream(Context context, String sourceUri, String acceptHeader) {
 		final LookUpRequest request = new LookUpRequest(sourceUri, acceptHeader);
 		final SPARQLExtStreamManager sm = (SPARQLExtStreamManager) context.get(SysRIOT.sysStreamManager);
@@ -271,6 +509,15 @@ public class ContextUtils {
 	public static class Forker {
 
 		private final Context context;
+		private final State parent;
+		private final Commons commons;
+		private Dataset dataset;
+		private int size = 0;
+		private IndentedWriter templateOutput;
+		private StreamRDF generateOutput;
+		private Consumer<ResultSet> selectOutput;
+		private Map<List<Node>, String> templateCalls;
+		private final ExecutionProfile.PlanNode profileNode;
 
 		/**
 		 *
@@ -284,38 +531,59 @@ public class ContextUtils {
 					context.get(SysRIOT.sysStreamManager, SPARQLExtStreamManager.makeStreamManager()));
 			context.set(BASE, context.get(BASE));
 			context.set(PREFIX_MANAGER, context.get(PREFIX_MANAGER, PrefixMapping.Standard));
-			context.set(SIZE, 0);
-			if(!isRoot) {
-				context.set(PARENT_CONTEXT, ctx);
-			}
+			final State state = getState(ctx);
+			parent = isRoot ? state.parent : state;
+			commons = state.commons;
+			dataset = state.dataset;
+			templateOutput = state.templateOutput;
+			generateOutput = state.generateOutput;
+			selectOutput = state.selectOutput;
+			templateCalls = state.templateCalls;
+			profileNode = state.profileNode;
 		}
 
 		public Forker setDataset(Dataset dataset) {
-			context.set(DATASET, dataset);
+			this.dataset = dataset;
 			return this;
 		}
 
 		public Forker setSize(int size) {
-			context.set(SIZE, size);
+			this.size = size;
 			return this;
 		}
 
 		public Forker setTemplateOutput(IndentedWriter output) {
-			context.set(OUTPUT_TEMPLATE, output);
+			this.templateOutput = output;
 			return this;
 		}
 
 		public Forker setGenerateOutput(StreamRDF output) {
-			context.set(OUTPUT_GENERATE, output);
+			this.generateOutput = output;
 			return this;
 		}
 
 		public Forker setSelectOutput(Consumer<ResultSet> output) {
-			context.set(OUTPUT_SELECT, output);
+			this.selectOutput = output;
+			return this;
+		}
+
+		/**
+		 * Sets the output of calls to st:call-template that have already been
+		 * executed.
+		 *
+		 * @param templateCalls
+		 *            the output of the calls, by query name followed by the
+		 *            call parameters.
+		 */
+		public Forker setTemplateCalls(Map<List<Node>, String> templateCalls) {
+			this.templateCalls = templateCalls;
 			return this;
 		}
 
 		public Context fork() {
+			context.set(STATE,
+					new State(parent, commons, dataset, size, templateOutput, generateOutput, selectOutput,
+							templateCalls, profileNode));
 			return context;
 		}
 
@@ -346,6 +614,10 @@ public class ContextUtils {
 
 		private final Context context;
 		private final Commons commons;
+		private Dataset dataset = DatasetFactory.create();
+		private IndentedWriter templateOutput;
+		private StreamRDF generateOutput;
+		private Consumer<ResultSet> selectOutput;
 
 		private Builder() {
 			this.context = Context.create();
@@ -366,35 +638,32 @@ public class ContextUtils {
 			// default streammanager
 			context.set(SysRIOT.sysStreamManager, SPARQLExtStreamManager.makeStreamManager());
 
-			// set variable parts
-			context.set(DATASET, DatasetFactory.create());
-
 			// default prefix manager
 			context.set(PREFIX_MANAGER, PrefixMapping.Standard);
 
-			// default number of results and blank nodes
-			context.set(SIZE, 0);
-			// context.set(LIST_NODES, new HashMap<>());
-
-			context.set(COMMONS, commons);
-
 			// default fail on exception is false
 			context.set(FAIL_ON_EXCEPTION, false);
+
+			// default execution is recursive
+			context.set(STREAMING_BUFFER, 0);
+
+			// default SELECT queries are compiled for every batch
+			context.set(PREPARED_SELECT, false);
 		}
 
 		private Builder(IndentedWriter output) {
 			this();
-			context.set(OUTPUT_TEMPLATE, output);
+			this.templateOutput = output;
 		}
 
 		private Builder(StreamRDF output) {
 			this();
-			context.set(OUTPUT_GENERATE, output);
+			this.generateOutput = output;
 		}
 
 		private Builder(Consumer<ResultSet> output) {
 			this();
-			context.set(OUTPUT_SELECT, output);
+			this.selectOutput = output;
 		}
 
 		public Builder setBase(String base) {
@@ -413,28 +682,27 @@ public class ContextUtils {
 		}
 
 		public Builder setInputModel(Model inputModel) {
-			Dataset inputDataset = DatasetFactory.create(inputModel);
-			context.set(DATASET, inputDataset);
+			this.dataset = DatasetFactory.create(inputModel);
 			return this;
 		}
 
 		public Builder setInputDataset(Dataset inputDataset) {
-			context.set(DATASET, inputDataset);
+			this.dataset = inputDataset;
 			return this;
 		}
 
 		public Builder setTemplateOutput(IndentedWriter output) {
-			context.set(OUTPUT_TEMPLATE, output);
+			this.templateOutput = output;
 			return this;
 		}
 
 		public Builder setGenerateOutput(StreamRDF output) {
-			context.set(OUTPUT_GENERATE, output);
+			this.generateOutput = output;
 			return this;
 		}
 
 		public Builder setSelectOutput(Consumer<ResultSet> output) {
-			context.set(OUTPUT_SELECT, output);
+			this.selectOutput = output;
 			return this;
 		}
 
@@ -448,11 +716,215 @@ public class ContextUtils {
 			return this;
 		}
 
+		/**
+		 * Executes the ITERATOR, SOURCE and BIND clauses as a pipeline of cursors
+		 * that lazily pull bindings from one another. The ITERATOR clauses run
+		 * ahead on a new pool of as many threads as there are processors.
+		 *
+		 * @param bufferSize
+		 *            the maximal number of batches buffered after each ITERATOR
+		 *            clause, or 0 to use the default recursive execution.
+		 */
+		public Builder setStreamingExecution(int bufferSize) {
+			return setStreamingExecution(bufferSize, Runtime.getRuntime().availableProcessors());
+		}
+
+		/**
+		 * Executes the ITERATOR, SOURCE and BIND clauses as a pipeline of cursors
+		 * that lazily pull bindings from one another. The ITERATOR clauses run
+		 * ahead on a new pool of the given number of threads, that is shut down
+		 * when the execution ends. If all the threads are busy, an ITERATOR
+		 * clause is executed in the thread of its consumer.
+		 *
+		 * @param bufferSize
+		 *            the maximal number of batches buffered after each ITERATOR
+		 *            clause, or 0 to use the default recursive execution.
+		 * @param threads
+		 *            the maximal number of ITERATOR clauses that run ahead at
+		 *            once.
+		 */
+		public Builder setStreamingExecution(int bufferSize, int threads) {
+			context.set(STREAMING_BUFFER, bufferSize);
+			if (bufferSize <= 0 || threads <= 0) {
+				commons.pipelinePool = null;
+				return this;
+			}
+			final AtomicInteger count = new AtomicInteger();
+			final ExecutorService pool = new ThreadPoolExecutor(0, threads, 60L, TimeUnit.SECONDS,
+					new SynchronousQueue<>(), (runnable) -> {
+						final Thread thread = new Thread(runnable, "sparql-generate-pipeline-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+			commons.closingTasks.add(pool::shutdown);
+			commons.pipelinePool = pool;
+			return this;
+		}
+
+		/**
+		 * Compiles and optimizes the SELECT queries once, and feeds each batch of
+		 * bindings to the compiled query as an input table.
+		 *
+		 * @param preparedSelect
+		 *            true to use the prepared SELECT queries.
+		 */
+		public Builder setPreparedSelect(boolean preparedSelect) {
+			context.set(PREPARED_SELECT, preparedSelect);
+			return this;
+		}
+
 		public Builder setExecutor(ExecutorService executor) {
 			commons.executor = executor;
 			return this;
 		}
 
+		/**
+		 * Executes the iterators over the different outer bindings in parallel on
+		 * a new pool of as many threads as there are processors, that is shut
+		 * down when the execution ends.
+		 *
+		 * @param ordered
+		 *            if true, the bindings are emitted in the same order as in a
+		 *            sequential execution. If false, they are emitted as soon as
+		 *            they are produced.
+		 */
+		public Builder setParallelIterators(boolean ordered) {
+			return setParallelIterators(Runtime.getRuntime().availableProcessors(), ordered);
+		}
+
+		/**
+		 * Executes the iterators over the different outer bindings in parallel on
+		 * a new pool of the given parallelism, that is shut down when the
+		 * execution ends. The iterators may block on I/O, so the pool is not
+		 * shared with other executions.
+		 *
+		 * @param parallelism
+		 *            the maximal number of iterators executed at once, or 0 for
+		 *            a sequential execution.
+		 * @param ordered
+		 *            if true, the bindings are emitted in the same order as in a
+		 *            sequential execution. If false, they are emitted as soon as
+		 *            they are produced.
+		 */
+		public Builder setParallelIterators(int parallelism, boolean ordered) {
+			if (parallelism <= 0) {
+				return setParallelIterators(null, ordered);
+			}
+			final ForkJoinPool pool = new ForkJoinPool(parallelism);
+			commons.closingTasks.add(pool::shutdown);
+			return setParallelIterators(pool, ordered);
+		}
+
+		/**
+		 * Executes the iterators over the different outer bindings in parallel on
+		 * the given work-stealing pool.
+		 *
+		 * @param pool
+		 *            the pool, or null for a sequential execution.
+		 * @param ordered
+		 *            if true, the bindings are emitted in the same order as in a
+		 *            sequential execution. If false, they are emitted as soon as
+		 *            they are produced.
+		 */
+		public Builder setParallelIterators(ForkJoinPool pool, boolean ordered) {
+			commons.iteratorPool = pool;
+			commons.iteratorOrdered = ordered;
+			return this;
+		}
+
+		/**
+		 * Executes the independent GENERATE sub-queries concurrently on a new
+		 * pool of the given parallelism, that is shut down when the execution
+		 * ends.
+		 *
+		 * @param parallelism
+		 *            the maximal number of sub-queries executed at once, or 0
+		 *            for a sequential execution.
+		 */
+		public Builder setParallelSubQueries(int parallelism) {
+			if (parallelism <= 0) {
+				return setParallelSubQueries(null);
+			}
+			final ForkJoinPool pool = new ForkJoinPool(parallelism);
+			commons.closingTasks.add(pool::shutdown);
+			return setParallelSubQueries(pool);
+		}
+
+		/**
+		 * Executes the independent GENERATE sub-queries concurrently on the
+		 * given pool: the named sub-queries called with different names, and
+		 * the sub-queries of a GENERATE clause. Each sub-query writes to its
+		 * own buffer, and the buffers are merged into the output by batches,
+		 * so the triples of different sub-queries may be interleaved. The
+		 * sub-queries of a sub-query executed on the pool are executed
+		 * sequentially.
+		 *
+		 * @param pool
+		 *            the pool, or null for a sequential execution.
+		 */
+		public Builder setParallelSubQueries(ForkJoinPool pool) {
+			commons.subQueryPool = pool;
+			return this;
+		}
+
+		/**
+		 * Fetches the distinct documents of the SOURCE clauses of a batch of
+		 * bindings concurrently, on a new pool of the given number of threads
+		 * that is shut down when the execution ends.
+		 *
+		 * @param threads
+		 *            the maximal number of documents fetched at once, or 0 to
+		 *            fetch them sequentially.
+		 * @param maxPerHost
+		 *            the maximal number of documents fetched from the same host
+		 *            at once.
+		 */
+		public Builder setParallelSources(int threads, int maxPerHost) {
+			if (threads <= 0) {
+				return setSourceFetcher(null);
+			}
+			final AtomicInteger count = new AtomicInteger();
+			final ExecutorService pool = Executors.newFixedThreadPool(threads, (runnable) -> {
+				final Thread thread = new Thread(runnable, "sparql-generate-source-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			commons.closingTasks.add(pool::shutdown);
+			return setSourceFetcher(new SourceFetcher(pool, maxPerHost));
+		}
+
+		/**
+		 * Fetches the distinct documents of the SOURCE clauses of a batch of
+		 * bindings with the given fetcher. The bindings of the batch are
+		 * extended in order once all the documents are fetched.
+		 *
+		 * @param sourceFetcher
+		 *            the fetcher, or null to fetch the documents sequentially.
+		 */
+		public Builder setSourceFetcher(SourceFetcher sourceFetcher) {
+			commons.sourceFetcher = sourceFetcher;
+			return this;
+		}
+
+		/**
+		 * Spools the documents of the SOURCE clauses that are larger than the
+		 * given size to temporary files, that are deleted when the execution
+		 * ends. The iterators that parse documents as streams read the files
+		 * directly, and the lexical form of the document is read only if it
+		 * is needed.
+		 *
+		 * @param threshold
+		 *            the size, in bytes, above which a document is spooled, or
+		 *            0 to hold all the documents in memory.
+		 */
+		public Builder setSourceSpoolThreshold(int threshold) {
+			if (threshold < 0 || threshold == Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Invalid spool threshold " + threshold);
+			}
+			commons.sourceSpoolThreshold = threshold;
+			return this;
+		}
+
 		public Builder setDebugTemplate(boolean debugTemplate) {
 			commons.debugTemplate = debugTemplate;
 			return this;
@@ -463,7 +935,148 @@ public class ContextUtils {
 			return this;
 		}
 
+		/**
+		 * Stores the normalized form of the queries loaded by name in a
+		 * directory, so that the next executions do not normalize them again.
+		 *
+		 * @param directory
+		 *            the directory, or null to not use a persistent cache.
+		 */
+		public Builder setPlanCache(Path directory) {
+			commons.planCache = directory != null ? new PlanCache(directory) : null;
+			return this;
+		}
+
+		/**
+		 * Takes the graphs of the FROM clauses that are parsed from documents
+		 * from a cache, so that they are parsed once for all the executions that
+		 * share the cache, as long as the documents do not change.
+		 *
+		 * @param graphCache
+		 *            the cache, or null to parse the graphs at each execution.
+		 */
+		public Builder setGraphCache(GraphCache graphCache) {
+			commons.graphCache = graphCache;
+			return this;
+		}
+
+		/**
+		 * Lets the engine choose the number of rows per batch of the streaming
+		 * iterators, when the query does not give it, instead of processing
+		 * all the rows of a document as one batch. The size is adjusted at
+		 * runtime from the time the rest of the query takes to process a batch,
+		 * and from the free heap. As with an explicit size, the SELECT clause
+		 * is then executed once per batch, so aggregates, ordering and limits
+		 * apply to each batch.
+		 *
+		 * @param adaptiveBatches
+		 *            true to let the engine choose the size of the batches.
+		 * @see BatchSizer
+		 */
+		public Builder setAdaptiveBatches(boolean adaptiveBatches) {
+			commons.batchSizers = adaptiveBatches ? new ConcurrentHashMap<>() : null;
+			return this;
+		}
+
+		/**
+		 * Interns the IRI and literal nodes bound by the ITERATOR and BIND
+		 * clauses, so that equal values are held only once. The hit rate is
+		 * logged when the execution ends.
+		 *
+		 * @param capacity
+		 *            the maximal number of distinct nodes held, or 0 to not
+		 *            intern nodes.
+		 */
+		public Builder setNodeDictionary(int capacity) {
+			commons.nodeDictionary = capacity > 0 ? new NodeDictionary(capacity) : null;
+			return this;
+		}
+
+		/**
+		 * Records the metrics of the execution: the calls to the sub-queries,
+		 * the statistics of the caches, the time taken to plan the queries, and
+		 * the number of bindings in and out of the plans. The metrics are
+		 * logged at the DEBUG level when the execution ends.
+		 *
+		 * @param metrics
+		 *            the receiver of the metrics, for example a
+		 *            {@link MetricsRegistry} registered in JMX.
+		 */
+		public Builder setMetrics(ExecutionMetrics metrics) {
+			commons.metrics = metrics;
+			return this;
+		}
+
+		/**
+		 * Configures the memo of the results of the SELECT queries called with
+		 * the same call parameters. The default is to memoise the results of
+		 * {@value QueryExecutor#DEFAULT_SELECT_CACHE_SIZE} call bindings for
+		 * {@value QueryExecutor#DEFAULT_SELECT_CACHE_TTL} milliseconds.
+		 *
+		 * @param maximumSize
+		 *            the maximal number of call bindings whose results are
+		 *            memoised, or 0 to not memoise results.
+		 * @param ttl
+		 *            the time, in milliseconds, after which the results of a
+		 *            call binding that is not used are discarded.
+		 */
+		public Builder setSelectCache(long maximumSize, long ttl) {
+			commons.selectCacheSize = maximumSize;
+			commons.selectCacheTtl = ttl;
+			return this;
+		}
+
+		/**
+		 * Memoises the output of the TEMPLATE queries called with the same call
+		 * parameters, for example with st:call-template. Templates that change
+		 * the indentation with st:incr or st:decr, or call functions such as
+		 * RAND or NOW, are not memoised. The output is not memoised by default.
+		 *
+		 * @param maximumSize
+		 *            the maximal number of call bindings whose output is
+		 *            memoised, or 0 to not memoise output.
+		 * @param maximumCharacters
+		 *            the maximal total number of characters memoised.
+		 * @param ttl
+		 *            the time, in milliseconds, after which the output of a
+		 *            call binding that is not used is discarded.
+		 */
+		public Builder setTemplateCache(long maximumSize, long maximumCharacters, long ttl) {
+			commons.templateCacheSize = maximumSize;
+			commons.templateCacheCharacters = maximumCharacters;
+			commons.templateCacheTtl = ttl;
+			return this;
+		}
+
+		/**
+		 * Profiles the execution: records, for each node of the plan tree and
+		 * of the plans of the sub-queries called, the number of invocations,
+		 * the time spent, the bindings received and produced, the bytes
+		 * fetched and the cache hits. The annotated plan tree is returned by
+		 * {@link ExecutionProfile#toString()}, and logged at the DEBUG level
+		 * when the execution ends.
+		 *
+		 * @param profile
+		 *            the profile, or null to not profile the execution.
+		 */
+		public Builder setProfile(ExecutionProfile profile) {
+			commons.profile = profile;
+			return this;
+		}
+
 		public Context build() {
+			if (commons.queryExecutor == null) {
+				commons.queryExecutor = new QueryExecutor(
+						commons.metrics != null ? commons.metrics : new MetricsRegistry(), commons.selectCacheSize,
+						commons.selectCacheTtl, commons.templateCacheSize, commons.templateCacheCharacters,
+						commons.templateCacheTtl);
+			}
+			if (commons.graphCache != null) {
+				commons.graphCache.registerIn(commons.queryExecutor.getMetrics());
+			}
+			commons.queryExecutor.getMetrics().registerCache("generatedGraphs", commons.generatedGraphs);
+			context.set(STATE, new State(null, commons, dataset, 0, templateOutput, generateOutput, selectOutput,
+					null, commons.profile != null ? commons.profile.getRoot() : null));
 			return context;
 		}
 
@@ -473,11 +1086,83 @@ public class ContextUtils {
 
 		private boolean debugTemplate = false;
 		private ExecutorService executor = Executors.newSingleThreadExecutor();
-		private QueryExecutor queryExecutor = new QueryExecutor();
-		private final Set<Runnable> closingTasks = new HashSet<>();
+		private ExecutorService pipelinePool = null;
+		private ForkJoinPool iteratorPool = null;
+		private boolean iteratorOrdered = true;
+		private ForkJoinPool subQueryPool = null;
+		private SourceFetcher sourceFetcher = null;
+		private int sourceSpoolThreshold = 0;
+		private QueryExecutor queryExecutor = null;
+		private ExecutionMetrics metrics = null;
+		private long selectCacheSize = QueryExecutor.DEFAULT_SELECT_CACHE_SIZE;
+		private long selectCacheTtl = QueryExecutor.DEFAULT_SELECT_CACHE_TTL;
+		private long templateCacheSize = 0;
+		private long templateCacheCharacters = 0;
+		private long templateCacheTtl = QueryExecutor.DEFAULT_TEMPLATE_CACHE_TTL;
+		private NodeDictionary nodeDictionary = null;
+		private ConcurrentMap<IteratorPlan, BatchSizer> batchSizers = null;
+		private ExecutionProfile profile = null;
+		private PlanCache planCache = null;
+		private GraphCache graphCache = null;
+		private final Set<Runnable> closingTasks = ConcurrentHashMap.newKeySet();
+		private final Cache<Object, Graph> generatedGraphs = CacheBuilder.newBuilder()
+				.maximumWeight(GENERATED_GRAPHS_TRIPLES).weigher((Object key, Graph graph) -> Math.max(1, graph.size()))
+				.recordStats().build();
 
 		private Commons() {
 		}
 
 	}
+
+	/**
+	 * The state of an execution, resolved once when the context is built or
+	 * forked, so that it is read from plain fields instead of being looked up
+	 * in the chain of parent contexts.
+	 */
+	private static final class State {
+
+		private final State parent;
+		private final Commons commons;
+		private final Dataset dataset;
+		private final int size;
+		private final ConcurrentMap<Node_List, Node[]> listNodes;
+		private final IndentedWriter templateOutput;
+		private final StreamRDF generateOutput;
+		private final Consumer<ResultSet> selectOutput;
+		private final Map<List<Node>, String> templateCalls;
+		private final ExecutionProfile.PlanNode profileNode;
+
+		private State(State parent, Commons commons, Dataset dataset, int size, IndentedWriter templateOutput,
+				StreamRDF generateOutput, Consumer<ResultSet> selectOutput, Map<List<Node>, String> templateCalls,
+				ExecutionProfile.PlanNode profileNode) {
+			this.parent = parent;
+			this.commons = commons;
+			this.dataset = dataset;
+			this.size = size;
+			this.listNodes = size > 0 ? new ConcurrentHashMap<>() : null;
+			this.templateOutput = templateOutput;
+			this.generateOutput = generateOutput;
+			this.selectOutput = selectOutput;
+			this.templateCalls = templateCalls;
+			this.profileNode = profileNode;
+		}
+
+		/**
+		 * A copy of a state with another node of the profile, that shares the
+		 * nodes of the lists.
+		 */
+		private State(State state, ExecutionProfile.PlanNode profileNode) {
+			this.parent = state.parent;
+			this.commons = state.commons;
+			this.dataset = state.dataset;
+			this.size = state.size;
+			this.listNodes = state.listNodes;
+			this.templateOutput = state.templateOutput;
+			this.generateOutput = state.generateOutput;
+			this.selectOutput = state.selectOutput;
+			this.templateCalls = state.templateCalls;
+			this.profileNode = profileNode;
+		}
+
+	}
 }
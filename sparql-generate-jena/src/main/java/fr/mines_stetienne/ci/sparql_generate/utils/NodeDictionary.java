@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.jena.graph.Node;
+
+/**
+ * A bounded dictionary of the IRI and literal nodes bound by the ITERATOR and
+ * BIND clauses of an execution.
+ * <p>
+ * Equal nodes are replaced by a single instance, so that the repeated values
+ * of low-cardinality columns are held only once in the batches of bindings.
+ * Once the dictionary is full, new nodes are no longer added, and are
+ * returned as is.
+ *
+ * @author Maxime Lefrançois
+ */
+public class NodeDictionary {
+
+	private final int capacity;
+
+	private final ConcurrentMap<Node, Node> nodes = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param capacity
+	 *            the maximal number of distinct nodes held by the dictionary.
+	 */
+	public NodeDictionary(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get the unique instance of a node.
+	 *
+	 * @param node
+	 *            the node, may be null.
+	 * @return the instance held by the dictionary, or the node itself if it is
+	 *         not an IRI or a literal, or if the dictionary is full.
+	 */
+	public Node intern(Node node) {
+		if (node == null || !(node.isURI() || node.isLiteral())) {
+			return node;
+		}
+		final Node existing = nodes.get(node);
+		if (existing != null) {
+			hits.increment();
+			return existing;
+		}
+		misses.increment();
+		if (nodes.size() >= capacity) {
+			return node;
+		}
+		final Node previous = nodes.putIfAbsent(node, node);
+		return previous != null ? previous : node;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of distinct nodes held by the dictionary.
+	 */
+	public int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * @return the number of nodes that were replaced by an existing instance.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of nodes that had no existing instance.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the ratio of hits over the number of interned nodes.
+	 */
+	public double getHitRate() {
+		final long h = getHits();
+		final long total = h + getMisses();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Node dictionary: %d/%d distinct nodes, %d hits, %d misses, hit rate %.1f%%", size(),
+				capacity, getHits(), getMisses(), 100 * getHitRate());
+	}
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 MINES Saint-Étienne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mines_stetienne.ci.sparql_generate.utils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.apache.jena.atlas.io.IndentedWriter;
+
+/**
+ * An indented writer that writes the output of a template to a character
+ * buffer, so that the output is not encoded to bytes and decoded back to a
+ * string.
+ * <p>
+ * The buffers of the writers obtained with {@link #acquire()} are reused by
+ * the next writers of the same thread once {@link #release()} is called.
+ *
+ * @author Maxime Lefrançois
+ */
+public class TemplateWriter extends IndentedWriter {
+
+	/**
+	 * The maximal capacity of a buffer that is reused, so that the buffer of a
+	 * large output is not retained.
+	 */
+	private static final int MAX_POOLED_CAPACITY = 1 << 16;
+
+	private static final ThreadLocal<Deque<StringBuilder>> POOL = ThreadLocal.withInitial(ArrayDeque::new);
+
+	private final StringBuilder builder;
+
+	private final boolean pooled;
+
+	private boolean released = false;
+
+	/**
+	 * Creates a writer with a buffer of its own.
+	 */
+	public TemplateWriter() {
+		this(new StringBuilder(), false);
+	}
+
+	private TemplateWriter(final StringBuilder builder, final boolean pooled) {
+		super(new StringBuilderWriter(builder));
+		this.builder = builder;
+		this.pooled = pooled;
+	}
+
+	/**
+	 * Get a writer with a buffer reused from the previous writers of the
+	 * thread.
+	 *
+	 * @return the writer, that must be released.
+	 */
+	public static TemplateWriter acquire() {
+		final StringBuilder builder = POOL.get().poll();
+		return new TemplateWriter(builder != null ? builder : new StringBuilder(), true);
+	}
+
+	/**
+	 * Gives the buffer back to the thread for the next writers. The writer must
+	 * not be used afterwards.
+	 */
+	public void release() {
+		if (!pooled || released) {
+			return;
+		}
+		released = true;
+		if (builder.capacity() <= MAX_POOLED_CAPACITY) {
+			builder.setLength(0);
+			POOL.get().push(builder);
+		}
+	}
+
+	/**
+	 * @return the output written so far.
+	 */
+	@Override
+	public String toString() {
+		return builder.toString();
+	}
+
+}
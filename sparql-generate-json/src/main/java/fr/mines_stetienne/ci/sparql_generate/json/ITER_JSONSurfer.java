@@ -32,9 +32,11 @@ import com.jayway.jsonpath.spi.json.JsonSmartJsonProvider;
 import com.jayway.jsonpath.spi.mapper.GsonMappingProvider;
 
 import fr.mines_stetienne.ci.sparql_generate.SPARQLExt;
+import fr.mines_stetienne.ci.sparql_generate.iterator.BatchSizer;
 import fr.mines_stetienne.ci.sparql_generate.iterator.IteratorStreamFunctionBase;
 import fr.mines_stetienne.ci.sparql_generate.stream.LookUpRequest;
 import fr.mines_stetienne.ci.sparql_generate.stream.SPARQLExtStreamManager;
+import fr.mines_stetienne.ci.sparql_generate.stream.SpooledDocument;
 import fr.mines_stetienne.ci.sparql_generate.utils.ContextUtils;
 import fr.mines_stetienne.ci.sparql_generate.utils.LogUtils;
 
@@ -86,7 +88,8 @@ import org.slf4j.Logger;
  * document itself (a String)</li>
  * <li>Param 2: the JSONPath query</li>
  * <li>Param 3: (integer: batch) Optional number of rows per batch (by default,
- * all the JSON document is processed as one batch);</li>
+ * all the JSON document is processed as one batch, unless the engine is set to
+ * choose the size of the batches);</li>
  * <li>Param 4 .. N : (auxJsonPath ... ) other JSONPath queries, which will be
  * executed over the results of the execution of jsonPath, and provide one
  * result each.</li>
@@ -127,7 +130,9 @@ public class ITER_JSONSurfer extends IteratorStreamFunctionBase {
 			final int rowsInABatch = getRowsInABatch(args);
 			final com.jayway.jsonpath.JsonPath[] subqueries = getSubQueries(args);
 
-			final Listener listener = new Listener(collectionListNodeValue, rowsInABatch, jsonquery, subqueries);
+			final BatchSizer batchSizer = rowsInABatch > 0 ? null : getBatchSizer();
+			final Listener listener = new Listener(collectionListNodeValue, rowsInABatch, batchSizer, jsonquery,
+					subqueries);
 
 			surfer.configBuilder().bind(compiledPath, listener).buildAndSurf(jsonInput);
 
@@ -155,7 +160,7 @@ public class ITER_JSONSurfer extends IteratorStreamFunctionBase {
 			return IOUtils.toInputStream(json.asString(), StandardCharsets.UTF_8);
 		} else if (json.isLiteral()
 				&& json.asNode().getLiteralDatatypeURI().startsWith("https://www.iana.org/assignments/media-types/")) {
-			return IOUtils.toInputStream(json.asNode().getLiteralLexicalForm(), StandardCharsets.UTF_8);
+			return SpooledDocument.open(json.asNode());
 		} else if (json.isIRI()) {
 			String jsonPath = json.asNode().getURI();
 			LookUpRequest req = new LookUpRequest(jsonPath, "application/json");
@@ -218,12 +223,14 @@ public class ITER_JSONSurfer extends IteratorStreamFunctionBase {
 
 		private final Consumer<List<List<NodeValue>>> collectionListNodeValue;
 		private final int rowsInABatch;
+		private final BatchSizer batchSizer;
 		private final com.jayway.jsonpath.JsonPath[] subqueries;
 
 		public Listener(final Consumer<List<List<NodeValue>>> collectionListNodeValue, int rowsInABatch,
-				NodeValue jsonquery, final com.jayway.jsonpath.JsonPath[] subqueries) {
+				BatchSizer batchSizer, NodeValue jsonquery, final com.jayway.jsonpath.JsonPath[] subqueries) {
 			this.collectionListNodeValue = collectionListNodeValue;
 			this.rowsInABatch = rowsInABatch;
+			this.batchSizer = batchSizer;
 			this.subqueries = subqueries;
 
 		}
@@ -269,7 +276,8 @@ public class ITER_JSONSurfer extends IteratorStreamFunctionBase {
 			rowsInThisBatch++;
 			total++;
 
-			if (rowsInABatch > 0 && rowsInThisBatch >= rowsInABatch) {
+			if (rowsInABatch > 0 && rowsInThisBatch >= rowsInABatch
+					|| batchSizer != null && rowsInThisBatch >= batchSizer.getBatchSize()) {
 				LOG.trace("New batch of " + rowsInThisBatch + " rows, " + total + " total");
 				send();
 				rowsInThisBatch = 0;